@@ -0,0 +1,100 @@
+//
+// Compares the executeCount modes against the old scroll-to-last count.
+//
+// To run this benchmark, set up the geodb database in Postgres as
+// described in ThreadsTest and load world.sql:
+//
+// $ psql -U geo geodb
+// geodb=> \i world.sql
+// geodb=> ANALYZE;
+//
+
+package devtests;
+
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import org.topicquests.pg.PostgresConnectionFactory;
+import org.topicquests.pg.api.CountMode;
+import org.topicquests.pg.api.IPostgresConnection;
+import org.topicquests.pg.api.IPostgresConnectionFactory;
+import org.topicquests.support.ResultPojo;
+import org.topicquests.support.api.IResult;
+
+public class CountBenchmark {
+  private static final String TEST_DB = "geodb";
+  private static final int WARMUP = 50;
+  private static final int ITERATIONS = 500;
+
+  private static final String [] QUERIES = {
+    "SELECT * FROM city",
+    "SELECT * FROM city WHERE population > 100000",
+    "SELECT c.name, l.language FROM country c JOIN countrylanguage l ON c.code = l.countrycode"
+  };
+
+  private static IPostgresConnection conn;
+
+  public static void main(String args []) {
+    IPostgresConnectionFactory provider =
+        new PostgresConnectionFactory(TEST_DB, "", "geo", "geopwd");
+    try {
+      conn = provider.getConnection();
+
+      for (String sql : QUERIES) {
+        System.out.println(sql);
+        run("  scroll to last  ", sql, null);
+        run("  EXACT           ", sql, CountMode.EXACT);
+        run("  PLANNER_ESTIMATE", sql, CountMode.PLANNER_ESTIMATE);
+      }
+      System.out.println("city");
+      run("  TABLE_ESTIMATE  ", "city", CountMode.TABLE_ESTIMATE);
+
+      conn.closeConnection(new ResultPojo());
+      provider.shutDown();
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  private static void run(String label, String sql, CountMode mode) throws Exception {
+    long count = 0;
+    for (int i = 0; i < WARMUP; i++) {
+      count = count(sql, mode);
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      count = count(sql, mode);
+    }
+    long micros = (System.nanoTime() - start) / 1000 / ITERATIONS;
+    System.out.println(label + " count=" + count + " " + micros + " us/op");
+  }
+
+  private static long count(String sql, CountMode mode) throws Exception {
+    if (mode == null)
+      return scrollCount(sql);
+    IResult r = conn.executeCount(sql, mode);
+    if (r.hasError())
+      throw new Exception(r.getErrorString());
+    return ((Long)r.getResultObject()).longValue();
+  }
+
+  /**
+   * The count executeCount used to perform: fetch every row and
+   * scroll to the last one.
+   */
+  private static long scrollCount(String sql) throws Exception {
+    IResult r = conn.createStatement();
+    Statement s = (Statement)r.getResultObject();
+    java.sql.Connection c = s.getConnection();
+    s.close();
+    Statement scroll = c.createStatement(ResultSet.TYPE_SCROLL_SENSITIVE,
+                                         ResultSet.CONCUR_READ_ONLY);
+    try {
+      ResultSet rs = scroll.executeQuery(sql);
+      rs.last();
+      return rs.getRow();
+    } finally {
+      scroll.close();
+    }
+  }
+}
@@ -10,6 +10,7 @@
 package devtests;
 
 import java.sql.*;
+import java.util.concurrent.CountDownLatch;
 
 import org.topicquests.pg.api.IPostgresConnectionFactory;
 import org.topicquests.pg.api.IPostgresConnection;
@@ -74,8 +75,7 @@ public class MultiDBTests extends Thread {
     try {
       IResult result = new ResultPojo();
       
-      while (!getGreenLight())
-        yield();
+      greenLight.await();
 
       //
       // Setup a connection factory for a particular database and user.
@@ -126,9 +126,8 @@ public class MultiDBTests extends Thread {
     return new PostgresConnectionFactory(db, "", user, pwd);
   }
 
-  static boolean greenLight = false;
-  static synchronized void setGreenLight () { greenLight = true; }
-  synchronized boolean getGreenLight () { return greenLight; }
+  static final CountDownLatch greenLight = new CountDownLatch(1);
+  static void setGreenLight () { greenLight.countDown(); }
 
   private void insertRows(IPostgresConnection conn) {
     String tableName = "db" + m_myId + "_table";
@@ -138,7 +137,7 @@ public class MultiDBTests extends Thread {
     for (int i = 0; i < numRows; i++) {
       int idx1 = 2*i;
       int idx2 = 2*i+1;
-      vals[idx1] = new Integer(i);
+      vals[idx1] = Integer.valueOf(i);
       vals[idx2] = "data " + i;
     }
 
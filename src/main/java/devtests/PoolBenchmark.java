@@ -0,0 +1,138 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package devtests;
+
+import java.sql.ResultSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.topicquests.pg.PostgresConnectionFactory;
+import org.topicquests.pg.api.IPostgresConnection;
+import org.topicquests.support.ResultPojo;
+import org.topicquests.support.api.IResult;
+
+/**
+ * Runs the ThreadsTest (SELECT) and ThreadsTest2 (insert/update
+ * transaction) workloads against the pool named by ConnectionPool in
+ * postgresql-props.xml, at 8, 32 and 128 threads by default. Each
+ * operation borrows and returns a connection, so pool overhead shows.
+ * Run it once with ConnectionPool "dbcp" and once with "affinity".
+ * <p>
+ * java devtests.PoolBenchmark [threads ...]
+ */
+public class PoolBenchmark {
+  private static final String TEST_DB = "geodb";
+  private static final int OPS_PER_THREAD = 200;
+
+  private static PostgresConnectionFactory provider;
+
+  public static void main(String args []) {
+    int[] threadCounts = {8, 32, 128};
+    if (args.length > 0) {
+      threadCounts = new int[args.length];
+      for (int i = 0; i < args.length; i++)
+        threadCounts[i] = Integer.parseInt(args[i]);
+    }
+
+    provider = new PostgresConnectionFactory(TEST_DB, "", "geo", "geopwd");
+    System.out.println("ConnectionPool " + provider.getStringProperty("ConnectionPool"));
+    try {
+      for (int threads : threadCounts) {
+        run("select ", threads, false);
+        run("txn    ", threads, true);
+        cleanUp();
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    provider.shutDown();
+  }
+
+  private static void run(String label, int threads, final boolean write) throws Exception {
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong maxBorrowNanos = new AtomicLong();
+
+    for (int t = 0; t < threads; t++) {
+      final int id = t + 1;
+      new Thread(() -> {
+        try {
+          start.await();
+          for (int i = 0; i < OPS_PER_THREAD; i++) {
+            long b = System.nanoTime();
+            IPostgresConnection conn = provider.getConnection();
+            maxBorrowNanos.accumulateAndGet(System.nanoTime() - b, Math::max);
+            boolean ok = write ? transaction(conn, id * OPS_PER_THREAD + i) : select(conn, id);
+            if (!ok)
+              errors.incrementAndGet();
+            conn.closeConnection(new ResultPojo());
+          }
+        } catch (Exception e) {
+          errors.incrementAndGet();
+          e.printStackTrace();
+        } finally {
+          done.countDown();
+        }
+      }).start();
+    }
+
+    long t0 = System.nanoTime();
+    start.countDown();
+    done.await();
+    long nanos = System.nanoTime() - t0;
+    long ops = (long)threads * OPS_PER_THREAD;
+    System.out.println(label + threads + " threads: "
+        + Math.round(ops * 1.0e9 / nanos) + " ops/s, max borrow "
+        + (maxBorrowNanos.get() / 1000) + " us, errors " + errors.get());
+  }
+
+  /**
+   * The ThreadsTest query.
+   */
+  private static boolean select(IPostgresConnection conn, int id) throws Exception {
+    IResult r = conn.executeSelect("select * from city where id < ?", id * 3);
+    if (r.hasError())
+      return false;
+    ResultSet rs = (ResultSet)r.getResultObject();
+    while (rs.next())
+      rs.getString(2);
+    conn.closeResultSet(rs, r);
+    return !r.hasError();
+  }
+
+  /**
+   * The ThreadsTest2 transaction.
+   */
+  private static boolean transaction(IPostgresConnection conn, int n) {
+    Integer id = Integer.valueOf(n + 10000);
+    IResult r = conn.beginTransaction();
+    conn.executeSQL("insert into city values (?, ?, ?, ?, ?)", r,
+                    id, "city", "USA", "district", Integer.valueOf(0));
+    conn.executeSQL("update city set name = ? where id = ?", r, "city" + n, id);
+    conn.executeSQL("update city set population = ? where id = ?", r, id, id);
+    conn.endTransaction(r);
+    return !r.hasError();
+  }
+
+  private static void cleanUp() throws Exception {
+    IPostgresConnection conn = provider.getConnection();
+    IResult r = conn.executeSQL("delete from city where id > 9999");
+    if (r.hasError())
+      System.out.println("cleanUp: " + r.getErrorString());
+    conn.closeConnection(r);
+  }
+}
@@ -12,6 +12,7 @@
 package devtests;
 
 import java.sql.*;
+import java.util.concurrent.CountDownLatch;
 
 import org.topicquests.pg.api.IPostgresConnectionFactory;
 import org.topicquests.pg.api.IPostgresConnection;
@@ -115,8 +116,7 @@ public class ThreadsTest extends Thread {
       else
         conn = provider.getConnection();
 
-      while (!getGreenLight())
-        yield();
+      greenLight.await();
           
       // Execute the Query
       String sqlstmt = "select * from city where id < " + Integer.toString(m_myId * 3);
@@ -158,7 +158,6 @@ public class ThreadsTest extends Thread {
     return new PostgresConnectionFactory(TEST_DB, "", "geo", "geopwd");
   }
 
-  static boolean greenLight = false;
-  static synchronized void setGreenLight () { greenLight = true; }
-  synchronized boolean getGreenLight () { return greenLight; }
+  static final CountDownLatch greenLight = new CountDownLatch(1);
+  static void setGreenLight () { greenLight.countDown(); }
 }
@@ -12,6 +12,7 @@
 package devtests;
 
 import java.sql.*;
+import java.util.concurrent.CountDownLatch;
 
 import org.topicquests.pg.api.IPostgresConnectionFactory;
 import org.topicquests.pg.api.IPostgresConnection;
@@ -112,15 +113,14 @@ public class ThreadsTest2 extends Thread {
     try {    
       conn = provider.getConnection();
 
-      while (!getGreenLight())
-        yield();
+      greenLight.await();
 
       Object [] vals = new Object[5];
-      vals[0] = new Integer(m_myId + 10000);
+      vals[0] = Integer.valueOf(m_myId + 10000);
       vals[1] = new String("city");
       vals[2] = new String("USA");
       vals[3] = new String("district");
-      vals[4] = new Integer(0);
+      vals[4] = Integer.valueOf(0);
 
       String idstr = Integer.toString(m_myId);
 
@@ -136,15 +136,15 @@ public class ThreadsTest2 extends Thread {
       sqlstmt = "update city set name = ? where id = ?";
       vals = new Object[2];
       vals[0] = new String("city" + idstr);
-      vals[1] = new Integer(m_myId + 10000);
+      vals[1] = Integer.valueOf(m_myId + 10000);
       
       conn.executeSQL(sqlstmt, result, vals);
       checkError(result, sqlstmt);
 
       sqlstmt = "update city set population = ? where id = ?";
       vals = new Object[2];
-      vals[0] = new Integer(m_myId + 10000);
-      vals[1] = new Integer(m_myId + 10000);
+      vals[0] = Integer.valueOf(m_myId + 10000);
+      vals[1] = Integer.valueOf(m_myId + 10000);
 
       conn.executeSQL(sqlstmt, result, vals);
       checkError(result, sqlstmt);
@@ -181,7 +181,6 @@ public class ThreadsTest2 extends Thread {
     return new PostgresConnectionFactory(TEST_DB, "", "geo", "geopwd");
   }
 
-  static boolean greenLight = false;
-  static synchronized void setGreenLight () { greenLight = true; }
-  synchronized boolean getGreenLight () { return greenLight; }
+  static final CountDownLatch greenLight = new CountDownLatch(1);
+  static void setGreenLight () { greenLight.countDown(); }
 }
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+/**
+ * Resizes the connection pool between PoolMinTotal and PoolMaxTotal
+ * from what it measures over each PoolAdaptiveIntervalMillis:
+ * <ul>
+ * <li>the wait to borrow a connection, at PoolTargetWaitPercentile;</li>
+ * <li>how long connections are held, and how often they are borrowed;</li>
+ * <li>the median statement latency.</li>
+ * </ul>
+ * By Little's law the pool needs about (borrows per second) x (mean
+ * hold time) connections. If the wait percentile is over
+ * PoolTargetWaitMillis, the limit grows toward that figure plus one,
+ * by at most half again per interval. With no waiting and idle
+ * connections to spare, it shrinks by one per interval.
+ * <p>
+ * Growth is not always the answer. Once the server is saturated, more
+ * connections only queue inside PostgreSQL. So when the median statement
+ * latency rises above PoolLatencyBackoffPercent of its running baseline,
+ * the sizer stops growing and takes one connection away instead.
+ */
+class AdaptivePoolSizer extends Thread {
+  private final PostgresConnectionFactory environment;
+  private final IConnectionPool pool;
+  private final int minTotal, maxTotal;
+  private final long targetWaitMicros;
+  private final double waitPercentile;
+  private final int backoffPercent;
+  private final long intervalMillis;
+
+  private final LatencyHistogram borrowWaits = new LatencyHistogram();
+  private final LatencyHistogram holdTimes = new LatencyHistogram();
+  private final LatencyHistogram statementTimes = new LatencyHistogram();
+  private long baselineMicros = 0;
+  private volatile boolean running = true;
+
+  AdaptivePoolSizer(PostgresConnectionFactory env, IConnectionPool pool,
+                    int minTotal, int maxTotal, long targetWaitMillis,
+                    int waitPercentile, int backoffPercent, long intervalMillis) {
+    super("tq-pg-pool-sizer");
+    setDaemon(true);
+    this.environment = env;
+    this.pool = pool;
+    this.minTotal = Math.max(minTotal, 1);
+    this.maxTotal = Math.max(maxTotal, this.minTotal);
+    this.targetWaitMicros = targetWaitMillis * 1000L;
+    this.waitPercentile = waitPercentile;
+    this.backoffPercent = backoffPercent;
+    this.intervalMillis = Math.max(intervalMillis, 100L);
+  }
+
+  void recordBorrowWait(long nanos) {
+    borrowWaits.recordNanos(nanos);
+  }
+
+  void recordHoldTime(long nanos) {
+    holdTimes.recordNanos(nanos);
+  }
+
+  void recordStatementTime(long nanos) {
+    statementTimes.recordNanos(nanos);
+  }
+
+  @Override
+  public void run() {
+    while (running) {
+      try {
+        Thread.sleep(intervalMillis);
+      } catch (InterruptedException e) {
+        break;
+      }
+      int limit = pool.getMaxTotal();
+      int next = nextLimit(limit, pool.getNumIdle(), borrowWaits.snapshotAndReset(),
+                           holdTimes.snapshotAndReset(), statementTimes.snapshotAndReset());
+      if (next != limit) {
+        environment.logDebug("PoolSizer "+limit+" -> "+next);
+        pool.resize(next);
+      }
+    }
+  }
+
+  void shutDown() {
+    running = false;
+    interrupt();
+  }
+
+  /**
+   * Decide the pool limit for the next interval.
+   */
+  int nextLimit(int limit, int idle, LatencyHistogram.Snapshot waits,
+                LatencyHistogram.Snapshot holds, LatencyHistogram.Snapshot statements) {
+    boolean serverSlow = false;
+    if (statements.getCount() > 0) {
+      long median = statements.getPercentileMicros(50);
+      if (baselineMicros == 0 || median < baselineMicros)
+        baselineMicros = median;
+      else
+        baselineMicros += (median - baselineMicros) / 16;  // let the baseline follow a lasting shift
+      serverSlow = median * 100 > Math.max(baselineMicros, 1) * backoffPercent;
+    }
+
+    double borrowsPerSecond = holds.getCount() * 1000.0 / intervalMillis;
+    double holdSeconds = holds.getMeanMicros() / 1.0e6;
+    int needed = (int)Math.ceil(borrowsPerSecond * holdSeconds);
+
+    int next = limit;
+    if (serverSlow) {
+      if (waits.getCount() > 0)
+        next = limit - 1;
+    } else if (waits.getPercentileMicros(waitPercentile) > targetWaitMicros) {
+      next = Math.min(Math.max(limit + 1, needed + 1), limit + Math.max(1, limit / 2));
+    } else if (idle > 0 && needed < limit - 1) {
+      next = limit - 1;
+    }
+    return Math.max(minTotal, Math.min(maxTotal, next));
+  }
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A connection pool built for many more request threads than connections.
+ * <p>
+ * Borrowing first tries the connection the calling thread returned last,
+ * which under steady load is nearly always free. Otherwise it scans the
+ * shared list, claiming an idle entry with a compare-and-set on its state.
+ * No lock is taken on either path. A thread that finds nothing opens a new
+ * connection if the pool is below MaxTotal, or else waits on a hand-off
+ * queue that returning threads feed directly.
+ * <p>
+ * On return, an open transaction is rolled back and autocommit restored,
+ * as dbcp2 does. A connection idle for more than half a second is checked
+ * with isValid before it is handed out again.
+ */
+class AffinityConnectionPool implements IConnectionPool {
+  private static final int NOT_IN_USE = 0;
+  private static final int IN_USE = 1;
+  private static final int REMOVED = -1;
+  /** Connections returned more recently than this are not re-validated */
+  private static final long VALIDATION_BYPASS_MILLIS = 500;
+  private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+  /** How long a returning thread offers its entry to a waiter */
+  private static final long HANDOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+  /** Waiters re-scan the pool at least this often */
+  private static final long WAIT_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+  private final PostgresConnectionFactory environment;
+  private volatile String url, user, password;
+  private volatile int initialSize = 0;
+  private volatile int maxTotal = 8;
+  private volatile long maxWaitMillis = -1;
+  private volatile boolean closed = false;
+
+  private final CopyOnWriteArrayList<Entry> entries = new CopyOnWriteArrayList<Entry>();
+  /** Entries plus connections being opened */
+  private final AtomicInteger total = new AtomicInteger();
+  private final AtomicInteger active = new AtomicInteger();
+  private final AtomicInteger waiters = new AtomicInteger();
+  private final AtomicBoolean started = new AtomicBoolean();
+  private final SynchronousQueue<Entry> handoff = new SynchronousQueue<Entry>(true);
+  private final ThreadLocal<WeakReference<Entry>> lastUsed = new ThreadLocal<WeakReference<Entry>>();
+
+  private static final class Entry {
+    final Connection physical;
+    final AtomicInteger state = new AtomicInteger(IN_USE);
+    final WeakReference<Entry> ref = new WeakReference<Entry>(this);
+    volatile long lastReturned = System.currentTimeMillis();
+
+    Entry(Connection physical) {
+      this.physical = physical;
+    }
+  }
+
+  AffinityConnectionPool(PostgresConnectionFactory env) {
+    this.environment = env;
+  }
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    if (closed)
+      throw new SQLException("Connection pool is closed");
+    if (started.compareAndSet(false, true))
+      fill();
+    Entry e = borrow();
+    active.incrementAndGet();
+    return new PooledConnection(e);
+  }
+
+  private Entry borrow() throws SQLException {
+    WeakReference<Entry> ref = lastUsed.get();
+    Entry e = (ref != null) ? ref.get() : null;
+    if (e != null && e.state.compareAndSet(NOT_IN_USE, IN_USE) && isUsable(e))
+      return e;
+
+    long wait = maxWaitMillis;
+    long deadline = (wait < 0) ? Long.MAX_VALUE
+        : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(wait);
+    waiters.incrementAndGet();
+    try {
+      while (true) {
+        for (Entry x : entries) {
+          if (x.state.compareAndSet(NOT_IN_USE, IN_USE) && isUsable(x))
+            return x;
+        }
+        e = tryCreate();
+        if (e != null)
+          return e;
+
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0)
+          throw new SQLException("Timed out waiting " + wait + " ms for a connection");
+        e = handoff.poll(Math.min(remaining, WAIT_SLICE_NANOS), TimeUnit.NANOSECONDS);
+        if (e != null && e.state.compareAndSet(NOT_IN_USE, IN_USE) && isUsable(e))
+          return e;
+        if (closed)
+          throw new SQLException("Connection pool is closed");
+      }
+    } catch (InterruptedException x) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted waiting for a connection", x);
+    } finally {
+      waiters.decrementAndGet();
+    }
+  }
+
+  /**
+   * Open a connection if the pool has room.
+   * @return the new entry, already in use, or <code>null</code> at MaxTotal
+   */
+  private Entry tryCreate() throws SQLException {
+    int n;
+    do {
+      n = total.get();
+      if (n >= maxTotal)
+        return null;
+    } while (!total.compareAndSet(n, n + 1));
+
+    try {
+      Entry e = new Entry(DriverManager.getConnection(url, user, password));
+      entries.add(e);
+      return e;
+    } catch (SQLException x) {
+      total.decrementAndGet();
+      throw x;
+    }
+  }
+
+  private void fill() throws SQLException {
+    for (int i = total.get(); i < initialSize; i++) {
+      Entry e = tryCreate();
+      if (e == null)
+        return;
+      e.state.set(NOT_IN_USE);
+    }
+  }
+
+  /**
+   * Check a claimed entry, dropping it if its connection has gone bad.
+   */
+  private boolean isUsable(Entry e) {
+    try {
+      if (System.currentTimeMillis() - e.lastReturned < VALIDATION_BYPASS_MILLIS
+          || e.physical.isValid(VALIDATION_TIMEOUT_SECONDS))
+        return true;
+    } catch (SQLException x) {
+      // treat as invalid
+    }
+    discard(e);
+    return false;
+  }
+
+  private void release(Entry e) {
+    active.decrementAndGet();
+    try {
+      if (!e.physical.getAutoCommit()) {
+        e.physical.rollback();
+        e.physical.setAutoCommit(true);
+      }
+      e.physical.clearWarnings();
+    } catch (SQLException x) {
+      environment.logError("PoolReturn "+x.getMessage(), x);
+      discard(e);
+      return;
+    }
+    if (closed || total.get() > maxTotal) {
+      discard(e);
+      return;
+    }
+
+    e.lastReturned = System.currentTimeMillis();
+    e.state.set(NOT_IN_USE);
+    lastUsed.set(e.ref);
+    if (waiters.get() > 0) {
+      // a waiter between polls still finds the entry on its next scan
+      try {
+        handoff.offer(e, HANDOFF_NANOS, TimeUnit.NANOSECONDS);
+      } catch (InterruptedException x) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void discard(Entry e) {
+    e.state.set(REMOVED);
+    if (entries.remove(e))
+      total.decrementAndGet();
+    try {
+      e.physical.close();
+    } catch (SQLException x) {
+      // already broken
+    }
+  }
+
+  @Override
+  public String getUrl() {
+    return url;
+  }
+
+  @Override
+  public void setUrl(String url) {
+    this.url = url;
+  }
+
+  @Override
+  public String getUsername() {
+    return user;
+  }
+
+  @Override
+  public void setUsername(String user) {
+    this.user = user;
+  }
+
+  @Override
+  public String getPassword() {
+    return password;
+  }
+
+  @Override
+  public void setPassword(String password) {
+    this.password = password;
+  }
+
+  @Override
+  public int getInitialSize() {
+    return initialSize;
+  }
+
+  @Override
+  public void setInitialSize(int initialSize) {
+    this.initialSize = initialSize;
+  }
+
+  @Override
+  public int getMaxTotal() {
+    return maxTotal;
+  }
+
+  @Override
+  public void setMaxTotal(int maxTotal) {
+    this.maxTotal = maxTotal;
+  }
+
+  /**
+   * Idle connections are only closed by {@link #resize(int)}.
+   */
+  @Override
+  public int getMaxIdle() {
+    return maxTotal;
+  }
+
+  @Override
+  public void setMaxWaitMillis(long maxWaitMillis) {
+    this.maxWaitMillis = maxWaitMillis;
+  }
+
+  /**
+   * Borrowed connections over the new limit are closed when they come back.
+   */
+  @Override
+  public void resize(int maxTotal) {
+    this.maxTotal = maxTotal;
+    for (Entry e : entries) {
+      if (total.get() <= maxTotal)
+        break;
+      if (e.state.compareAndSet(NOT_IN_USE, IN_USE))
+        discard(e);
+    }
+  }
+
+  @Override
+  public int getNumActive() {
+    return active.get();
+  }
+
+  @Override
+  public int getNumIdle() {
+    int n = 0;
+    for (Entry e : entries) {
+      if (e.state.get() == NOT_IN_USE)
+        n++;
+    }
+    return n;
+  }
+
+  /**
+   * Close the idle connections. Borrowed ones are closed as they come back.
+   */
+  @Override
+  public void close() throws SQLException {
+    closed = true;
+    for (Entry e : entries) {
+      if (e.state.compareAndSet(NOT_IN_USE, IN_USE))
+        discard(e);
+    }
+  }
+
+  /**
+   * The Connection handed to callers. close() returns the entry to the
+   * pool; everything else goes to the physical connection.
+   */
+  private final class PooledConnection extends DelegatingConnection {
+    private final Entry entry;
+    // set once, by whichever close gets there first
+    private final AtomicBoolean returned = new AtomicBoolean();
+
+    PooledConnection(Entry entry) {
+      this.entry = entry;
+    }
+
+    @Override
+    Connection target() throws SQLException {
+      if (returned.get())
+        throw new SQLException("Connection is closed");
+      return entry.physical;
+    }
+
+    @Override
+    public void close() {
+      if (returned.compareAndSet(false, true))
+        release(entry);
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+      return returned.get() || entry.physical.isClosed();
+    }
+
+    @Override
+    public String toString() {
+      return "Pooled " + entry.physical;
+    }
+  }
+}
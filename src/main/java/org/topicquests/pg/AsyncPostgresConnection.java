@@ -0,0 +1,194 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.topicquests.pg.api.IAsyncPostgresConnection;
+import org.topicquests.pg.api.IPostgresConnection;
+import org.topicquests.pg.api.IQueryHandle;
+import org.topicquests.pg.api.IRow;
+import org.topicquests.support.ResultPojo;
+import org.topicquests.support.api.IResult;
+
+/**
+ * Runs connection work on a fixed pool of daemon threads, one per pooled
+ * connection, behind a bounded queue that refuses work when full.
+ */
+class AsyncPostgresConnection implements IAsyncPostgresConnection {
+  private final PostgresConnectionFactory environment;
+  private final ThreadPoolExecutor executor;
+  private final AtomicLong rejected = new AtomicLong();
+
+  AsyncPostgresConnection(PostgresConnectionFactory env, int threads, int queueSize) {
+    this(env, threads, queueSize, false);
+  }
+
+  /**
+   * @param virtual Run the workers on virtual threads, where the JVM has them.
+   *                There are still only <code>threads</code> of them, since
+   *                each holds a connection while it works.
+   */
+  AsyncPostgresConnection(PostgresConnectionFactory env, int threads, int queueSize,
+                          boolean virtual) {
+    this.environment = env;
+    this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+        ThreadSupport.newThreadFactory("tq-pg-async-", virtual),
+        new ThreadPoolExecutor.AbortPolicy());
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public <T> CompletableFuture<T> submit(final Function<IPostgresConnection, T> work) {
+    final CompletableFuture<T> future = new CompletableFuture<T>();
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (future.isDone())
+            return;
+          IPostgresConnection conn = null;
+          T value = null;
+          Throwable failure = null;
+          try {
+            conn = environment.getConnection();
+            value = work.apply(conn);
+          } catch (Throwable t) {
+            failure = t;
+          } finally {
+            if (conn != null)
+              conn.closeConnection(new ResultPojo());
+          }
+          // the connection is back in the pool before anyone is told
+          if (failure != null)
+            future.completeExceptionally(failure);
+          else
+            future.complete(value);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      rejected.incrementAndGet();
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public CompletableFuture<IResult> executeSelect(final String sql, final Object... vals) {
+    return submit(conn -> {
+      IResult result = conn.openQuery(sql, vals);
+      if (result.hasError())
+        return result;
+      try (IQueryHandle h = (IQueryHandle)result.getResultObject()) {
+        result.setResultObject(readRows(h.getResultSet()));
+      } catch (SQLException e) {
+        environment.logError(e.getMessage(), e);
+        environment.getMetrics().recordError("PGD-38");
+        result.setResultObject(null);
+        result.addErrorString("PGD-38 "+e.getMessage());
+      }
+      return result;
+    });
+  }
+
+  private static List<IRow> readRows(ResultSet rs) throws SQLException {
+    PostgresRow.Columns columns = PostgresRow.Columns.of(rs.getMetaData());
+    List<IRow> rows = new ArrayList<IRow>();
+    while (rs.next())
+      rows.add(PostgresRow.read(columns, rs));
+    return rows;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public CompletableFuture<IResult> executeUpdate(final String sql, final Object... vals) {
+    return submit(conn -> conn.executeUpdate(sql, vals));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public CompletableFuture<IResult> executeBatch(final String sql, final Object... vals) {
+    return submit(conn -> conn.executeBatch(sql, vals));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public CompletableFuture<IResult> inTransaction(
+      final Function<IPostgresConnection, IResult> block) {
+    return submit(conn -> {
+      IResult begun = conn.beginTransaction();
+      if (begun.hasError())
+        return begun;
+      IResult result;
+      try {
+        result = block.apply(conn);
+      } catch (RuntimeException e) {
+        conn.rollback();
+        throw e;
+      }
+      if (result == null || result.hasError())
+        conn.rollback();
+      else
+        conn.endTransaction(result);
+      return result;
+    });
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  /**
+   * Stop taking work. Queued tasks still run.
+   */
+  void shutDown() {
+    executor.shutdown();
+  }
+}
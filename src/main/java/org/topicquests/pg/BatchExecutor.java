@@ -0,0 +1,189 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs executeBatch. The values are sent in chunks of at most
+ * BatchChunkSize rows, and the parameter count of each SQL string is
+ * looked up on the server only the first time it is seen.
+ * <p>
+ * When BatchRewriteInserts is on, a single-row INSERT ... VALUES (...)
+ * is rewritten into a multi-row VALUES statement per chunk, which the
+ * server plans and executes once instead of once per row. Anything else
+ * is sent as a JDBC batch. Either way, the returned count is the sum of
+ * the per-row update counts.
+ */
+class BatchExecutor {
+  /** The protocol limit on bind parameters in one statement */
+  private static final int MAX_BIND_PARAMETERS = 32767;
+  /** Bound on the plan cache; batch SQL is normally a handful of strings */
+  private static final int MAX_PLANS = 1024;
+
+  private final int chunkSize;
+  private final boolean rewriteInserts;
+  private final ConcurrentHashMap<String, BatchPlan> plans =
+      new ConcurrentHashMap<String, BatchPlan>();
+
+  BatchExecutor(int chunkSize, boolean rewriteInserts) {
+    this.chunkSize = Math.max(chunkSize, 1);
+    this.rewriteInserts = rewriteInserts;
+  }
+
+  /**
+   * Execute <code>sql</code> once for each consecutive group of values.
+   * If the connection is in autocommit mode the whole batch runs in one
+   * transaction, so a failing chunk does not leave earlier chunks behind.
+   * @return the total number of rows affected
+   */
+  long execute(Connection conn, String sql, Object[] vals) throws SQLException {
+    BatchPlan plan = planFor(conn, sql);
+    int paramCount = plan.paramCount;
+    if (paramCount == 0)
+      throw new SQLException("executeBatch needs a statement with parameters");
+    if (vals.length % paramCount != 0)
+      throw new SQLException("executeBatch got " + vals.length
+                             + " values for " + paramCount + " parameters per row");
+    int rows = vals.length / paramCount;
+
+    boolean autoCommit = conn.getAutoCommit();
+    if (autoCommit)
+      conn.setAutoCommit(false);
+    try {
+      long total;
+      if (plan.insert != null && rows > 1)
+        total = executeRewritten(conn, plan, vals, rows);
+      else
+        total = executeBatched(conn, sql, paramCount, vals, rows);
+      if (autoCommit)
+        conn.commit();
+      return total;
+    } catch (SQLException e) {
+      if (autoCommit)
+        conn.rollback();
+      throw e;
+    } finally {
+      if (autoCommit)
+        conn.setAutoCommit(true);
+    }
+  }
+
+  private long executeRewritten(Connection conn, BatchPlan plan, Object[] vals, int rows)
+      throws SQLException {
+    int perStatement = Math.min(chunkSize, MAX_BIND_PARAMETERS / plan.paramCount);
+    long total = 0;
+    int row = 0;
+    PreparedStatement s = null;
+
+    try {
+      if (rows >= perStatement) {
+        s = conn.prepareStatement(plan.insert.build(perStatement));
+        for (; row + perStatement <= rows; row += perStatement) {
+          bind(s, vals, row * plan.paramCount, perStatement * plan.paramCount);
+          total += s.executeUpdate();
+        }
+        s.close();
+        s = null;
+      }
+      int remaining = rows - row;
+      if (remaining > 0) {
+        s = conn.prepareStatement(plan.insert.build(remaining));
+        bind(s, vals, row * plan.paramCount, remaining * plan.paramCount);
+        total += s.executeUpdate();
+      }
+    } finally {
+      if (s != null)
+        s.close();
+    }
+    return total;
+  }
+
+  private long executeBatched(Connection conn, String sql, int paramCount,
+                              Object[] vals, int rows) throws SQLException {
+    long total = 0;
+    PreparedStatement s = conn.prepareStatement(sql);
+
+    try {
+      int pending = 0;
+      for (int row = 0; row < rows; row++) {
+        bind(s, vals, row * paramCount, paramCount);
+        s.addBatch();
+        if (++pending == chunkSize) {
+          total += sum(s.executeBatch());
+          pending = 0;
+        }
+      }
+      if (pending > 0)
+        total += sum(s.executeBatch());
+    } finally {
+      s.close();
+    }
+    return total;
+  }
+
+  private static void bind(PreparedStatement s, Object[] vals, int offset, int count)
+      throws SQLException {
+    for (int j = 0; j < count; j++) {
+      s.setObject(j + 1, vals[offset + j]);
+    }
+  }
+
+  private static long sum(int[] counts) {
+    long n = 0;
+    for (int c : counts) {
+      if (c > 0)
+        n += c;
+      else if (c == Statement.SUCCESS_NO_INFO)
+        n += 1;
+    }
+    return n;
+  }
+
+  private BatchPlan planFor(Connection conn, String sql) throws SQLException {
+    BatchPlan plan = plans.get(sql);
+    if (plan != null)
+      return plan;
+
+    int paramCount;
+    PreparedStatement s = conn.prepareStatement(sql);
+    try {
+      paramCount = s.getParameterMetaData().getParameterCount();
+    } finally {
+      s.close();
+    }
+    InsertTemplate insert = rewriteInserts ? InsertTemplate.parse(sql) : null;
+    plan = new BatchPlan(paramCount, insert);
+    if (plans.size() >= MAX_PLANS)
+      plans.clear();
+    plans.put(sql, plan);
+    return plan;
+  }
+
+  private static final class BatchPlan {
+    final int paramCount;
+    final InsertTemplate insert;
+
+    BatchPlan(int paramCount, InsertTemplate insert) {
+      this.paramCount = paramCount;
+      this.insert = insert;
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * Listens on one or more PostgreSQL NOTIFY channels over a dedicated,
+ * unpooled connection and invalidates the {@link QueryResultCache}.
+ * The notification payload is taken to be a table name; an empty
+ * payload clears the whole cache.
+ * <p>
+ * Notifications sent while the listener was disconnected are lost, so
+ * the cache is cleared every time the listener (re)connects.
+ */
+class CacheInvalidationListener extends Thread {
+  private static final int POLL_MILLIS = 500;
+  private static final int RETRY_MILLIS = 5000;
+
+  private final PostgresConnectionFactory environment;
+  private final QueryResultCache cache;
+  private final String[] channels;
+  private final String url, user, password;
+  private volatile boolean running = true;
+  private Connection conn = null;
+
+  CacheInvalidationListener(PostgresConnectionFactory env, QueryResultCache cache,
+                            String[] channels, String url, String user, String password) {
+    super("tq-pg-cache-listener");
+    setDaemon(true);
+    this.environment = env;
+    this.cache = cache;
+    this.channels = channels;
+    this.url = url;
+    this.user = user;
+    this.password = password;
+  }
+
+  @Override
+  public void run() {
+    while (running) {
+      try {
+        if (conn == null)
+          connect();
+        PGNotification[] notes = conn.unwrap(PGConnection.class).getNotifications(POLL_MILLIS);
+        if (notes != null) {
+          for (PGNotification n : notes)
+            cache.invalidate(n.getParameter());
+        }
+      } catch (SQLException e) {
+        if (!running)
+          break;
+        environment.logError("CacheListener "+e.getMessage(), e);
+        cache.invalidateAll();
+        closeQuietly();
+        try {
+          Thread.sleep(RETRY_MILLIS);
+        } catch (InterruptedException x) {
+          break;
+        }
+      }
+    }
+    closeQuietly();
+  }
+
+  void shutDown() {
+    running = false;
+    interrupt();
+  }
+
+  private void connect() throws SQLException {
+    conn = DriverManager.getConnection(url, user, password);
+    Statement s = conn.createStatement();
+    try {
+      for (String channel : channels)
+        s.execute("LISTEN " + channel.trim());
+    } finally {
+      s.close();
+    }
+    cache.invalidateAll();
+    environment.logDebug("CacheListener listening on "+String.join(",", channels));
+  }
+
+  private void closeQuietly() {
+    if (conn != null) {
+      try {
+        conn.close();
+      } catch (SQLException x) {
+        // nothing more to do
+      }
+      conn = null;
+    }
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.topicquests.pg.api.WarmupReport;
+import org.topicquests.support.ResultPojo;
+import org.topicquests.support.api.IResult;
+
+/**
+ * Opens a number of pooled connections at once and warms each of them.
+ * Every connection is taken by its own thread after a random delay of
+ * up to WarmupJitterMillis, so the server does not see a burst of
+ * simultaneous authentications. Each thread then does two things:
+ * <ul>
+ * <li>it puts the hot statements in its connection's statement cache,
+ * having the server parse and describe them, which loads the catalog
+ * entries they use;</li>
+ * <li>it reads one row from each listed table, which loads the backend's
+ * catalog caches for it.</li>
+ * </ul>
+ * The connections are held until all are warm, so that they are
+ * distinct, and then go back to the pool together.
+ */
+class ConnectionWarmer {
+  private final PostgresConnectionFactory environment;
+  private final List<String> statements;
+  private final List<String> tables;
+  private final int jitterMillis;
+
+  ConnectionWarmer(PostgresConnectionFactory env, List<String> statements,
+                   List<String> tables, int jitterMillis) {
+    this.environment = env;
+    this.statements = statements;
+    this.tables = tables;
+    this.jitterMillis = jitterMillis;
+  }
+
+  WarmupReport run(int connections, final IResult result) {
+    final CountDownLatch warm = new CountDownLatch(connections);
+    final AtomicInteger opened = new AtomicInteger();
+    final AtomicInteger prepared = new AtomicInteger();
+    final AtomicInteger touched = new AtomicInteger();
+    final AtomicInteger errors = new AtomicInteger();
+    final AtomicLong slowest = new AtomicLong();
+    long start = System.nanoTime();
+
+    Thread[] threads = new Thread[connections];
+    for (int i = 0; i < connections; i++) {
+      threads[i] = new Thread("tq-pg-warmup-" + i) {
+        @Override
+        public void run() {
+          PostgresConnection conn = null;
+          try {
+            if (jitterMillis > 0)
+              Thread.sleep(ThreadLocalRandom.current().nextInt(jitterMillis));
+            long t0 = System.nanoTime();
+            conn = (PostgresConnection)environment.getConnection();
+            slowest.accumulateAndGet(System.nanoTime() - t0, Math::max);
+            opened.incrementAndGet();
+
+            for (String sql : statements) {
+              try {
+                conn.warmStatement(sql);
+                prepared.incrementAndGet();
+              } catch (SQLException e) {
+                failed(result, errors, e.getMessage());
+              }
+            }
+            for (String table : tables) {
+              IResult r = conn.executeSQL("SELECT * FROM " + table + " LIMIT 1");
+              if (r.hasError())
+                failed(result, errors, r.getErrorString());
+              else
+                touched.incrementAndGet();
+            }
+          } catch (SQLException | InterruptedException e) {
+            failed(result, errors, e.getMessage());
+          } finally {
+            warm.countDown();
+          }
+          try {
+            warm.await();
+          } catch (InterruptedException e) {
+            // return the connection now
+          }
+          if (conn != null)
+            conn.closeConnection(new ResultPojo());
+        }
+      };
+      threads[i].setDaemon(true);
+      threads[i].start();
+    }
+    for (Thread t : threads) {
+      try {
+        t.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+
+    return new WarmupReport(opened.get(), prepared.get(), touched.get(), errors.get(),
+                            System.nanoTime() - start, slowest.get());
+  }
+
+  private void failed(IResult result, AtomicInteger errors, String message) {
+    errors.incrementAndGet();
+    environment.getMetrics().recordError("PGD-34");
+    environment.logError("Warmup "+message, null);
+    synchronized (result) {
+      result.addErrorString("PGD-34 "+message);
+    }
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.zip.GZIPOutputStream;
+
+import org.postgresql.copy.CopyManager;
+import org.postgresql.copy.CopyOut;
+import org.topicquests.pg.api.CopyFormat;
+import org.topicquests.pg.api.CopyStatistics;
+import org.topicquests.pg.api.ICopyProgressListener;
+
+/**
+ * Streams the output of COPY ... TO STDOUT into an OutputStream through
+ * a fixed-size buffer, optionally gzip compressing on the fly. Each COPY
+ * data message is written out as soon as it arrives, so heap use does not
+ * depend on the size of the export.
+ */
+class CopyExporter {
+  /** How many rows between progress reports */
+  private static final int PROGRESS_INTERVAL = 10000;
+
+  private CopyExporter() {
+  }
+
+  /**
+   * Build the COPY statement. A query (SELECT, WITH, VALUES or TABLE) is
+   * wrapped in parentheses; anything else is taken as a table name.
+   */
+  static String copyOutSql(String query, CopyFormat format) {
+    String q = query.trim();
+    if (startsWithKeyword(q, "select") || startsWithKeyword(q, "with")
+        || startsWithKeyword(q, "values") || startsWithKeyword(q, "table")) {
+      if (q.endsWith(";"))
+        q = q.substring(0, q.length() - 1);
+      return "COPY (" + q + ") TO STDOUT (FORMAT " + format.sqlName() + ")";
+    }
+    return CopyInEncoder.copySql(q, null, format, "TO STDOUT");
+  }
+
+  /**
+   * Does <code>q</code> start with the word <code>keyword</code>, so that
+   * a table called e.g. "selections" is not taken for a query?
+   */
+  private static boolean startsWithKeyword(String q, String keyword) {
+    int n = keyword.length();
+    if (q.length() <= n || !q.regionMatches(true, 0, keyword, 0, n))
+      return false;
+    char next = q.charAt(n);
+    return Character.isWhitespace(next) || next == '(';
+  }
+
+  /**
+   * Run the export. The sink is flushed but not closed.
+   * @param listener may be <code>null</code>
+   */
+  static CopyStatistics export(CopyManager copyManager, String sql, CopyFormat format,
+                               OutputStream sink, boolean gzip, int bufferSize,
+                               ICopyProgressListener listener)
+      throws SQLException, IOException {
+    long start = System.nanoTime();
+    OutputStream target = new NonClosingOutputStream(sink);
+    OutputStream out = gzip ? new GZIPOutputStream(target, bufferSize)
+        : new BufferedOutputStream(target, bufferSize);
+    boolean binary = format == CopyFormat.BINARY;
+    long rows = 0;
+    long bytes = 0;
+
+    try {
+      CopyOut copyOut = copyManager.copyOut(sql);
+      try {
+        byte[] data;
+        while ((data = copyOut.readFromCopy()) != null) {
+          out.write(data);
+          bytes += data.length;
+          if (isRow(data, binary) && ++rows % PROGRESS_INTERVAL == 0 && listener != null)
+            listener.progress(rows, bytes);
+        }
+      } finally {
+        if (copyOut.isActive()) {
+          try {
+            copyOut.cancelCopy();
+          } catch (SQLException x) {
+            // keep the original failure
+          }
+        }
+      }
+      rows = copyOut.getHandledRowCount();
+    } finally {
+      // also ends the gzip Deflater, which holds native memory
+      out.close();
+    }
+
+    if (listener != null)
+      listener.progress(rows, bytes);
+    return new CopyStatistics(rows, bytes, System.nanoTime() - start);
+  }
+
+  /**
+   * Does a CopyData message end a row? The server sends one message per
+   * row, each ending in a newline in text and CSV format. In binary format
+   * the file header comes with the first row and the trailer, a field
+   * count of -1, in a message of its own.
+   */
+  static boolean isRow(byte[] data, boolean binary) {
+    int n = data.length;
+    if (!binary)
+      return n > 0 && data[n - 1] == '\n';
+    boolean trailer = n >= 2 && data[n - 2] == -1 && data[n - 1] == -1;
+    // the trailer alone, or with the 19 byte header when there are no rows
+    return !(trailer && (n == 2 || (n == 21 && data[0] == 'P' && data[1] == 'G')));
+  }
+
+  /**
+   * Passes writes to the caller's stream, but close only flushes it.
+   */
+  private static final class NonClosingOutputStream extends FilterOutputStream {
+
+    NonClosingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.flush();
+    }
+  }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.UUID;
+
+import org.postgresql.copy.CopyIn;
+import org.topicquests.pg.api.CopyFormat;
+
+/**
+ * Encodes rows in a COPY wire format straight into a fixed-size buffer
+ * and hands full buffers to a pgjdbc {@link CopyIn}. Nothing is retained
+ * between rows, so memory use does not depend on the size of the load.
+ * <p>
+ * In BINARY format, values are sent in the binary representation of the
+ * PostgreSQL type matching their Java class: Short/Byte as int2, Integer
+ * as int4, Long as int8, Float/Double as float4/float8, Boolean as bool,
+ * byte[] as bytea, UUID as uuid, java.sql.Date/LocalDate as date and
+ * Timestamp/java.util.Date as timestamptz. Strings are sent as UTF-8 and
+ * suit text, varchar and json columns. Other classes must use TEXT or CSV.
+ */
+class CopyInEncoder {
+  /** The PostgreSQL epoch, 2000-01-01, in Unix milliseconds and days */
+  private static final long PG_EPOCH_MILLIS = 946684800000L;
+  private static final long PG_EPOCH_DAYS = 10957L;
+  private static final byte[] BINARY_SIGNATURE = {
+    'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte)0xff, '\r', '\n', 0
+  };
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final CopyIn copyIn;
+  private final CopyFormat format;
+  private final byte[] buf;
+  private int pos = 0;
+  private long bytes = 0;
+
+  CopyInEncoder(CopyIn copyIn, CopyFormat format, int bufferSize) {
+    this.copyIn = copyIn;
+    this.format = format;
+    this.buf = new byte[Math.max(bufferSize, 1024)];
+  }
+
+  /**
+   * Build the COPY statement for a table and optional column list.
+   */
+  static String copySql(String table, String[] columns, CopyFormat format, String direction) {
+    StringBuilder sb = new StringBuilder("COPY ").append(table);
+    if (columns != null && columns.length > 0) {
+      sb.append(" (");
+      for (int i = 0; i < columns.length; i++) {
+        if (i > 0)
+          sb.append(", ");
+        sb.append(columns[i]);
+      }
+      sb.append(')');
+    }
+    return sb.append(' ').append(direction).append(" (FORMAT ")
+        .append(format.sqlName()).append(')').toString();
+  }
+
+  void writeHeader() throws SQLException {
+    if (format == CopyFormat.BINARY) {
+      putBytes(BINARY_SIGNATURE, 0, BINARY_SIGNATURE.length);
+      putInt(0);  // flags
+      putInt(0);  // header extension length
+    }
+  }
+
+  void writeRow(Object[] row) throws SQLException {
+    if (format == CopyFormat.BINARY) {
+      ensure(2);
+      putShort(row.length);
+      for (Object v : row)
+        writeBinaryField(v);
+    } else {
+      char delimiter = (format == CopyFormat.CSV) ? ',' : '\t';
+      for (int i = 0; i < row.length; i++) {
+        if (i > 0)
+          putAscii(delimiter);
+        if (format == CopyFormat.CSV)
+          writeCsvField(row[i]);
+        else
+          writeTextField(row[i]);
+      }
+      putAscii('\n');
+    }
+  }
+
+  /**
+   * Write the trailer, flush and complete the COPY.
+   * @return the number of rows the server reports as copied
+   */
+  long finish() throws SQLException {
+    if (format == CopyFormat.BINARY) {
+      ensure(2);
+      putShort(-1);
+    }
+    flush();
+    return copyIn.endCopy();
+  }
+
+  void cancel() {
+    try {
+      if (copyIn.isActive())
+        copyIn.cancelCopy();
+    } catch (SQLException e) {
+      // the connection reports the original failure
+    }
+  }
+
+  long getBytes() {
+    return bytes + pos;
+  }
+
+  private void writeTextField(Object v) throws SQLException {
+    if (v == null) {
+      putAscii('\\');
+      putAscii('N');
+    } else if (v instanceof byte[]) {
+      // bytea hex input, \x..., with the backslash escaped for TEXT
+      putAscii('\\');
+      putAscii('\\');
+      putAscii('x');
+      putHex((byte[])v);
+    } else if (v instanceof Boolean) {
+      putAscii(((Boolean)v).booleanValue() ? 't' : 'f');
+    } else {
+      String s = textValue(v);
+      int len = s.length();
+      for (int i = 0; i < len;) {
+        switch (s.charAt(i)) {
+          case '\\': putAscii('\\'); putAscii('\\'); i++; break;
+          case '\n': putAscii('\\'); putAscii('n'); i++; break;
+          case '\r': putAscii('\\'); putAscii('r'); i++; break;
+          case '\t': putAscii('\\'); putAscii('t'); i++; break;
+          default: i += putChar(s, i);
+        }
+      }
+    }
+  }
+
+  private void writeCsvField(Object v) throws SQLException {
+    if (v == null)
+      return;  // an unquoted empty field is NULL
+    if (v instanceof byte[]) {
+      putAscii('\\');
+      putAscii('x');
+      putHex((byte[])v);
+      return;
+    }
+    if (v instanceof Boolean) {
+      putAscii(((Boolean)v).booleanValue() ? 't' : 'f');
+      return;
+    }
+    String s = textValue(v);
+    putAscii('"');
+    int len = s.length();
+    for (int i = 0; i < len;) {
+      if (s.charAt(i) == '"')
+        putAscii('"');
+      i += putChar(s, i);
+    }
+    putAscii('"');
+  }
+
+  private static String textValue(Object v) {
+    if (v instanceof java.util.Date && !(v instanceof java.sql.Date)
+        && !(v instanceof java.sql.Time) && !(v instanceof Timestamp))
+      return new Timestamp(((java.util.Date)v).getTime()).toString();
+    return v.toString();
+  }
+
+  private void writeBinaryField(Object v) throws SQLException {
+    ensure(12);
+    if (v == null) {
+      putInt(-1);
+    } else if (v instanceof String) {
+      String s = (String)v;
+      putInt(utf8Length(s));
+      putString(s);
+    } else if (v instanceof Integer) {
+      putInt(4);
+      putInt(((Integer)v).intValue());
+    } else if (v instanceof Long) {
+      putInt(8);
+      putLong(((Long)v).longValue());
+    } else if (v instanceof Short || v instanceof Byte) {
+      putInt(2);
+      putShort(((Number)v).shortValue());
+    } else if (v instanceof Double) {
+      putInt(8);
+      putLong(Double.doubleToLongBits(((Double)v).doubleValue()));
+    } else if (v instanceof Float) {
+      putInt(4);
+      putInt(Float.floatToIntBits(((Float)v).floatValue()));
+    } else if (v instanceof Boolean) {
+      putInt(1);
+      buf[pos++] = (byte)(((Boolean)v).booleanValue() ? 1 : 0);
+    } else if (v instanceof byte[]) {
+      byte[] b = (byte[])v;
+      putInt(b.length);
+      putBytes(b, 0, b.length);
+    } else if (v instanceof UUID) {
+      UUID u = (UUID)v;
+      putInt(16);
+      ensure(16);
+      putLong(u.getMostSignificantBits());
+      putLong(u.getLeastSignificantBits());
+    } else if (v instanceof java.sql.Date) {
+      putInt(4);
+      putInt((int)(((java.sql.Date)v).toLocalDate().toEpochDay() - PG_EPOCH_DAYS));
+    } else if (v instanceof LocalDate) {
+      putInt(4);
+      putInt((int)(((LocalDate)v).toEpochDay() - PG_EPOCH_DAYS));
+    } else if (v instanceof Timestamp) {
+      Timestamp t = (Timestamp)v;
+      long seconds = Math.floorDiv(t.getTime(), 1000L);
+      putInt(8);
+      putLong((seconds * 1000L - PG_EPOCH_MILLIS) * 1000L + t.getNanos() / 1000);
+    } else if (v instanceof java.util.Date) {
+      putInt(8);
+      putLong((((java.util.Date)v).getTime() - PG_EPOCH_MILLIS) * 1000L);
+    } else {
+      throw new SQLException("No binary COPY encoding for "+v.getClass().getName());
+    }
+  }
+
+  //
+  // Buffer management
+  //
+
+  private void flush() throws SQLException {
+    if (pos > 0) {
+      copyIn.writeToCopy(buf, 0, pos);
+      bytes += pos;
+      pos = 0;
+    }
+  }
+
+  private void ensure(int n) throws SQLException {
+    if (buf.length - pos < n)
+      flush();
+  }
+
+  private void putBytes(byte[] b, int off, int len) throws SQLException {
+    if (len > buf.length - pos) {
+      flush();
+      if (len > buf.length) {
+        copyIn.writeToCopy(b, off, len);
+        bytes += len;
+        return;
+      }
+    }
+    System.arraycopy(b, off, buf, pos, len);
+    pos += len;
+  }
+
+  private void putShort(int v) {
+    buf[pos++] = (byte)(v >>> 8);
+    buf[pos++] = (byte)v;
+  }
+
+  private void putInt(int v) {
+    buf[pos++] = (byte)(v >>> 24);
+    buf[pos++] = (byte)(v >>> 16);
+    buf[pos++] = (byte)(v >>> 8);
+    buf[pos++] = (byte)v;
+  }
+
+  private void putLong(long v) {
+    putInt((int)(v >>> 32));
+    putInt((int)v);
+  }
+
+  private void putAscii(char c) throws SQLException {
+    ensure(1);
+    buf[pos++] = (byte)c;
+  }
+
+  private void putHex(byte[] b) throws SQLException {
+    for (byte x : b) {
+      ensure(2);
+      buf[pos++] = (byte)HEX[(x >> 4) & 0xf];
+      buf[pos++] = (byte)HEX[x & 0xf];
+    }
+  }
+
+  private void putString(String s) throws SQLException {
+    int len = s.length();
+    for (int i = 0; i < len;)
+      i += putChar(s, i);
+  }
+
+  /**
+   * UTF-8 encode the character at <code>i</code>.
+   * @return the number of chars consumed, 2 for a surrogate pair
+   */
+  private int putChar(String s, int i) throws SQLException {
+    char c = s.charAt(i);
+    ensure(4);
+    if (c < 0x80) {
+      buf[pos++] = (byte)c;
+    } else if (c < 0x800) {
+      buf[pos++] = (byte)(0xc0 | (c >> 6));
+      buf[pos++] = (byte)(0x80 | (c & 0x3f));
+    } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+               && Character.isLowSurrogate(s.charAt(i + 1))) {
+      int cp = Character.toCodePoint(c, s.charAt(i + 1));
+      buf[pos++] = (byte)(0xf0 | (cp >> 18));
+      buf[pos++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+      buf[pos++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+      buf[pos++] = (byte)(0x80 | (cp & 0x3f));
+      return 2;
+    } else {
+      buf[pos++] = (byte)(0xe0 | (c >> 12));
+      buf[pos++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+      buf[pos++] = (byte)(0x80 | (c & 0x3f));
+    }
+    return 1;
+  }
+
+  private static int utf8Length(String s) {
+    int n = 0;
+    int len = s.length();
+    for (int i = 0; i < len; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        n += 1;
+      } else if (c < 0x800) {
+        n += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < len
+                 && Character.isLowSurrogate(s.charAt(i + 1))) {
+        n += 4;
+        i++;
+      } else {
+        n += 3;
+      }
+    }
+    return n;
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * SQL used by executeCount to count rows on the server instead of
+ * pulling them to the client.
+ */
+class CountQueries {
+  static final String TABLE_ESTIMATE_SQL =
+      "SELECT reltuples::bigint, relpages FROM pg_class WHERE oid = ?::regclass";
+
+  private static final Pattern PLAN_ROWS = Pattern.compile("rows=(\\d+)");
+
+  private CountQueries() {
+  }
+
+  /**
+   * Wrap a query so the server returns only its row count.
+   */
+  static String exactSql(String sql) {
+    return "SELECT count(*) FROM (" + strip(sql) + ") AS tq_count";
+  }
+
+  static String explainSql(String sql) {
+    return "EXPLAIN " + strip(sql);
+  }
+
+  /**
+   * Read the estimated row count of the top plan node from EXPLAIN output.
+   */
+  static long planRows(ResultSet rs) throws SQLException {
+    if (rs.next()) {
+      Matcher m = PLAN_ROWS.matcher(rs.getString(1));
+      if (m.find())
+        return Long.parseLong(m.group(1));
+    }
+    throw new SQLException("No row estimate in EXPLAIN output");
+  }
+
+  /**
+   * Remove trailing whitespace and semicolons, which are not allowed
+   * inside a subquery.
+   */
+  static String strip(String sql) {
+    int end = sql.length();
+    while (end > 0 && (sql.charAt(end - 1) == ';'
+                       || Character.isWhitespace(sql.charAt(end - 1)))) {
+      end--;
+    }
+    return sql.substring(0, end);
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import javax.net.SocketFactory;
+
+/**
+ * A socket factory for pgjdbc's socketFactory connection property that
+ * counts the traffic of every connection for the {@link RoundTripProfiler}.
+ * Bytes are added to the counters of the thread doing the I/O, which is
+ * the thread using the connection. A round trip is counted at the first
+ * read after one or more writes.
+ * <p>
+ * Public only because pgjdbc instantiates it by class name.
+ */
+public class CountingSocketFactory extends SocketFactory {
+
+  public CountingSocketFactory() {
+  }
+
+  @Override
+  public Socket createSocket() {
+    return new CountingSocket();
+  }
+
+  @Override
+  public Socket createSocket(String host, int port) throws IOException {
+    Socket s = new CountingSocket();
+    s.connect(new InetSocketAddress(host, port));
+    return s;
+  }
+
+  @Override
+  public Socket createSocket(InetAddress host, int port) throws IOException {
+    Socket s = new CountingSocket();
+    s.connect(new InetSocketAddress(host, port));
+    return s;
+  }
+
+  @Override
+  public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+      throws IOException {
+    Socket s = new CountingSocket();
+    s.bind(new InetSocketAddress(localHost, localPort));
+    s.connect(new InetSocketAddress(host, port));
+    return s;
+  }
+
+  @Override
+  public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                             int localPort) throws IOException {
+    Socket s = new CountingSocket();
+    s.bind(new InetSocketAddress(localAddress, localPort));
+    s.connect(new InetSocketAddress(address, port));
+    return s;
+  }
+
+  static class CountingSocket extends Socket {
+    private InputStream in = null;
+    private OutputStream out = null;
+    // written since the last read; only the connection's thread touches it
+    private boolean awaitingReply = false;
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+      if (in == null)
+        in = new CountingInputStream(super.getInputStream());
+      return in;
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+      if (out == null)
+        out = new CountingOutputStream(super.getOutputStream());
+      return out;
+    }
+
+    private void received(int n) {
+      RoundTripProfiler.Counters c = RoundTripProfiler.counters();
+      if (awaitingReply) {
+        awaitingReply = false;
+        c.roundTrips++;
+      }
+      c.bytesReceived += n;
+    }
+
+    private void sent(int n) {
+      awaitingReply = true;
+      RoundTripProfiler.counters().bytesSent += n;
+    }
+
+    private class CountingInputStream extends FilterInputStream {
+      CountingInputStream(InputStream in) {
+        super(in);
+      }
+
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0)
+          received(1);
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0)
+          received(n);
+        return n;
+      }
+    }
+
+    private class CountingOutputStream extends FilterOutputStream {
+      CountingOutputStream(OutputStream out) {
+        super(out);
+      }
+
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+        sent(1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        sent(len);
+      }
+    }
+  }
+}
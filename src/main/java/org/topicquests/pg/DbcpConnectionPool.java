@@ -0,0 +1,35 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+
+/**
+ * The commons-dbcp2 pool. BasicDataSource already has every method of
+ * {@link IConnectionPool}.
+ */
+class DbcpConnectionPool extends BasicDataSource implements IConnectionPool {
+
+  DbcpConnectionPool() {
+    setDriverClassName("org.postgresql.Driver");
+  }
+
+  @Override
+  public void resize(int maxTotal) {
+    setMaxTotal(maxTotal);
+    setMaxIdle(maxTotal);
+  }
+}
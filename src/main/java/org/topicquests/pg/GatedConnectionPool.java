@@ -0,0 +1,226 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admits at most MaxTotal borrowers into another pool at a time, so that
+ * pool always has a connection for whoever it lets in and nobody waits
+ * inside it. The wait happens here instead, on a ReentrantLock condition,
+ * where a virtual thread unmounts from its carrier; commons-pool2 waits
+ * for a connection being opened in Object.wait, which pins the carrier.
+ * <p>
+ * Used with VirtualThreads set, in front of the dbcp pool. The affinity
+ * pool already waits with LockSupport and needs no gate.
+ */
+class GatedConnectionPool implements IConnectionPool {
+  /** Waiters re-check the limit at least this often, e.g. after a resize */
+  private static final long WAIT_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final IConnectionPool pool;
+  private final ReentrantLock lock = new ReentrantLock(true);
+  private final Condition returned = lock.newCondition();
+  private int admitted = 0;
+  private volatile long maxWaitMillis = -1;
+
+  GatedConnectionPool(IConnectionPool pool) {
+    this.pool = pool;
+  }
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    enter();
+    Connection con = null;
+    try {
+      con = pool.getConnection();
+    } finally {
+      if (con == null)
+        exit();
+    }
+    return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(),
+        new Class<?>[] {Connection.class}, new GatedConnection(con));
+  }
+
+  private void enter() throws SQLException {
+    long wait = maxWaitMillis;
+    long remaining = (wait < 0) ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(wait);
+    lock.lock();
+    try {
+      while (admitted >= pool.getMaxTotal()) {
+        if (remaining <= 0)
+          throw new SQLException("Timed out waiting " + wait + " ms for a connection");
+        long slice = Math.min(remaining, WAIT_SLICE_NANOS);
+        long left = returned.awaitNanos(slice);
+        if (wait >= 0)
+          remaining -= slice - left;
+      }
+      admitted++;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted waiting for a connection", e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void exit() {
+    lock.lock();
+    try {
+      admitted--;
+      returned.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String getUrl() {
+    return pool.getUrl();
+  }
+
+  @Override
+  public void setUrl(String url) {
+    pool.setUrl(url);
+  }
+
+  @Override
+  public String getUsername() {
+    return pool.getUsername();
+  }
+
+  @Override
+  public void setUsername(String user) {
+    pool.setUsername(user);
+  }
+
+  @Override
+  public String getPassword() {
+    return pool.getPassword();
+  }
+
+  @Override
+  public void setPassword(String password) {
+    pool.setPassword(password);
+  }
+
+  @Override
+  public int getInitialSize() {
+    return pool.getInitialSize();
+  }
+
+  @Override
+  public void setInitialSize(int initialSize) {
+    pool.setInitialSize(initialSize);
+  }
+
+  @Override
+  public int getMaxTotal() {
+    return pool.getMaxTotal();
+  }
+
+  @Override
+  public void setMaxTotal(int maxTotal) {
+    pool.setMaxTotal(maxTotal);
+  }
+
+  @Override
+  public int getMaxIdle() {
+    return pool.getMaxIdle();
+  }
+
+  @Override
+  public void setMaxWaitMillis(long maxWaitMillis) {
+    this.maxWaitMillis = maxWaitMillis;
+    pool.setMaxWaitMillis(maxWaitMillis);
+  }
+
+  @Override
+  public void resize(int maxTotal) {
+    pool.resize(maxTotal);
+    lock.lock();
+    try {
+      returned.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int getNumActive() {
+    return pool.getNumActive();
+  }
+
+  @Override
+  public int getNumIdle() {
+    return pool.getNumIdle();
+  }
+
+  @Override
+  public void close() throws SQLException {
+    pool.close();
+  }
+
+  /**
+   * The Connection handed to callers: closing it also lets the next
+   * borrower in. Everything else, unwrap included, goes to the pool's
+   * connection.
+   */
+  private final class GatedConnection implements InvocationHandler {
+    private final Connection con;
+    private boolean closed = false;
+
+    GatedConnection(Connection con) {
+      this.con = con;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if ("close".equals(name) && method.getParameterCount() == 0) {
+        if (!closed) {
+          closed = true;
+          try {
+            con.close();
+          } finally {
+            exit();
+          }
+        }
+        return null;
+      }
+      if (method.getDeclaringClass() == Object.class) {
+        if ("equals".equals(name))
+          return Boolean.valueOf(proxy == args[0]);
+        if ("hashCode".equals(name))
+          return Integer.valueOf(System.identityHashCode(proxy));
+        return "Gated " + con;
+      }
+      try {
+        return method.invoke(con, args);
+      } catch (InvocationTargetException x) {
+        throw x.getCause();
+      }
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * The connection pool behind a {@link PostgresConnectionFactory}.
+ * Connections handed out go back to the pool when they are closed.
+ * The ConnectionPool property picks the implementation: "dbcp" for
+ * {@link DbcpConnectionPool} or "affinity" for {@link AffinityConnectionPool}.
+ */
+interface IConnectionPool {
+
+  Connection getConnection() throws SQLException;
+
+  String getUrl();
+
+  void setUrl(String url);
+
+  String getUsername();
+
+  void setUsername(String user);
+
+  String getPassword();
+
+  void setPassword(String password);
+
+  int getInitialSize();
+
+  void setInitialSize(int initialSize);
+
+  int getMaxTotal();
+
+  void setMaxTotal(int maxTotal);
+
+  /**
+   * @return How many idle connections the pool keeps; any more are
+   *         closed as they come back.
+   */
+  int getMaxIdle();
+
+  /**
+   * @param maxWaitMillis How long getConnection waits for a free
+   *                      connection; a negative value waits forever.
+   */
+  void setMaxWaitMillis(long maxWaitMillis);
+
+  /**
+   * Change the pool limit while it is in use. Surplus idle connections
+   * are closed rather than kept.
+   */
+  void resize(int maxTotal);
+
+  /**
+   * @return The number of connections currently borrowed.
+   */
+  int getNumActive();
+
+  /**
+   * @return The number of open connections waiting in the pool.
+   */
+  int getNumIdle();
+
+  void close() throws SQLException;
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+/**
+ * A single-row <code>INSERT ... VALUES (...)</code> split around its
+ * VALUES tuple, so it can be rebuilt with the tuple repeated for a
+ * multi-row insert. Statements that carry parameters outside the tuple,
+ * already insert several rows, or use RETURNING are not rewritten.
+ */
+class InsertTemplate {
+  private final String prefix;
+  private final String tuple;
+  private final String suffix;
+
+  private InsertTemplate(String prefix, String tuple, String suffix) {
+    this.prefix = prefix;
+    this.tuple = tuple;
+    this.suffix = suffix;
+  }
+
+  /**
+   * @return the template, or <code>null</code> if the statement cannot be rewritten
+   */
+  static InsertTemplate parse(String sql) {
+    String trimmed = CountQueries.strip(sql).trim();
+    if (!trimmed.regionMatches(true, 0, "INSERT", 0, 6))
+      return null;
+
+    int values = findKeyword(trimmed, "values");
+    if (values < 0)
+      return null;
+    int open = values + 6;
+    while (open < trimmed.length() && Character.isWhitespace(trimmed.charAt(open)))
+      open++;
+    if (open >= trimmed.length() || trimmed.charAt(open) != '(')
+      return null;
+    int close = matchingParen(trimmed, open);
+    if (close < 0)
+      return null;
+
+    String prefix = trimmed.substring(0, open);
+    String tuple = trimmed.substring(open, close + 1);
+    String suffix = trimmed.substring(close + 1);
+    String rest = suffix.trim();
+    if (rest.startsWith(",") || findKeyword(rest, "returning") >= 0)
+      return null;
+    if (countPlaceholders(prefix) > 0 || countPlaceholders(suffix) > 0)
+      return null;
+    return new InsertTemplate(prefix, tuple, suffix);
+  }
+
+  /**
+   * @return the statement inserting <code>rows</code> rows
+   */
+  String build(int rows) {
+    StringBuilder sb = new StringBuilder(prefix.length() + suffix.length()
+                                         + rows * (tuple.length() + 1));
+    sb.append(prefix);
+    for (int i = 0; i < rows; i++) {
+      if (i > 0)
+        sb.append(',');
+      sb.append(tuple);
+    }
+    return sb.append(suffix).toString();
+  }
+
+  /**
+   * Find a keyword outside quotes, as a whole word.
+   */
+  private static int findKeyword(String sql, String word) {
+    int len = sql.length();
+    for (int i = 0; i < len; i++) {
+      char c = sql.charAt(i);
+      if (c == '\'' || c == '"') {
+        i = skipQuoted(sql, i);
+        if (i < 0)
+          return -1;
+      } else if (sql.regionMatches(true, i, word, 0, word.length())
+                 && (i == 0 || !isWordChar(sql.charAt(i - 1)))
+                 && (i + word.length() == len || !isWordChar(sql.charAt(i + word.length())))) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int matchingParen(String sql, int open) {
+    int depth = 0;
+    for (int i = open; i < sql.length(); i++) {
+      char c = sql.charAt(i);
+      if (c == '\'' || c == '"') {
+        i = skipQuoted(sql, i);
+        if (i < 0)
+          return -1;
+      } else if (c == '(') {
+        depth++;
+      } else if (c == ')' && --depth == 0) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int countPlaceholders(String sql) {
+    int n = 0;
+    for (int i = 0; i < sql.length(); i++) {
+      char c = sql.charAt(i);
+      if (c == '\'' || c == '"') {
+        i = skipQuoted(sql, i);
+        if (i < 0)
+          return n;
+      } else if (c == '?') {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * @return the index of the closing quote, or -1 if unterminated
+   */
+  private static int skipQuoted(String sql, int start) {
+    char q = sql.charAt(start);
+    for (int i = start + 1; i < sql.length(); i++) {
+      if (sql.charAt(i) == q) {
+        if (i + 1 < sql.length() && sql.charAt(i + 1) == q)
+          i++;  // doubled quote
+        else
+          return i;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean isWordChar(char c) {
+    return Character.isLetterOrDigit(c) || c == '_';
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+import org.topicquests.pg.api.Operation;
+
+/**
+ * Flight Recorder events for connection borrows, statements and
+ * transaction control, so recordings show database time on the same
+ * timeline as CPU and GC.
+ * <p>
+ * Only reached through {@link JfrSupport}, and only while a recording
+ * runs. Events are handed to callers as Object so that no other class
+ * refers to jdk.jfr. Fields are filled in, and the SQL fingerprinted,
+ * only if the event is going to be committed.
+ */
+final class JfrEvents {
+
+  private JfrEvents() {
+  }
+
+  static void register() {
+    FlightRecorder.register(BorrowEvent.class);
+    FlightRecorder.register(StatementEvent.class);
+    FlightRecorder.register(TransactionEvent.class);
+    FlightRecorder.addListener(new FlightRecorderListener() {
+      @Override
+      public void recordingStateChanged(Recording recording) {
+        JfrSupport.setRecording(anyRunning());
+      }
+    });
+    if (FlightRecorder.isInitialized())
+      JfrSupport.setRecording(anyRunning());
+  }
+
+  private static boolean anyRunning() {
+    for (Recording r : FlightRecorder.getFlightRecorder().getRecordings()) {
+      if (r.getState() == RecordingState.RUNNING)
+        return true;
+    }
+    return false;
+  }
+
+  static Object beginBorrow() {
+    BorrowEvent e = new BorrowEvent();
+    e.begin();
+    return e;
+  }
+
+  static void endBorrow(Object event, String url, int numActive, boolean failed) {
+    BorrowEvent e = (BorrowEvent)event;
+    e.end();
+    if (e.shouldCommit()) {
+      e.url = url;
+      e.numActive = numActive;
+      e.failed = failed;
+      e.commit();
+    }
+  }
+
+  static Object beginStatement() {
+    StatementEvent e = new StatementEvent();
+    e.begin();
+    return e;
+  }
+
+  /**
+   * @param fingerprint The fingerprint of <code>sql</code>, or <code>null</code>
+   *                    to have it worked out if the event is kept
+   */
+  static void endStatement(Object event, Operation op, String sql, String fingerprint,
+                           String role, long rows, boolean failed) {
+    StatementEvent e = (StatementEvent)event;
+    e.end();
+    if (e.shouldCommit()) {
+      e.operation = op.name();
+      if (fingerprint == null && sql != null)
+        fingerprint = SqlFingerprint.normalize(sql);
+      e.fingerprint = fingerprint;
+      e.role = role;
+      e.rows = rows;
+      e.failed = failed;
+      e.commit();
+    }
+  }
+
+  static Object beginTransaction() {
+    TransactionEvent e = new TransactionEvent();
+    e.begin();
+    return e;
+  }
+
+  static void endTransaction(Object event, String action, String role, boolean failed) {
+    TransactionEvent e = (TransactionEvent)event;
+    e.end();
+    if (e.shouldCommit()) {
+      e.action = action;
+      e.role = role;
+      e.failed = failed;
+      e.commit();
+    }
+  }
+
+  @Name("org.topicquests.pg.ConnectionBorrow")
+  @Label("Connection Borrow")
+  @Description("Waiting for a pooled PostgreSQL connection")
+  @Category({"TopicQuests", "PostgreSQL"})
+  static class BorrowEvent extends Event {
+    @Label("URL")
+    String url;
+
+    @Label("Active Connections")
+    int numActive;
+
+    @Label("Failed")
+    boolean failed;
+  }
+
+  @Name("org.topicquests.pg.Statement")
+  @Label("Statement")
+  @Description("A statement run through PostgresConnection or a statement handle")
+  @Category({"TopicQuests", "PostgreSQL"})
+  static class StatementEvent extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Fingerprint")
+    @Description("The SQL with its literals replaced by ?")
+    String fingerprint;
+
+    @Label("Role")
+    String role;
+
+    @Label("Rows")
+    long rows;
+
+    @Label("Failed")
+    boolean failed;
+  }
+
+  @Name("org.topicquests.pg.Transaction")
+  @Label("Transaction Control")
+  @Description("beginTransaction, endTransaction (commit) or rollback")
+  @Category({"TopicQuests", "PostgreSQL"})
+  static class TransactionEvent extends Event {
+    @Label("Action")
+    String action;
+
+    @Label("Role")
+    String role;
+
+    @Label("Failed")
+    boolean failed;
+  }
+}
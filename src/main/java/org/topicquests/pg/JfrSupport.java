@@ -0,0 +1,55 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+/**
+ * Whether the Java Flight Recorder events in {@link JfrEvents} should be
+ * emitted. This class does not touch jdk.jfr, so callers can check
+ * {@link #isRecording()} on every statement at the cost of one volatile
+ * read, and on a JVM without JFR nothing else is ever loaded.
+ */
+final class JfrSupport {
+  private static volatile boolean recording = false;
+  private static boolean installed = false;
+
+  private JfrSupport() {
+  }
+
+  /**
+   * @return <code>true</code> while a flight recording is running
+   */
+  static boolean isRecording() {
+    return recording;
+  }
+
+  static void setRecording(boolean running) {
+    recording = running;
+  }
+
+  /**
+   * Start following flight recordings. Only the first call does anything.
+   */
+  static synchronized void install(PostgresConnectionFactory env) {
+    if (installed)
+      return;
+    installed = true;
+    try {
+      JfrEvents.register();
+    } catch (LinkageError e) {
+      env.logDebug("PostgresConnectionFactory JFR not available: "+e);
+    }
+  }
+}
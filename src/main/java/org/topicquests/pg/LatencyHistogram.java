@@ -0,0 +1,145 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in microseconds. Buckets are
+ * exact up to 8 us and then split each power of two into 8, so any
+ * percentile is within 12.5% of the true value. Recording is one
+ * atomic increment. {@link #snapshotAndReset()} drains the counts for
+ * interval-based readings; {@link #snapshot()} reads running totals.
+ */
+class LatencyHistogram {
+  private static final int SUB_BITS = 3;
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+  private static final int BUCKETS = 64 * SUB_COUNT;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLongArray sums = new AtomicLongArray(BUCKETS);
+
+  void recordNanos(long nanos) {
+    long micros = Math.max(nanos / 1000L, 0L);
+    int i = indexOf(micros);
+    counts.incrementAndGet(i);
+    sums.addAndGet(i, micros);
+  }
+
+  /**
+   * Read the counts recorded so far, leaving them in place.
+   */
+  Snapshot snapshot() {
+    long[] c = new long[BUCKETS];
+    long total = 0, sum = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      c[i] = counts.get(i);
+      if (c[i] != 0) {
+        sum += sums.get(i);
+        total += c[i];
+      }
+    }
+    return new Snapshot(c, total, sum);
+  }
+
+  /**
+   * Take the counts recorded so far and start again from zero.
+   */
+  Snapshot snapshotAndReset() {
+    long[] c = new long[BUCKETS];
+    long total = 0, sum = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      if (counts.get(i) != 0) {
+        c[i] = counts.getAndSet(i, 0);
+        sum += sums.getAndSet(i, 0);
+        total += c[i];
+      }
+    }
+    return new Snapshot(c, total, sum);
+  }
+
+  static int indexOf(long micros) {
+    if (micros < SUB_COUNT)
+      return (int)micros;
+    int exp = 63 - Long.numberOfLeadingZeros(micros);
+    int sub = (int)(micros >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+    return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+  }
+
+  /**
+   * @return the largest value that falls in bucket <code>i</code>
+   */
+  static long upperBound(int i) {
+    if (i < SUB_COUNT)
+      return i;
+    int exp = i / SUB_COUNT + SUB_BITS - 1;
+    long lower = (long)(SUB_COUNT + i % SUB_COUNT) << (exp - SUB_BITS);
+    return lower + (1L << (exp - SUB_BITS)) - 1;
+  }
+
+  /**
+   * The counts of one interval.
+   */
+  static final class Snapshot {
+    private final long[] counts;
+    private final long count;
+    private final long sumMicros;
+
+    Snapshot(long[] counts, long count, long sumMicros) {
+      this.counts = counts;
+      this.count = count;
+      this.sumMicros = sumMicros;
+    }
+
+    long getCount() {
+      return count;
+    }
+
+    long getMeanMicros() {
+      return (count == 0) ? 0 : sumMicros / count;
+    }
+
+    /**
+     * @return the upper bound of the highest bucket recorded into; 0 if none
+     */
+    long getMaxMicros() {
+      for (int i = counts.length - 1; i >= 0; i--) {
+        if (counts[i] != 0)
+          return upperBound(i);
+      }
+      return 0;
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return the value in microseconds at or below which <code>percentile</code>
+     *         percent of the recorded values fall; 0 if nothing was recorded
+     */
+    long getPercentileMicros(double percentile) {
+      if (count == 0)
+        return 0;
+      long rank = (long)Math.ceil(count * percentile / 100.0);
+      rank = Math.max(1, Math.min(rank, count));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank)
+          return upperBound(i);
+      }
+      return upperBound(counts.length - 1);
+    }
+  }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds connections and query handles that are not given back.
+ * <p>
+ * Every borrowed connection is registered with its thread and borrow
+ * time; one in LeakDetectionSampleRate borrows, and query handles opened
+ * on them, also capture the stack that created them. This thread checks
+ * the borrowed connections and logs each one held longer than
+ * LeakHoldThresholdMillis once, with its borrow stack if sampled and
+ * the holder's current stack. A borrow that waits longer than
+ * LeakBorrowWaitDumpMillis logs every holder, at most once per interval;
+ * borrows still waiting are checked too, as one blocked without a pool
+ * timeout would otherwise never be seen.
+ * Query handles still open when their connection is closed are logged
+ * with their stack if sampled.
+ */
+class LeakDetector extends Thread {
+  private static final long MIN_DUMP_INTERVAL_MILLIS = 10000;
+
+  private final PostgresConnectionFactory environment;
+  private final int sampleRate;
+  private final long holdThresholdNanos;
+  private final long borrowWaitNanos;
+  private final Map<PostgresConnection, Holder> holders =
+      new ConcurrentHashMap<PostgresConnection, Holder>();
+  // when each thread now waiting in a borrow started it
+  private final Map<Thread, Long> waiting = new ConcurrentHashMap<Thread, Long>();
+  private final AtomicLong lastDump = new AtomicLong();
+  private volatile boolean running = true;
+
+  LeakDetector(PostgresConnectionFactory env, int sampleRate, long holdThresholdMillis,
+               long borrowWaitMillis) {
+    super("tq-pg-leak-detector");
+    setDaemon(true);
+    this.environment = env;
+    this.sampleRate = Math.max(1, sampleRate);
+    this.holdThresholdNanos = holdThresholdMillis * 1000000L;
+    this.borrowWaitNanos = borrowWaitMillis * 1000000L;
+  }
+
+  /**
+   * @return a stack for where <code>what</code> was created, for one in
+   *         sampleRate calls, otherwise <code>null</code>
+   */
+  Exception sample(String what) {
+    if (sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0)
+      return new Exception(what + " here");
+    return null;
+  }
+
+  void borrowed(PostgresConnection conn, long borrowedAt) {
+    holders.put(conn, new Holder(Thread.currentThread(), borrowedAt, sample("borrowed")));
+  }
+
+  void returned(PostgresConnection conn) {
+    holders.remove(conn);
+  }
+
+  /**
+   * Note that this thread is waiting for a connection since <code>start</code>.
+   */
+  void borrowStarted(long start) {
+    waiting.put(Thread.currentThread(), Long.valueOf(start));
+  }
+
+  void borrowEnded() {
+    waiting.remove(Thread.currentThread());
+  }
+
+  /**
+   * Report a query handle still open as its connection is closed.
+   */
+  void handleLeaked(Exception opened) {
+    environment.logError("LeakDetector query handle not closed before its connection"
+        + " on thread " + Thread.currentThread().getName()
+        + ((opened == null) ? " (not sampled)" : ""), opened);
+  }
+
+  /**
+   * Dump the holders if a borrow waited too long.
+   */
+  void borrowWaited(long nanos) {
+    borrowWaited("waited", nanos);
+  }
+
+  private void borrowWaited(String state, long nanos) {
+    if (borrowWaitNanos <= 0 || nanos < borrowWaitNanos)
+      return;
+    long now = System.currentTimeMillis();
+    long last = lastDump.get();
+    if (now - last < MIN_DUMP_INTERVAL_MILLIS || !lastDump.compareAndSet(last, now))
+      return;
+    environment.logError(dump(state, nanos), null);
+  }
+
+  /**
+   * Describe every borrowed connection and its holder.
+   */
+  private String dump(String state, long waitNanos) {
+    long now = System.nanoTime();
+    List<Holder> list = new ArrayList<Holder>(holders.values());
+    StringBuilder buf = new StringBuilder();
+    buf.append("LeakDetector borrow ").append(state).append(' ').append(waitNanos / 1000000L)
+       .append("ms; ").append(list.size()).append(" connections held");
+    for (Holder h : list) {
+      buf.append("\n  held ").append((now - h.borrowedAt) / 1000000L)
+         .append("ms by ").append(h.thread.getName());
+      appendStack(buf, "borrowed at", h.stack);
+      appendStack(buf, "now at", h.thread);
+    }
+    return buf.toString();
+  }
+
+  private static void appendStack(StringBuilder buf, String label, Exception stack) {
+    if (stack != null)
+      appendFrames(buf, label, stack.getStackTrace());
+  }
+
+  private static void appendStack(StringBuilder buf, String label, Thread thread) {
+    if (thread.isAlive())
+      appendFrames(buf, label, thread.getStackTrace());
+  }
+
+  private static void appendFrames(StringBuilder buf, String label, StackTraceElement[] frames) {
+    buf.append("\n    ").append(label);
+    for (StackTraceElement e : frames)
+      buf.append("\n      ").append(e);
+  }
+
+  @Override
+  public void run() {
+    long sleepMillis = 5000L;
+    if (holdThresholdNanos > 0)
+      sleepMillis = Math.min(sleepMillis, holdThresholdNanos / 2000000L);
+    if (borrowWaitNanos > 0)
+      sleepMillis = Math.min(sleepMillis, borrowWaitNanos / 2000000L);
+    sleepMillis = Math.max(100L, sleepMillis);
+    while (running) {
+      try {
+        Thread.sleep(sleepMillis);
+      } catch (InterruptedException e) {
+        break;
+      }
+      check(System.nanoTime());
+    }
+  }
+
+  /**
+   * Log each connection held past the threshold, once, and dump the
+   * holders if a borrow has been waiting too long.
+   */
+  void check(long now) {
+    long longest = 0;
+    for (Long start : waiting.values())
+      longest = Math.max(longest, now - start.longValue());
+    borrowWaited("waiting for", longest);
+    if (holdThresholdNanos <= 0)
+      return;
+    for (Holder h : holders.values()) {
+      long held = now - h.borrowedAt;
+      if (held < holdThresholdNanos || h.reported)
+        continue;
+      h.reported = true;
+      StringBuilder buf = new StringBuilder();
+      buf.append("LeakDetector connection held ").append(held / 1000000L)
+         .append("ms by ").append(h.thread.getName());
+      if (h.stack == null)
+        buf.append(" (borrow not sampled)");
+      appendStack(buf, "now at", h.thread);
+      environment.logError(buf.toString(), h.stack);
+    }
+  }
+
+  void shutDown() {
+    running = false;
+    interrupt();
+  }
+
+  private static final class Holder {
+    final Thread thread;
+    final long borrowedAt;
+    final Exception stack;
+    // only this thread writes it
+    boolean reported = false;
+
+    Holder(Thread thread, long borrowedAt, Exception stack) {
+      this.thread = thread;
+      this.borrowedAt = borrowedAt;
+      this.stack = stack;
+    }
+  }
+}
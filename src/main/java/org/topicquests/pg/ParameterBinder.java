@@ -0,0 +1,166 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.*;
+
+import org.topicquests.support.RootEnvironment;
+
+/**
+ * Binds parameter values to a PreparedStatement with the setter that
+ * matches their class.
+ * <p>
+ * String, Long and Integer, which make up most parameters, are matched
+ * on their exact class. For any other class the setter is worked out
+ * once, in the order listed in {@link #codeFor(Class)}, and cached per
+ * class as a small code that selects the setter in a switch. Subclasses,
+ * streams and LOB interfaces no longer walk the whole instanceof chain.
+ * <p>
+ * A class with no specific setter is bound with setObject and reported
+ * once through the environment's debug log.
+ */
+class ParameterBinder {
+  // Setter codes; the order of the checks in codeFor matters, not these values
+  private static final int OBJECT = 0, STRING = 1, INT = 2, LONG = 3, BYTE = 4,
+      SHORT = 5, FLOAT = 6, DOUBLE = 7, BOOLEAN = 8, BYTES = 9, BIG_DECIMAL = 10,
+      SQL_DATE = 11, TIME = 12, TIMESTAMP = 13, STREAM = 14, BLOB = 15, CLOB = 16,
+      DATE = 17, BIG_INTEGER = 18;
+
+  private final RootEnvironment environment;
+  private final ClassValue<Integer> codes = new ClassValue<Integer>() {
+    @Override
+    protected Integer computeValue(Class<?> type) {
+      return Integer.valueOf(codeFor(type));
+    }
+  };
+
+  ParameterBinder(RootEnvironment env) {
+    this.environment = env;
+  }
+
+  /**
+   * Bind <code>vals</code> to <code>s</code> as parameters 1..n.
+   */
+  void bind(PreparedStatement s, Object... vals) throws SQLException {
+    if (vals == null)
+      return;
+    int len = vals.length;
+    for (int i = 0; i < len; i++)
+      bind(s, i+1, vals[i]);
+  }
+
+  /**
+   * Bind one value. The common final classes are matched directly,
+   * which the JIT reduces to a pointer compare; any other class goes
+   * through the cached per-class code.
+   */
+  void bind(PreparedStatement s, int index, Object v) throws SQLException {
+    if (v == null) {
+      s.setNull(index, Types.OTHER);
+      return;
+    }
+    Class<?> type = v.getClass();
+    if (type == String.class)
+      s.setString(index, (String)v);
+    else if (type == Long.class)
+      bindLong(s, index, ((Long)v).longValue());
+    else if (type == Integer.class)
+      s.setInt(index, ((Integer)v).intValue());
+    else
+      bind(s, index, codes.get(type).intValue(), v);
+  }
+
+  private static void bindLong(PreparedStatement s, int i, long x) throws SQLException {
+    // -1 is the "no value" marker for bigint columns
+    if (x == -1)
+      s.setNull(i, Types.BIGINT);
+    else
+      s.setLong(i, x);
+  }
+
+  private static void bind(PreparedStatement s, int i, int code, Object v) throws SQLException {
+    switch (code) {
+      case STRING:      s.setString(i, (String)v); break;
+      case INT:         s.setInt(i, ((Integer)v).intValue()); break;
+      case LONG:        bindLong(s, i, ((Long)v).longValue()); break;
+      case BYTE:        s.setInt(i, ((Byte)v).intValue()); break;
+      case SHORT:       s.setShort(i, ((Short)v).shortValue()); break;
+      case FLOAT:       s.setFloat(i, ((Float)v).floatValue()); break;
+      case DOUBLE:      s.setDouble(i, ((Double)v).doubleValue()); break;
+      case BOOLEAN:     s.setBoolean(i, ((Boolean)v).booleanValue()); break;
+      case BYTES:       s.setBytes(i, (byte[])v); break;
+      case BIG_DECIMAL: s.setBigDecimal(i, (BigDecimal)v); break;
+      case SQL_DATE:    s.setDate(i, (java.sql.Date)v); break;
+      case TIME:        s.setTime(i, (Time)v); break;
+      case TIMESTAMP:   s.setTimestamp(i, (Timestamp)v); break;
+      case STREAM:      s.setBinaryStream(i, (InputStream)v, -1); break;
+      case BLOB:        s.setBlob(i, (Blob)v); break;
+      case CLOB:        s.setClob(i, (Clob)v); break;
+      case DATE:        s.setTimestamp(i, new Timestamp(((java.util.Date)v).getTime())); break;
+      case BIG_INTEGER: s.setString(i, v.toString()); break;
+      default:          s.setObject(i, v);
+    }
+  }
+
+  /**
+   * Pick the setter for a class. More specific classes come first, so
+   * java.sql.Date, Time and Timestamp win over java.util.Date.
+   */
+  private int codeFor(Class<?> type) {
+    if (type == String.class)
+      return STRING;
+    if (type == Integer.class)
+      return INT;
+    if (type == Long.class)
+      return LONG;
+    if (type == Byte.class)
+      return BYTE;
+    if (type == Short.class)
+      return SHORT;
+    if (type == Float.class)
+      return FLOAT;
+    if (type == Double.class)
+      return DOUBLE;
+    if (type == Boolean.class)
+      return BOOLEAN;
+    if (type == byte[].class)
+      return BYTES;
+    if (BigDecimal.class.isAssignableFrom(type))
+      return BIG_DECIMAL;
+    if (java.sql.Date.class.isAssignableFrom(type))
+      return SQL_DATE;
+    if (Time.class.isAssignableFrom(type))
+      return TIME;
+    if (Timestamp.class.isAssignableFrom(type))
+      return TIMESTAMP;
+    if (InputStream.class.isAssignableFrom(type))
+      return STREAM;
+    if (Blob.class.isAssignableFrom(type))
+      return BLOB;
+    if (Clob.class.isAssignableFrom(type))
+      return CLOB;
+    if (java.util.Date.class.isAssignableFrom(type))
+      return DATE;
+    if (BigInteger.class.isAssignableFrom(type))
+      return BIG_INTEGER;
+
+    environment.logDebug("BadParam no setter for "+type.getName()+", using setObject");
+    return OBJECT;
+  }
+}
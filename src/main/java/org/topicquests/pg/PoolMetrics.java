@@ -0,0 +1,220 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.topicquests.pg.api.IPoolMetricsMXBean;
+import org.topicquests.pg.api.Operation;
+import org.topicquests.pg.api.PoolStatistics;
+
+/**
+ * Counts what a {@link PostgresConnectionFactory} and its connections
+ * do. Recording is lock-free: one atomic update per event, and a
+ * {@link LatencyHistogram} for borrow waits and hold times. Readings
+ * are taken from the counters as they stand, so a snapshot made under
+ * load is consistent per figure rather than across figures.
+ */
+class PoolMetrics implements IPoolMetricsMXBean {
+  private static final Operation[] OPERATIONS = Operation.values();
+
+  private final IConnectionPool pool;
+  private final AtomicInteger waiting = new AtomicInteger();
+  private final LatencyHistogram borrowWaits = new LatencyHistogram();
+  private final LatencyHistogram holdTimes = new LatencyHistogram();
+  private final AtomicLongArray operations = new AtomicLongArray(OPERATIONS.length);
+  private final ConcurrentHashMap<String, AtomicLong> errors =
+      new ConcurrentHashMap<String, AtomicLong>();
+  private final AtomicLong rowsReturned = new AtomicLong();
+  private final AtomicLong rowsAffected = new AtomicLong();
+
+  PoolMetrics(IConnectionPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Call before asking the pool for a connection.
+   */
+  void borrowStarted() {
+    waiting.incrementAndGet();
+  }
+
+  /**
+   * Call once the pool has answered, with or without a connection.
+   */
+  void borrowEnded(long waitNanos) {
+    waiting.decrementAndGet();
+    borrowWaits.recordNanos(waitNanos);
+  }
+
+  void recordHoldTime(long nanos) {
+    holdTimes.recordNanos(nanos);
+  }
+
+  void recordOperation(Operation op) {
+    operations.incrementAndGet(op.ordinal());
+  }
+
+  /**
+   * @param code A PGD code, e.g. "PGD-17"
+   */
+  void recordError(String code) {
+    AtomicLong n = errors.get(code);
+    if (n == null) {
+      AtomicLong fresh = new AtomicLong();
+      n = errors.putIfAbsent(code, fresh);
+      if (n == null)
+        n = fresh;
+    }
+    n.incrementAndGet();
+  }
+
+  void recordRowsReturned(long rows) {
+    if (rows > 0)
+      rowsReturned.addAndGet(rows);
+  }
+
+  void recordRowsAffected(long rows) {
+    if (rows > 0)
+      rowsAffected.addAndGet(rows);
+  }
+
+  PoolStatistics snapshot() {
+    Map<Operation, Long> ops = new EnumMap<Operation, Long>(Operation.class);
+    for (int i = 0; i < OPERATIONS.length; i++) {
+      long n = operations.get(i);
+      if (n != 0)
+        ops.put(OPERATIONS[i], Long.valueOf(n));
+    }
+    return new PoolStatistics(getNumActive(), getNumIdle(), getNumWaiting(), getMaxTotal(),
+        latency(borrowWaits.snapshot()), latency(holdTimes.snapshot()),
+        ops, getErrorCounts(), rowsReturned.get(), rowsAffected.get());
+  }
+
+  private static PoolStatistics.Latency latency(LatencyHistogram.Snapshot s) {
+    return new PoolStatistics.Latency(s.getCount(), s.getMeanMicros(),
+        s.getPercentileMicros(50), s.getPercentileMicros(95),
+        s.getPercentileMicros(99), s.getMaxMicros());
+  }
+
+  @Override
+  public int getNumActive() {
+    return pool.getNumActive();
+  }
+
+  @Override
+  public int getNumIdle() {
+    return pool.getNumIdle();
+  }
+
+  @Override
+  public int getNumWaiting() {
+    return waiting.get();
+  }
+
+  @Override
+  public int getMaxTotal() {
+    return pool.getMaxTotal();
+  }
+
+  @Override
+  public long getBorrowCount() {
+    return borrowWaits.snapshot().getCount();
+  }
+
+  @Override
+  public long getBorrowWaitMeanMicros() {
+    return borrowWaits.snapshot().getMeanMicros();
+  }
+
+  @Override
+  public long getBorrowWaitP95Micros() {
+    return borrowWaits.snapshot().getPercentileMicros(95);
+  }
+
+  @Override
+  public long getBorrowWaitP99Micros() {
+    return borrowWaits.snapshot().getPercentileMicros(99);
+  }
+
+  @Override
+  public long getBorrowWaitMaxMicros() {
+    return borrowWaits.snapshot().getMaxMicros();
+  }
+
+  @Override
+  public long getHoldTimeMeanMicros() {
+    return holdTimes.snapshot().getMeanMicros();
+  }
+
+  @Override
+  public long getHoldTimeP95Micros() {
+    return holdTimes.snapshot().getPercentileMicros(95);
+  }
+
+  @Override
+  public long getHoldTimeP99Micros() {
+    return holdTimes.snapshot().getPercentileMicros(99);
+  }
+
+  @Override
+  public long getHoldTimeMaxMicros() {
+    return holdTimes.snapshot().getMaxMicros();
+  }
+
+  @Override
+  public Map<String, Long> getOperationCounts() {
+    Map<String, Long> result = new TreeMap<String, Long>();
+    for (int i = 0; i < OPERATIONS.length; i++)
+      result.put(OPERATIONS[i].name(), Long.valueOf(operations.get(i)));
+    return result;
+  }
+
+  @Override
+  public Map<String, Long> getErrorCounts() {
+    Map<String, Long> result = new TreeMap<String, Long>();
+    for (Map.Entry<String, AtomicLong> e : errors.entrySet())
+      result.put(e.getKey(), Long.valueOf(e.getValue().get()));
+    return result;
+  }
+
+  @Override
+  public long getRowsReturned() {
+    return rowsReturned.get();
+  }
+
+  @Override
+  public long getRowsAffected() {
+    return rowsAffected.get();
+  }
+
+  @Override
+  public void reset() {
+    borrowWaits.snapshotAndReset();
+    holdTimes.snapshotAndReset();
+    for (int i = 0; i < OPERATIONS.length; i++)
+      operations.set(i, 0);
+    errors.clear();
+    rowsReturned.set(0);
+    rowsAffected.set(0);
+  }
+}
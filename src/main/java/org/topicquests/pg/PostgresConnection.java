@@ -15,26 +15,79 @@
  */
 package org.topicquests.pg;
 
-import java.io.InputStream;
-import java.math.BigInteger;
-import java.math.BigDecimal;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.*;
 import java.util.*;
 
+import javax.sql.rowset.CachedRowSet;
+
+import org.topicquests.pg.api.CopyFormat;
+import org.topicquests.pg.api.CopyStatistics;
+import org.topicquests.pg.api.CountMode;
+import org.topicquests.pg.api.ICopyProgressListener;
 import org.topicquests.pg.api.IPostgresConnection;
+import org.topicquests.pg.api.IRowPublisher;
+import org.topicquests.pg.api.IStatementListener;
+import org.topicquests.pg.api.Operation;
+import org.topicquests.pg.api.StatementContext;
 import org.topicquests.support.ResultPojo;
 import org.topicquests.support.RootEnvironment;
 import org.topicquests.support.api.IResult;
 
 import org.apache.commons.dbcp2.*;
+import org.postgresql.PGConnection;
 
 public class PostgresConnection implements IPostgresConnection {
 	private PostgresConnectionFactory environment;
 	private Connection conn = null;
+	private String currentRole = null;
+  // the physical connection, whose role the factory tracks, or null
+  private final Connection physical;
+  // session settings changed by this borrower, undone on return
+  private final SessionState session = new SessionState();
+  // whether this borrower has sent any role change
+  private boolean roleChanged = false;
+  // whether the role the last borrower left must be cleared before this one runs anything
+  private boolean roleResetPending = false;
+  // result sets still open, with the statements behind them
+  private List<QueryHandle> handles = null;
+  // statement handles from prepareStatement not yet closed
+  private List<PostgresStatement> prepared = null;
+  private StatementCache statements = null;
+  // tables written in the open transaction, whose cached results are dropped again at commit
+  private Set<String> written = null;
+  private long borrowedAt;
+  // parameters, rows and failure of the statement being timed
+  private Object[] statementParams;
+  private long statementRows;
+  private boolean statementFailed;
+  // the flight recorder event of that statement, while a recording runs
+  private Object statementEvent;
+  // the round-trip profiler's counters at its start, while profiling
+  private long[] statementTraffic;
+  // the running statement or transaction call, while listeners are registered
+  private StatementContext listenerContext;
+
+  /** Roles whose SELECT results may be served from the client cache */
+  private static final Set<String> READ_ONLY_ROLES = new HashSet<String>(
+      Arrays.asList("tq_proxy_ro", "tq_users_ro", "tq_conv_ro"));
 
   public PostgresConnection(Connection con, PostgresConnectionFactory env) {
     environment = env;
 	  conn = con;
+	  borrowedAt = System.nanoTime();
+	  physical = env.getTrackedConnection(con);
+	  if (physical != null) {
+	    roleResetPending = env.isRoleResetPending(physical);
+	    String role = env.getSessionRole(physical);
+	    if (!roleResetPending && role != null && !role.isEmpty())
+	      currentRole = role;
+	  }
   }
 
   /**
@@ -50,13 +103,17 @@ public class PostgresConnection implements IPostgresConnection {
    * {@inheritDoc}
    */
   public IResult beginTransaction(IResult result) {
+    // a reset sent inside the transaction would be undone by its rollback
+    clearPendingRole();
+    Object event = startControl("begin");
     try {
       if (conn != null)
         conn.setAutoCommit(false);
     } catch(SQLException e) {
-      result.addErrorString("PGD-1 "+e.getMessage());
+      addError(result, "PGD-1", e.getMessage());
     }
 
+    endControl(event, "begin");
     return result;
   }
 
@@ -74,16 +131,20 @@ public class PostgresConnection implements IPostgresConnection {
    */
   @Override
   public IResult endTransaction(IResult result) {
+    Object event = startControl("commit");
+    closeHandles(true);
     try {
       if (conn != null) {
         conn.commit();
         conn.setAutoCommit(true);
+        invalidateWritten();
       }
     } catch (SQLException e) {
     	environment.logError(e.getMessage(), e);
-      result.addErrorString("PGD-2 "+e.getMessage());
+      addError(result, "PGD-2", e.getMessage());
     }
 
+    endControl(event, "commit");
     return result;
   }
 
@@ -101,9 +162,7 @@ public class PostgresConnection implements IPostgresConnection {
    */
   @Override
   public IResult setProxyRole(IResult result) {
-    String role_sql = "SET ROLE tq_proxy";
-    resetRole(result);
-    return setRole(role_sql, result);
+    return setRole("tq_proxy", result);
   }
 
   /**
@@ -120,9 +179,7 @@ public class PostgresConnection implements IPostgresConnection {
    */
   @Override
   public IResult setUsersRole(IResult result) {
-    String role_sql = "SET ROLE tq_users";
-    resetRole(result);
-    return setRole(role_sql, result);
+    return setRole("tq_users", result);
   }
 
   /**
@@ -139,9 +196,7 @@ public class PostgresConnection implements IPostgresConnection {
    */
   @Override
   public IResult setConvRole(IResult result) {
-    String role_sql = "SET ROLE tq_conv";
-    resetRole(result);
-    return setRole(role_sql, result);
+    return setRole("tq_conv", result);
   }
 
   /**
@@ -158,9 +213,7 @@ public class PostgresConnection implements IPostgresConnection {
    */
   @Override
   public IResult setProxyRORole(IResult result) {
-    String role_sql = "SET ROLE tq_proxy_ro";
-    resetRole(result);
-    return setRole(role_sql, result);
+    return setRole("tq_proxy_ro", result);
   }
 
   /**
@@ -177,9 +230,7 @@ public class PostgresConnection implements IPostgresConnection {
    */
   @Override
   public IResult setUsersRORole(IResult result) {
-    String role_sql = "SET ROLE tq_users_ro";
-    resetRole(result);
-    return setRole(role_sql, result);
+    return setRole("tq_users_ro", result);
   }
 
   /**
@@ -196,9 +247,7 @@ public class PostgresConnection implements IPostgresConnection {
    */
   @Override
   public IResult setConvRORole(IResult result) {
-    String role_sql = "SET ROLE tq_conv_ro";
-    resetRole(result);
-    return setRole(role_sql, result);
+    return setRole("tq_conv_ro", result);
   }
 
   /**
@@ -215,21 +264,119 @@ public class PostgresConnection implements IPostgresConnection {
    */
   @Override
   public IResult resetRole(IResult result) {
-    String role_sql = "RESET ROLE";
-    return setRole(role_sql, result);
+    return setRole(null, result);
   }
 
-  private IResult setRole(String role_sql, IResult result) {
+  /**
+   * Put the session in <code>role</code>, or none if it is <code>null</code>.
+   * Nothing is sent if the physical connection is known to be in that
+   * role already, even if the last borrower's role was still to be
+   * cleared; otherwise the reset and the set go in one round trip.
+   */
+  private IResult setRole(String role, IResult result) {
     if (conn != null) {
+      String known = (physical == null) ? null : environment.getSessionRole(physical);
+      String wanted = (role == null) ? "" : role;
+      boolean pending = roleResetPending;
+      roleResetPending = false;
+      if (wanted.equals(known)) {
+        currentRole = role;
+        if (pending)
+          environment.setRoleResetPending(physical, false);
+        return result;
+      }
+      String role_sql;
+      if (role == null)
+        role_sql = "RESET ROLE";
+      else if ("".equals(known))
+        role_sql = "SET ROLE " + role;
+      else
+        role_sql = "RESET ROLE; SET ROLE " + role;
+      roleChanged = true;
       result = this.executeSQL(role_sql);
       if (result.hasError()) {
+        currentRole = null;
+        roleResetPending = pending;
         return result;
       }
+      currentRole = role;
+      // a role set inside a transaction lasts only if it commits
+      if (physical != null) {
+        if (inTransaction())
+          environment.setSessionRole(physical, null);
+        else {
+          environment.setSessionRole(physical, wanted);
+          if (pending)
+            environment.setRoleResetPending(physical, false);
+        }
+      }
     }
 
     return result;
   }
 
+  /**
+   * The session's role may have been changed by a statement, so neither
+   * this borrower nor the next may trust the remembered one.
+   */
+  private void roleUnknown() {
+    roleChanged = true;
+    if (physical != null)
+      environment.setSessionRole(physical, null);
+  }
+
+  private static boolean writes(Operation op) {
+    switch (op) {
+      case EXECUTE_SQL:
+      case EXECUTE_UPDATE:
+      case EXECUTE_BATCH:
+      case COPY_IN:
+      case STATEMENT_UPDATE:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Drop the cached results a successful write may have changed. Inside
+   * a transaction they are dropped again at commit, as a read on another
+   * connection could cache the old rows until then.
+   */
+  private void written(String sql) {
+    QueryResultCache cache = environment.getQueryCache();
+    if (cache == null)
+      return;
+    String table = QueryResultCache.writtenTable(sql);
+    if (table == null)
+      return;
+    cache.invalidate(table);
+    if (inTransaction()) {
+      if (written == null)
+        written = new HashSet<String>();
+      written.add(table);
+    }
+  }
+
+  private void invalidateWritten() {
+    if (written == null)
+      return;
+    QueryResultCache cache = environment.getQueryCache();
+    if (cache != null) {
+      for (String table : written)
+        cache.invalidate(table);
+    }
+    written = null;
+  }
+
+  private boolean inTransaction() {
+    try {
+      return !conn.getAutoCommit();
+    } catch (SQLException e) {
+      return true;
+    }
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -250,7 +397,7 @@ public class PostgresConnection implements IPostgresConnection {
         result.setResultObject(svpt);
       }
     } catch(SQLException e) {
-      result.addErrorString("PGD-3 "+e.getMessage());
+      addError(result, "PGD-3", e.getMessage());
     }
 
     return result;
@@ -276,7 +423,7 @@ public class PostgresConnection implements IPostgresConnection {
         result.setResultObject(svpt);
       }
     } catch(SQLException e) {
-      result.addErrorString("PGD-4 "+e.getMessage());
+      addError(result, "PGD-4", e.getMessage());
     }
 
     return result;
@@ -315,9 +462,13 @@ public class PostgresConnection implements IPostgresConnection {
    */
   @Override
   public IResult rollback(IResult result) {
+    Object obj = result.getResultObject();
+    String action = (obj == null) ? "rollback" : "rollback to savepoint";
+    Object event = startControl(action);
+    if (obj == null)
+      closeHandles(true);
     try {
       if (conn != null) {
-        Object obj = result.getResultObject();
 
         if (obj == null) {  // no savepoint in result object
           conn.rollback();
@@ -327,15 +478,195 @@ public class PostgresConnection implements IPostgresConnection {
         }
       }
     } catch(SQLException e) {
-      result.addErrorString("PGD-5 "+e.getMessage());
+      addError(result, "PGD-5", e.getMessage());
     }
 
+    endControl(event, action);
     return result;
   }
 
+  /**
+   * Add <code>code</code> and <code>message</code> to <code>result</code>,
+   * and count the error against its code.
+   */
+  private void addError(IResult result, String code, String message) {
+    reportError(code, message);
+    result.addErrorString(code+" "+message);
+  }
+
+  /**
+   * Count an error against its code and tell the listeners, for
+   * {@link #addError(IResult, String, String)} and handles that keep
+   * their own results.
+   */
+  void reportError(String code, String message) {
+    statementFailed = true;
+    environment.getMetrics().recordError(code);
+    IStatementListener[] ls = environment.getStatementListeners().get();
+    if (ls.length > 0)
+      environment.getStatementListeners().error(ls, listenerContext, code, message);
+  }
+
+  /**
+   * Start timing a statement.
+   * @return the start time, for {@link #endStatement(Operation, String, long)}
+   */
+  long startStatement(Operation op, String sql) {
+    clearPendingRole();
+    statementParams = null;
+    statementRows = 0;
+    statementFailed = false;
+    statementEvent = JfrSupport.isRecording() ? JfrEvents.beginStatement() : null;
+    statementTraffic = beginTraffic();
+    long start = System.nanoTime();
+    listenerContext = beginListeners(StatementContext.Kind.STATEMENT, op, null, sql, start);
+    return start;
+  }
+
+  /**
+   * Report a statement run by a handle, which counts its own rows.
+   * @param fingerprint The handle's fingerprint of <code>sql</code>, or <code>null</code>
+   */
+  void endStatement(Operation op, String sql, String fingerprint, long start, long rows,
+                    boolean failed) {
+    statementRows = rows;
+    statementFailed |= failed;
+    endStatement(op, sql, fingerprint, start);
+  }
+
+  private void endStatement(Operation op, String sql, long start) {
+    endStatement(op, sql, null, start);
+  }
+
+  /**
+   * Report a statement started with {@link #startStatement(Operation, String)},
+   * with the parameters, rows and errors seen since.
+   */
+  private void endStatement(Operation op, String sql, String fingerprint, long start) {
+    // a failed statement changed nothing once its transaction is rolled back;
+    // any other may, whichever call ran it (SET, set_config() in a SELECT...)
+    if (sql != null && !statementFailed && session.scan(sql))
+      roleUnknown();
+    if (sql != null && !statementFailed && writes(op))
+      written(sql);
+    environment.recordStatement(op, sql, fingerprint, statementParams, currentRole, start,
+                                statementRows, statementFailed);
+    if (statementEvent != null) {
+      try {
+        JfrEvents.endStatement(statementEvent, op, sql, fingerprint, currentRole,
+                               statementRows, statementFailed);
+      } catch (RuntimeException e) {
+        environment.logError("JFR statement event failed: "+e, null);
+      }
+      statementEvent = null;
+    }
+    endTraffic(op.name(), statementTraffic);
+    endListeners();
+  }
+
+  /**
+   * @return a context for the listeners, or <code>null</code> if there are none
+   */
+  private StatementContext beginListeners(StatementContext.Kind kind, Operation op,
+                                          String action, String sql, long start) {
+    IStatementListener[] ls = environment.getStatementListeners().get();
+    if (ls.length == 0)
+      return null;
+    StatementContext context = new StatementContext(kind, op, action, sql, currentRole,
+                                                    this, start);
+    environment.getStatementListeners().before(ls, context);
+    return context;
+  }
+
+  private void endListeners() {
+    StatementContext context = listenerContext;
+    if (context != null) {
+      listenerContext = null;
+      context.setRows(statementRows);
+      context.setFailed(statementFailed);
+      environment.getStatementListeners().after(environment.getStatementListeners().get(),
+                                                context);
+    }
+  }
+
+  private long[] beginTraffic() {
+    RoundTripProfiler profiler = environment.getRoundTripProfiler();
+    return (profiler == null) ? null : profiler.begin();
+  }
+
+  private void endTraffic(String operation, long[] begin) {
+    RoundTripProfiler profiler = environment.getRoundTripProfiler();
+    if (profiler != null && begin != null)
+      profiler.end(operation, begin);
+  }
+
+  /**
+   * Send the RESET ROLE deferred by the last borrower, if this one has
+   * not already made it moot by setting a role of its own.
+   */
+  private void clearPendingRole() {
+    if (!roleResetPending || conn == null)
+      return;
+    roleResetPending = false;
+    try {
+      Statement s = conn.createStatement();
+      try {
+        s.execute("RESET ROLE");
+      } finally {
+        s.close();
+      }
+      if (inTransaction())
+        environment.setSessionRole(physical, null);
+      else {
+        environment.setSessionRole(physical, "");
+        environment.setRoleResetPending(physical, false);
+      }
+    } catch (SQLException e) {
+      environment.logError(e.getMessage(), e);
+      environment.setSessionRole(physical, null);
+    }
+  }
+
+  /**
+   * Start a transaction control call.
+   * @return its flight recorder event, or <code>null</code>
+   */
+  private Object startControl(String action) {
+    statementFailed = false;
+    statementTraffic = beginTraffic();
+    listenerContext = beginListeners(StatementContext.Kind.TRANSACTION, null, action, null,
+                                     System.nanoTime());
+    return JfrSupport.isRecording() ? JfrEvents.beginTransaction() : null;
+  }
+
+  private void endControl(Object event, String action) {
+    if (event != null)
+      JfrEvents.endTransaction(event, action, currentRole, statementFailed);
+    endTraffic(action.toUpperCase(), statementTraffic);
+    statementRows = 0;
+    endListeners();
+  }
+
+  /**
+   * @return the role set with one of the set*Role methods, or <code>null</code>
+   */
+  String getCurrentRole() {
+    return currentRole;
+  }
+
+  private void rowsAffected(long rows) {
+    statementRows = rows;
+    environment.getMetrics().recordRowsAffected(rows);
+  }
+
+  private void rowsReturned(long rows) {
+    statementRows = rows;
+    environment.getMetrics().recordRowsReturned(rows);
+  }
+
   private IResult errorResult(SQLException e) {
     IResult r = new ResultPojo();
-    r.addErrorString("PGD-6 "+e.getMessage());
+    addError(r, "PGD-6", e.getMessage());
     return r;
   }
 	
@@ -358,23 +689,25 @@ public class PostgresConnection implements IPostgresConnection {
     if (result.hasError())
       return result;
 
+    long start = startStatement(Operation.EXECUTE_SQL, sql);
     try {
       s = conn.createStatement();
       s.execute(sql);
     } catch (SQLException e) {
     	environment.logError(e.getMessage(), e);
-     result.addErrorString("PGD-7 "+e.getMessage());
+     addError(result, "PGD-7", e.getMessage());
     } finally {
       if (s != null) {
         try {
           s.close();
         } catch (SQLException x) {
         	environment.logError(x.getMessage(), x);
-         result.addErrorString("PGD-8 "+x.getMessage());					
+         addError(result, "PGD-8", x.getMessage());					
         }
       }
     }
 
+    endStatement(Operation.EXECUTE_SQL, sql, start);
     return result;
   }
 
@@ -432,29 +765,74 @@ public class PostgresConnection implements IPostgresConnection {
    */
   @Override
   public IResult executeCount(String sql, IResult result) {
+    return executeCount(sql, CountMode.EXACT, result);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public IResult executeCount(String sql, CountMode mode) {
+    IResult result = new ResultPojo();
+    return executeCount(sql, mode, result);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public IResult executeCount(String sql, CountMode mode, IResult result) {
     Statement s = null;
     ResultSet rs = null;
 
+    long start = startStatement(Operation.EXECUTE_COUNT, sql);
     try {
-      s = conn.createStatement(ResultSet.TYPE_SCROLL_SENSITIVE,
-                               ResultSet.CONCUR_READ_ONLY);
-      rs = s.executeQuery(sql);
-      rs.last();
-      result.setResultObject(new Long(rs.getRow()));
+      long count;
+      if (mode == CountMode.TABLE_ESTIMATE) {
+        PreparedStatement ps = conn.prepareStatement(CountQueries.TABLE_ESTIMATE_SQL);
+        s = ps;
+        ps.setString(1, sql.trim());
+        rs = ps.executeQuery();
+        count = -1;
+        if (rs.next() && rs.getInt(2) > 0)
+          count = rs.getLong(1);
+        rs.close();
+        if (count <= 0) {
+          // never vacuumed or analyzed: reltuples is -1, or 0 before
+          // PostgreSQL 14; the planner still has the page count
+          Statement explain = conn.createStatement();
+          try {
+            count = CountQueries.planRows(explain.executeQuery(
+                CountQueries.explainSql("SELECT 1 FROM " + sql.trim())));
+          } finally {
+            explain.close();
+          }
+        }
+      } else if (mode == CountMode.PLANNER_ESTIMATE) {
+        s = conn.createStatement();
+        rs = s.executeQuery(CountQueries.explainSql(sql));
+        count = CountQueries.planRows(rs);
+      } else {
+        s = conn.createStatement();
+        rs = s.executeQuery(CountQueries.exactSql(sql));
+        count = rs.next() ? rs.getLong(1) : 0;
+      }
+      result.setResultObject(Long.valueOf(count));
     } catch (SQLException e) {
     	environment.logError(e.getMessage(), e);
-     result.addErrorString("PGD-9 "+e.getMessage());
+     addError(result, "PGD-9", e.getMessage());
     } finally {
       if (s != null) {
         try {
           s.close();
         } catch (SQLException x) {
         	environment.logError(x.getMessage(), x);
-         result.addErrorString("PGD-10 "+x.getMessage());					
+         addError(result, "PGD-10", x.getMessage());					
         }
       }
     }
 
+    endStatement(Operation.EXECUTE_COUNT, sql, start);
     return result;		
   }
 	
@@ -474,24 +852,27 @@ public class PostgresConnection implements IPostgresConnection {
   public IResult executeUpdate(String sql, IResult result) {
    Statement s = null;
 
+    long start = startStatement(Operation.EXECUTE_UPDATE, sql);
     try {
       s = conn.createStatement();
       int rowcount = s.executeUpdate(sql);
+      rowsAffected(rowcount);
       result.setResultObject(Integer.valueOf(rowcount));
     } catch (SQLException e) {
     	environment.logError(e.getMessage(), e);
-     result.addErrorString("PGD-11 "+e.getMessage());
+     addError(result, "PGD-11", e.getMessage());
     } finally {
       if (s != null) {
         try {
           s.close();
         } catch (SQLException x) {
         	environment.logError(x.getMessage(), x);
-         result.addErrorString("PGD-12 "+x.getMessage());					
+         addError(result, "PGD-12", x.getMessage());					
         }
       }
     }
 
+    endStatement(Operation.EXECUTE_UPDATE, sql, start);
     return result;
   }
 	
@@ -509,17 +890,26 @@ public class PostgresConnection implements IPostgresConnection {
    */
   @Override
   public IResult executeSelect(String sql, IResult result) {
+    QueryResultCache cache = environment.getQueryCache();
+    if (cache != null && READ_ONLY_ROLES.contains(currentRole)) {
+      return cachedSelect(cache, sql, result, (Object[])null);
+    }
 
 	  Statement s = null;
 
+    long start = startStatement(Operation.EXECUTE_SELECT, sql);
     try {
       s = conn.createStatement();
       ResultSet rs = s.executeQuery(sql);
+      track(s, rs, false);
       result.setResultObject(rs);
     } catch (SQLException e) {
     	environment.logError(e.getMessage(), e);
-      result.addErrorString("PGD-13 "+e.getMessage());
+      addError(result, "PGD-13", e.getMessage());
+      if (s != null)
+        this.closeStatement(s, result);
     }
+    endStatement(Operation.EXECUTE_SELECT, sql, start);
     return result;
   }
   
@@ -539,19 +929,21 @@ public class PostgresConnection implements IPostgresConnection {
   public IResult executeSQL(String sql, IResult result, Object... vals) {
     PreparedStatement s = null;
 
+    long start = startStatement(Operation.EXECUTE_SQL, sql);
     try {
-      s = conn.prepareStatement(sql);
+      s = prepare(sql);
       setParamValues(s, vals);
       s.execute();
     } catch (SQLException e) {
     	environment.logError(e.getMessage(), e);
-      result.addErrorString("PGD-14 "+e.getMessage());
+      addError(result, "PGD-14", e.getMessage());
     } finally {
       if (s != null) {
         this.closeStatement(s, result);
       }
     }
 
+    endStatement(Operation.EXECUTE_SQL, sql, start);
     return result;		
   }
 
@@ -572,21 +964,24 @@ public class PostgresConnection implements IPostgresConnection {
 
 	  PreparedStatement s = null;
 
+    long start = startStatement(Operation.EXECUTE_UPDATE, sql);
     try {
-      s = conn.prepareStatement(sql);
+      s = prepare(sql);
       setParamValues(s, vals);
       int rowcount = s.executeUpdate();
-      result.setResultObject(new Integer(rowcount));
+      rowsAffected(rowcount);
+      result.setResultObject(Integer.valueOf(rowcount));
 
     } catch (SQLException e) {
     	environment.logError(e.getMessage(), e);
-      result.addErrorString("PGD-15 "+e.getMessage());
+      addError(result, "PGD-15", e.getMessage());
     } finally {
       if (s != null) {
         this.closeStatement(s, result);
       }
     }
 
+    endStatement(Operation.EXECUTE_UPDATE, sql, start);
     return result;
   }
 
@@ -604,28 +999,157 @@ public class PostgresConnection implements IPostgresConnection {
    */
   @Override
   public IResult executeBatch(String sql, IResult result, Object... vals) {
-    PreparedStatement s = null;
+    long start = startStatement(Operation.EXECUTE_BATCH, sql);
+    try {
+      long rows = environment.getBatchExecutor().execute(conn, sql, vals);
+      rowsAffected(rows);
+      // the result has always been an Integer; the metrics keep the full count
+      result.setResultObject(Integer.valueOf((int)Math.min(rows, Integer.MAX_VALUE)));
+    } catch (SQLException e) {
+    	environment.logError(e.getMessage(), e);
+      addError(result, "PGD-16", e.getMessage());
+    }
+
+    endStatement(Operation.EXECUTE_BATCH, sql, start);
+    return result;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public IResult executeCopyIn(String table, String[] columns, CopyFormat format,
+                               Iterator<Object[]> rows) {
+    IResult result = new ResultPojo();
+    return executeCopyIn(table, columns, format, rows, result);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public IResult executeCopyIn(String table, String[] columns, CopyFormat format,
+                               Iterator<Object[]> rows, IResult result) {
+    CopyInEncoder encoder = null;
+    String sql = CopyInEncoder.copySql(table, columns, format, "FROM STDIN");
+    long start = startStatement(Operation.COPY_IN, sql);
 
     try {
-      s = conn.prepareStatement(sql);
-      int paramCount = s.getParameterMetaData().getParameterCount();
-      int len = vals.length;
-      
-      for (int i = 0; i < len;) {
-        for (int j = 1; j <= paramCount; j++, i++) {
-          s.setObject(j, vals[i]);
-        }
-        s.addBatch();
+      encoder = new CopyInEncoder(conn.unwrap(PGConnection.class).getCopyAPI().copyIn(sql),
+                                  format, environment.getCopyBufferSize());
+      encoder.writeHeader();
+      while (rows.hasNext()) {
+        encoder.writeRow(rows.next());
       }
-      
-      int[] inserted = s.executeBatch();
-      result.setResultObject(Integer.valueOf(inserted.length));
+      long copied = encoder.finish();
+      rowsAffected(copied);
+      result.setResultObject(Long.valueOf(copied));
+      result.setResultObjectA(new CopyStatistics(copied, encoder.getBytes(),
+                                                 System.nanoTime() - start));
+    } catch (SQLException e) {
+      if (encoder != null)
+        encoder.cancel();
+    	environment.logError(e.getMessage(), e);
+      addError(result, "PGD-25", e.getMessage());
+    } catch (RuntimeException e) {
+      // a failing row iterator must not leave the connection in COPY mode
+      if (encoder != null)
+        encoder.cancel();
+    	environment.logError(e.getMessage(), e);
+      addError(result, "PGD-26", e.getMessage());
+    }
+
+    endStatement(Operation.COPY_IN, sql, start);
+    return result;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public IResult copyOut(String query, CopyFormat format, OutputStream out,
+                         boolean gzip, ICopyProgressListener listener) {
+    IResult result = new ResultPojo();
+    return copyOut(query, format, out, gzip, listener, result);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public IResult copyOut(String query, CopyFormat format, OutputStream out,
+                         boolean gzip, ICopyProgressListener listener, IResult result) {
+    String sql = CopyExporter.copyOutSql(query, format);
+    long start = startStatement(Operation.COPY_OUT, sql);
+    try {
+      CopyStatistics stats = CopyExporter.export(conn.unwrap(PGConnection.class).getCopyAPI(),
+          sql, format, out, gzip, environment.getCopyBufferSize(), listener);
+      rowsReturned(stats.getRows());
+      result.setResultObject(Long.valueOf(stats.getRows()));
+      result.setResultObjectA(stats);
     } catch (SQLException e) {
     	environment.logError(e.getMessage(), e);
-      result.addErrorString("PGD-16 "+e.getMessage());
+      addError(result, "PGD-27", e.getMessage());
+    } catch (IOException e) {
+    	environment.logError(e.getMessage(), e);
+      addError(result, "PGD-28", e.getMessage());
+    }
+
+    endStatement(Operation.COPY_OUT, sql, start);
+    return result;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public IResult copyOut(String query, CopyFormat format, WritableByteChannel channel,
+                         boolean gzip, ICopyProgressListener listener) {
+    IResult result = new ResultPojo();
+    return copyOut(query, format, channel, gzip, listener, result);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public IResult copyOut(String query, CopyFormat format, WritableByteChannel channel,
+                         boolean gzip, ICopyProgressListener listener, IResult result) {
+    return copyOut(query, format, Channels.newOutputStream(channel), gzip, listener, result);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public IResult copyOut(String query, CopyFormat format, Path path,
+                         boolean gzip, ICopyProgressListener listener) {
+    IResult result = new ResultPojo();
+    return copyOut(query, format, path, gzip, listener, result);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public IResult copyOut(String query, CopyFormat format, Path path,
+                         boolean gzip, ICopyProgressListener listener, IResult result) {
+    OutputStream out = null;
+
+    try {
+      out = Files.newOutputStream(path);
+      copyOut(query, format, out, gzip, listener, result);
+    } catch (IOException e) {
+    	environment.logError(e.getMessage(), e);
+      addError(result, "PGD-28", e.getMessage());
     } finally {
-      if (s != null) {
-        this.closeStatement(s, result);
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException x) {
+        	environment.logError(x.getMessage(), x);
+          addError(result, "PGD-29", x.getMessage());
+        }
       }
     }
 
@@ -647,23 +1171,75 @@ public class PostgresConnection implements IPostgresConnection {
    */
   @Override
   public IResult executeSelect(String sql, IResult result, Object... vals) {
+    QueryResultCache cache = environment.getQueryCache();
+    if (cache != null && READ_ONLY_ROLES.contains(currentRole)
+        && QueryResultCache.isCacheable(vals)) {
+      return cachedSelect(cache, sql, result, vals);
+    }
+
     PreparedStatement s = null;
 
+    long start = startStatement(Operation.EXECUTE_SELECT, sql);
     try {
-      s = conn.prepareStatement(sql);
+      s = prepare(sql);
 	  //System.out.println("ExecSel-- "+sql+" "+vals.length);
 	       setParamValues(s, vals);
 	 	  //System.out.println("ExecSel++ "+sql);
       ResultSet rs = s.executeQuery();
+      track(s, rs, false);
       result.setResultObject(rs);
     } catch (SQLException e) {
     	environment.logError(e.getMessage(), e);
-      result.addErrorString("PGD-17 "+e.getMessage());
+      addError(result, "PGD-17", e.getMessage());
+      this.closeStatement(s, result);
     }
     
+    endStatement(Operation.EXECUTE_SELECT, sql, start);
     return result;
   }
   
+  /**
+   * Serve a read-only SELECT from the client cache, loading it on a miss.
+   * The statement is closed here since the rows are fully materialized.
+   * @param vals <code>null</code> for a plain (unprepared) statement
+   */
+  private IResult cachedSelect(QueryResultCache cache, String sql,
+                               IResult result, Object... vals) {
+    Statement s = null;
+
+    long start = startStatement(Operation.EXECUTE_SELECT, sql);
+    try {
+      ResultSet rs = cache.get(currentRole, sql, vals);
+      if (rs == null) {
+        long generation = cache.generation();
+        ResultSet live;
+        if (vals == null) {
+          s = conn.createStatement();
+          live = s.executeQuery(sql);
+        } else {
+          PreparedStatement ps = prepare(sql);
+          s = ps;
+          setParamValues(ps, vals);
+          live = ps.executeQuery();
+        }
+        rs = cache.put(currentRole, sql, vals, live, generation);
+      }
+      if (rs instanceof CachedRowSet)
+        rowsReturned(((CachedRowSet)rs).size());
+      result.setResultObject(rs);
+    } catch (SQLException e) {
+    	environment.logError(e.getMessage(), e);
+      addError(result, "PGD-24", e.getMessage());
+    } finally {
+      if (s != null) {
+        this.closeStatement(s, result);
+      }
+    }
+
+    endStatement(Operation.EXECUTE_SELECT, sql, start);
+    return result;
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -672,20 +1248,203 @@ public class PostgresConnection implements IPostgresConnection {
           int resultSetConcurrency, Object... vals) {
 	    PreparedStatement s = null;
 
+	    long start = startStatement(Operation.EXECUTE_SELECT, sql);
 	    try {
-	      s = conn.prepareStatement(sql, resultSetType, resultSetConcurrency);
+	      s = prepare(sql, resultSetType, resultSetConcurrency);
 	      if (vals != null)
 	    	  setParamValues(s, vals);
 	      ResultSet rs = s.executeQuery();
+	      track(s, rs, false);
 	      result.setResultObject(rs);
 	    } catch (SQLException e) {
 	    	environment.logError(e.getMessage(), e);
-	      result.addErrorString("PGD-18 "+e.getMessage());
+	      addError(result, "PGD-18", e.getMessage());
+	      this.closeStatement(s, result);
 	    }
 	    
+	    endStatement(Operation.EXECUTE_SELECT, sql, start);
 	    return result;
   }
 	
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public IResult executeSelectCursor(String sql, int fetchSize, Object... vals) {
+    IResult result = new ResultPojo();
+    return executeSelectCursor(sql, fetchSize, result, vals);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public IResult executeSelectCursor(String sql, int fetchSize, IResult result, Object... vals) {
+    PreparedStatement s = null;
+    boolean ownsTransaction = false;
+
+    long start = startStatement(Operation.EXECUTE_SELECT_CURSOR, sql);
+    try {
+      if (conn.getAutoCommit()) {
+        conn.setAutoCommit(false);
+        ownsTransaction = true;
+        Statement t = conn.createStatement();
+        try {
+          t.execute("SET TRANSACTION READ ONLY");
+        } finally {
+          t.close();
+        }
+      }
+      s = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+                                ResultSet.CONCUR_READ_ONLY);
+      s.setFetchSize(fetchSize > 0 ? fetchSize : environment.getCursorFetchSize());
+      if (vals != null)
+        setParamValues(s, vals);
+      ResultSet rs = s.executeQuery();
+      result.setResultObject(new PostgresRowCursor(environment, conn, s, rs, ownsTransaction));
+    } catch (SQLException e) {
+    	environment.logError(e.getMessage(), e);
+      addError(result, "PGD-30", e.getMessage());
+      this.closeStatement(s, result);
+      if (ownsTransaction)
+        PostgresRowCursor.endTransaction(conn, environment);
+    }
+
+    endStatement(Operation.EXECUTE_SELECT_CURSOR, sql, start);
+    return result;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public IResult openQuery(String sql, Object... vals) {
+    IResult result = new ResultPojo();
+    return openQuery(sql, result, vals);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public IResult openQuery(String sql, IResult result, Object... vals) {
+    PreparedStatement s = null;
+
+    long start = startStatement(Operation.EXECUTE_SELECT, sql);
+    try {
+      s = prepare(sql);
+      setParamValues(s, vals);
+      ResultSet rs = s.executeQuery();
+      result.setResultObject(track(s, rs, true));
+    } catch (SQLException e) {
+    	environment.logError(e.getMessage(), e);
+      addError(result, "PGD-36", e.getMessage());
+      if (s != null)
+        this.closeStatement(s, result);
+    }
+
+    endStatement(Operation.EXECUTE_SELECT, sql, start);
+    return result;
+  }
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public IRowPublisher publishSelect(String sql, int fetchSize, Object... vals) {
+    return new RowPublisher(environment, this, sql, fetchSize, vals);
+  }
+
+
+  private QueryHandle track(Statement s, ResultSet rs, boolean scoped) {
+    LeakDetector detector = environment.getLeakDetector();
+    QueryHandle h = new QueryHandle(this, s, rs, scoped,
+                                    (detector == null) ? null : detector.sample("opened"));
+    if (handles == null)
+      handles = new ArrayList<QueryHandle>(4);
+    handles.add(h);
+    return h;
+  }
+
+  /**
+   * Close a handle and stop tracking it.
+   */
+  void closeHandle(QueryHandle h) {
+    if (handles != null)
+      handles.remove(h);
+    try {
+      h.release();
+    } catch (SQLException e) {
+    	environment.logError(e.getMessage(), e);
+      reportError("PGD-37", e.getMessage());
+    }
+  }
+
+  /**
+   * Close the handles still open.
+   * @param scopedOnly only those from openQuery, as a transaction ends
+   */
+  private void closeHandles(boolean scopedOnly) {
+    if (handles == null || handles.isEmpty())
+      return;
+    LeakDetector detector = scopedOnly ? null : environment.getLeakDetector();
+    for (QueryHandle h : new ArrayList<QueryHandle>(handles)) {
+      if (!scopedOnly || h.isScoped()) {
+        if (detector != null)
+          detector.handleLeaked(h.getOpened());
+        closeHandle(h);
+      }
+    }
+  }
+
+  /**
+   * Close the statement handles still open, so that none can reach the
+   * statement cache once the connection is back in the pool.
+   */
+  private void closeStatements() {
+    if (prepared == null)
+      return;
+    for (PostgresStatement h : new ArrayList<PostgresStatement>(prepared))
+      h.close();
+    prepared = null;
+  }
+
+  /**
+   * Forget a statement handle as it is closed.
+   */
+  void statementClosed(PostgresStatement h) {
+    if (prepared != null)
+      prepared.remove(h);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public IResult prepareStatement(String sql) {
+    IResult result = new ResultPojo();
+    return prepareStatement(sql, result);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public IResult prepareStatement(String sql, IResult result) {
+    try {
+      PreparedStatement s = prepare(sql);
+      PostgresStatement h = new PostgresStatement(this, environment, sql, s);
+      if (prepared == null)
+        prepared = new ArrayList<PostgresStatement>(4);
+      prepared.add(h);
+      result.setResultObject(h);
+    } catch (SQLException e) {
+    	environment.logError(e.getMessage(), e);
+      addError(result, "PGD-32", e.getMessage());
+    }
+
+    return result;
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -709,13 +1468,17 @@ public class PostgresConnection implements IPostgresConnection {
   @Override
   public IResult createStatement(IResult result) {
     try {
+      clearPendingRole();
       if (conn != null) {
         Statement stmt = conn.createStatement();
+        // what runs on it is never seen here
+        session.unknown();
+        roleUnknown();
         result.setResultObject(stmt);
       }
     } catch (SQLException e) {
     	environment.logError(e.getMessage(), e);
-      result.addErrorString("PGD-19 "+e.getMessage());
+      addError(result, "PGD-19", e.getMessage());
     }
     
     return result;
@@ -726,12 +1489,24 @@ public class PostgresConnection implements IPostgresConnection {
    */
   @Override
   public void closeResultSet(ResultSet rs, IResult r) {
+    if (rs != null && handles != null) {
+      for (QueryHandle h : handles) {
+        if (h.owns(rs)) {
+          closeHandle(h);
+          return;
+        }
+      }
+    }
     try {
-      if (rs != null)
+      if (rs != null) {
+        Statement s = (statements != null) ? rs.getStatement() : null;
         rs.close();
+        if (s != null && statements.owns(s))
+          statements.release(s);
+      }
     } catch (SQLException e) {
     	environment.logError(e.getMessage(), e);
-      r.addErrorString("PGD-20 "+e.getMessage());
+      addError(r, "PGD-20", e.getMessage());
     }
   }
 
@@ -741,16 +1516,73 @@ public class PostgresConnection implements IPostgresConnection {
   @Override
   public void closeConnection(IResult r) {
     try {
-      if (conn != null)
+      closeHandles(false);
+      closeStatements();
+      if (statements != null)
+        statements.releaseAll();
+      if (conn != null) {
+        resetSession(r);
         conn.close();
+        environment.recordHoldTime(borrowedAt);
+        LeakDetector detector = environment.getLeakDetector();
+        if (detector != null)
+          detector.returned(this);
+        IStatementListener[] ls = environment.getStatementListeners().get();
+        if (ls.length > 0)
+          environment.getStatementListeners().after(ls, new StatementContext(
+              StatementContext.Kind.RETURN, null, null, null, currentRole, this, borrowedAt));
+      }
     } catch (SQLException e) {
     	environment.logError(e.getMessage(), e);
-      r.addErrorString("PGD-21 "+e.getMessage());
+      addError(r, "PGD-21", e.getMessage());
     } finally {
       conn = null;
     }
   }
 
+  /**
+   * Undo what this borrower changed in the session before the connection
+   * goes back to the pool: roll back an open transaction, then reset the
+   * settings and temporary tables it changed in one round trip. When the
+   * role is tracked, resetting it is left to the next borrower, who folds
+   * it into its own role change or sends it before its first statement.
+   */
+  private void resetSession(IResult r) {
+    if (!environment.isSessionResetOnReturn())
+      return;
+    boolean resetRole = false;
+    try {
+      if (!conn.getAutoCommit()) {
+        conn.rollback();
+        conn.setAutoCommit(true);
+      }
+      if (environment.isResetRoleOnReturn()) {
+        if (physical == null)
+          resetRole = roleChanged;
+        else if (!"".equals(environment.getSessionRole(physical)))
+          environment.setRoleResetPending(physical, true);
+      }
+      String sql = session.resetSql(resetRole);
+      if (sql != null) {
+        Statement s = conn.createStatement();
+        try {
+          s.execute(sql);
+        } finally {
+          s.close();
+        }
+        if (physical != null && (resetRole || session.resetsAll()))
+          environment.setSessionRole(physical, resetRole ? "" : null);
+      }
+    } catch (SQLException e) {
+      environment.logError(e.getMessage(), e);
+      if (physical != null)
+        environment.setSessionRole(physical, null);
+      addError(r, "PGD-35", e.getMessage());
+    } finally {
+      session.clear();
+    }
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -758,10 +1590,10 @@ public class PostgresConnection implements IPostgresConnection {
   public void closeStatement(Statement s, IResult r) {
     try {
       if (s != null)
-        s.close();
+        releaseStatement(s);
     } catch (SQLException e) {
     	environment.logError(e.getMessage(), e);
-     r.addErrorString("PGD-22 "+e.getMessage());
+     addError(r, "PGD-22", e.getMessage());
     }
   }
 
@@ -772,67 +1604,60 @@ public class PostgresConnection implements IPostgresConnection {
   public void closeStatement(PreparedStatement s, IResult r) {
     try {
       if (s != null)
-        s.close();
+        releaseStatement(s);
     } catch (SQLException e) {
     	environment.logError(e.getMessage(), e);
-     r.addErrorString("PGD-23 "+e.getMessage());
+     addError(r, "PGD-23", e.getMessage());
     }	
   }
 
-  private void setParamValues(PreparedStatement s, Object... vals) throws SQLException {
-    int len = vals.length;
-	//System.out.println("SetParamValues- "+len+" "+s);
+  /**
+   * Prepare <code>sql</code>, taking the statement from the connection's
+   * statement cache when there is one. Hand it back with closeStatement.
+   */
+  private PreparedStatement prepare(String sql) throws SQLException {
+    return prepare(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+  }
 
-    for (int i = 0; i < len; i++) {
-    	//System.out.println("SetParamValues "+vals[i]);
-      if (vals[i] == null) {
-        s.setNull(i+1, java.sql.Types.OTHER);
-      } else {
-        if (vals[i] instanceof Byte) {
-          s.setInt(i+1, ((Byte) vals[i]).intValue());
-        } else if (vals[i] instanceof String) {
-          s.setString(i+1, (String) vals[i]);
-        } else if (vals[i] instanceof BigDecimal) {
-          s.setBigDecimal(i+1, (BigDecimal) vals[i]);
-        } else if (vals[i] instanceof Short) {
-          s.setShort(i+1, ((Short) vals[i]).shortValue());
-        } else if (vals[i] instanceof Integer) {
-          s.setInt(i+1, ((Integer) vals[i]).intValue());
-        } else if (vals[i] instanceof Long) {
-        	long x =((Long) vals[i]).longValue();
-        	if (x == -1)
-        		s.setNull(i+1, Types.BIGINT);
-        	else
-        		s.setLong(i+1, x);
-        } else if (vals[i] instanceof Float) {
-          s.setFloat(i+1, ((Float) vals[i]).floatValue());
-        } else if (vals[i] instanceof Double) {
-          s.setDouble(i+1, ((Double) vals[i]).doubleValue());
-        } else if (vals[i] instanceof byte[]) {
-          s.setBytes(i+1, (byte[]) vals[i]);
-        } else if (vals[i] instanceof java.sql.Date) {
-          s.setDate(i+1, (java.sql.Date) vals[i]);
-        } else if (vals[i] instanceof Time) {
-          s.setTime(i+1, (Time) vals[i]);
-        } else if (vals[i] instanceof Timestamp) {
-          s.setTimestamp(i+1, (Timestamp) vals[i]);
-        } else if (vals[i] instanceof Boolean) {
-          s.setBoolean(i+1, ((Boolean) vals[i]).booleanValue());
-        } else if (vals[i] instanceof InputStream) {
-          s.setBinaryStream(i+1, (InputStream) vals[i], -1);
-        } else if (vals[i] instanceof java.sql.Blob) {
-          s.setBlob(i+1, (java.sql.Blob) vals[i]);
-        } else if (vals[i] instanceof java.sql.Clob) {
-          s.setClob(i+1, (java.sql.Clob) vals[i]);
-        } else if (vals[i] instanceof java.util.Date) {
-          s.setTimestamp(i+1, new Timestamp(((java.util.Date) vals[i]).getTime()));
-        } else if (vals[i] instanceof BigInteger) {
-          s.setString(i+1, vals[i].toString());
-        } else {
-        	System.out.println("BadParam "+i);
-          s.setObject(i+1, vals[i]);
-        }
-      }
+  private PreparedStatement prepare(String sql, int resultSetType,
+                                    int resultSetConcurrency) throws SQLException {
+    if (statements == null)
+      statements = environment.getStatementCache(conn);
+    if (statements == null)
+      return conn.prepareStatement(sql, resultSetType, resultSetConcurrency);
+    return statements.checkout(sql, resultSetType, resultSetConcurrency);
+  }
+
+  /**
+   * Put <code>sql</code> in the statement cache and have the server parse
+   * and describe it, without executing it. That checks the statement and
+   * loads the catalog entries it needs; the driver only keeps a named
+   * server-side statement once the cached one has been executed
+   * prepareThreshold times, which describing does not count towards.
+   */
+  void warmStatement(String sql) throws SQLException {
+    clearPendingRole();
+    PreparedStatement s = prepare(sql);
+    try {
+      s.getParameterMetaData();
+      s.getMetaData();
+    } finally {
+      releaseStatement(s);
     }
   }
+
+  /**
+   * Close a statement, or return it to the statement cache if it came from there.
+   */
+  void releaseStatement(Statement s) throws SQLException {
+    if (statements != null && statements.owns(s))
+      statements.release(s);
+    else
+      s.close();
+  }
+
+  private void setParamValues(PreparedStatement s, Object... vals) throws SQLException {
+    statementParams = vals;
+    environment.getParameterBinder().bind(s, vals);
+  }
 }
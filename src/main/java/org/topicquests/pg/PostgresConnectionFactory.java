@@ -15,21 +15,70 @@
  */
 package org.topicquests.pg;
 
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.topicquests.pg.api.IAsyncPostgresConnection;
 import org.topicquests.pg.api.IPostgresConnectionFactory;
 import org.topicquests.pg.api.IPostgresConnection;
+import org.topicquests.pg.api.IRowPublisher;
+import org.topicquests.pg.api.IStatementListener;
+import org.topicquests.pg.api.Operation;
+import org.topicquests.pg.api.PoolStatistics;
+import org.topicquests.pg.api.RoundTripStatistic;
+import org.topicquests.pg.api.SlowQuery;
+import org.topicquests.pg.api.SqlStatistic;
+import org.topicquests.pg.api.StatementContext;
 import org.topicquests.pg.PostgresConnection;
+import org.topicquests.support.ResultPojo;
 import org.topicquests.support.RootEnvironment;
+import org.topicquests.support.api.IResult;
 
-import org.apache.commons.dbcp2.*;
+import org.postgresql.PGConnection;
 
 public class PostgresConnectionFactory extends RootEnvironment
     implements IPostgresConnectionFactory {
   private String urx;
-  private BasicDataSource connectionPool = null;
+  private IConnectionPool connectionPool = null;
+  private AdaptivePoolSizer poolSizer = null;
+  private PoolMetrics metrics;
+  private ObjectName metricsName = null;
+  private SqlStatistics sqlStatistics = null;
+  private SqlStatistics.Reporter sqlReporter = null;
+  private SlowQueryLog slowQueryLog = null;
+  private RoundTripProfiler roundTripProfiler = null;
+  private LeakDetector leakDetector = null;
+  private AsyncPostgresConnection asyncConnection = null;
+  private boolean virtualThreads;
+  private final StatementListeners statementListeners = new StatementListeners(this);
+  private final List<String> warmupStatements = new CopyOnWriteArrayList<String>();
+  private final List<String> warmupTables = new CopyOnWriteArrayList<String>();
+  private QueryResultCache queryCache = null;
+  private CacheInvalidationListener cacheListener = null;
+  private int copyBufferSize;
+  private int cursorFetchSize;
+  private BatchExecutor batchExecutor;
+  private final ParameterBinder parameterBinder = new ParameterBinder(this);
+  private int statementCacheSize;
+  private int statementPrepareThreshold;
+  private final StatementCache.Counters statementCounters = new StatementCache.Counters();
+  private final Map<Connection, StatementCache> statementCaches =
+      new IdentityHashMap<Connection, StatementCache>();
+  private boolean roleTracking;
+  private boolean sessionResetOnReturn;
+  private boolean resetRoleOnReturn;
+  // the role each physical connection was last left in, "" for none
+  private final Map<Connection, String> sessionRoles = new IdentityHashMap<Connection, String>();
+  // physical connections whose role must be cleared before their next borrower runs anything
+  private final Set<Connection> roleResets =
+      Collections.newSetFromMap(new IdentityHashMap<Connection, Boolean>());
 
   /**
    * Create a connection factory to produce database connections to
@@ -81,14 +130,621 @@ public class PostgresConnectionFactory extends RootEnvironment
       password = getStringProperty("DbPwd");
     }
 
-    connectionPool = new BasicDataSource();
+    virtualThreads = getBooleanProperty("VirtualThreads", false);
+    if (virtualThreads && !ThreadSupport.hasVirtualThreads())
+      logDebug("PostgresConnectionFactory VirtualThreads needs Java 21, using platform threads");
+    connectionPool = createConnectionPool(getStringProperty("ConnectionPool"));
+    metrics = new PoolMetrics(connectionPool);
+    if (getBooleanProperty("JmxEnabled", true)) {
+      registerMetrics(dbName);
+    }
+    if (getBooleanProperty("JfrEventsEnabled", true)) {
+      JfrSupport.install(this);
+    }
     this.setUser(user);
     this.setPassword(password);
     this.setUrl(dbUrl, dbPort, dbName, dbSchema);
-    connectionPool.setMaxOpenPreparedStatements(20);
-    connectionPool.setDriverClassName("org.postgresql.Driver");
-    connectionPool.setInitialSize(1);
-    connectionPool.setMaxTotal(10);
+    if (getBooleanProperty("RoundTripProfiling", false)) {
+      startRoundTripProfiler();
+    }
+    connectionPool.setInitialSize(getIntProperty("PoolInitialSize", 1));
+    connectionPool.setMaxTotal(getIntProperty("PoolMaxTotal", 10));
+    connectionPool.setMaxWaitMillis(getIntProperty("PoolMaxWaitMillis", -1));
+    if (getBooleanProperty("PoolAdaptive", false)) {
+      startPoolSizer();
+    }
+    copyBufferSize = getIntProperty("CopyBufferSize", 65536);
+    cursorFetchSize = getIntProperty("CursorFetchSize", 1000);
+    batchExecutor = new BatchExecutor(getIntProperty("BatchChunkSize", 1000),
+                                      getBooleanProperty("BatchRewriteInserts", true));
+    statementCacheSize = getIntProperty("StatementCacheSize", 64);
+    statementPrepareThreshold = getIntProperty("StatementPrepareThreshold", 3);
+    roleTracking = getBooleanProperty("RoleTracking", true);
+    sessionResetOnReturn = getBooleanProperty("SessionResetOnReturn", true);
+    resetRoleOnReturn = getBooleanProperty("ResetRoleOnReturn", true);
+    if (getBooleanProperty("SqlStatsEnabled", true)) {
+      startSqlStatistics();
+    }
+
+    if (getBooleanProperty("ClientCacheEnabled", false) && clientCacheSize > 0) {
+      startQueryCache(clientCacheSize, getStringProperty("ClientCacheChannels"));
+    }
+    int slowQueryMillis = getIntProperty("SlowQueryMillis", 0);
+    if (slowQueryMillis > 0) {
+      startSlowQueryLog(slowQueryMillis);
+    }
+    if (getBooleanProperty("LeakDetection", false)) {
+      startLeakDetector();
+    }
+
+    addAll(warmupStatements, getStringProperty("WarmupStatements"), ";");
+    addAll(warmupTables, getStringProperty("WarmupTables"), ",");
+    int warmupConnections = getIntProperty("WarmupConnections", 0);
+    if (warmupConnections > 0) {
+      IResult r = warmUp(warmupConnections);
+      logDebug("PostgresConnectionFactory warmup "+r.getResultObject());
+    }
+  }
+
+  private static void addAll(List<String> list, String value, String separator) {
+    if (value == null)
+      return;
+    for (String item : value.split(separator)) {
+      if (!item.trim().isEmpty())
+        list.add(item.trim());
+    }
+  }
+
+  private IConnectionPool createConnectionPool(String kind) {
+    if (kind != null && kind.trim().equalsIgnoreCase("affinity")) {
+      logDebug("PostgresConnectionFactory using affinity pool");
+      return new AffinityConnectionPool(this);
+    }
+    if (virtualThreads) {
+      logDebug("PostgresConnectionFactory gating dbcp borrows for virtual threads");
+      return new GatedConnectionPool(new DbcpConnectionPool());
+    }
+    return new DbcpConnectionPool();
+  }
+
+  private void startPoolSizer() {
+    int min = getIntProperty("PoolMinTotal", 2);
+    poolSizer = new AdaptivePoolSizer(this, connectionPool, min, connectionPool.getMaxTotal(),
+        getIntProperty("PoolTargetWaitMillis", 5),
+        getIntProperty("PoolTargetWaitPercentile", 95),
+        getIntProperty("PoolLatencyBackoffPercent", 150),
+        getIntProperty("PoolAdaptiveIntervalMillis", 1000));
+    connectionPool.resize(Math.max(min, 1));
+    poolSizer.start();
+    logDebug("PostgresConnectionFactory adaptive pool "+min+".."+connectionPool.getMaxTotal());
+  }
+
+  /**
+   * Publish the metrics as an MXBean named after the database. A second
+   * factory for the same database gets a numbered name.
+   */
+  private void registerMetrics(String dbName) {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    String base = "org.topicquests.pg:type=ConnectionFactory,name=" + ObjectName.quote(dbName);
+    try {
+      ObjectName name = new ObjectName(base);
+      for (int i = 2; server.isRegistered(name); i++)
+        name = new ObjectName(base + ",instance=" + i);
+      server.registerMBean(metrics, name);
+      metricsName = name;
+    } catch (JMException e) {
+      logError("MetricsFail "+e.getMessage(), e);
+    }
+  }
+
+  PoolMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Report how long a connection was held, from borrow to close.
+   */
+  void recordHoldTime(long borrowedNanos) {
+    long nanos = System.nanoTime() - borrowedNanos;
+    metrics.recordHoldTime(nanos);
+    AdaptivePoolSizer sizer = poolSizer;
+    if (sizer != null)
+      sizer.recordHoldTime(nanos);
+  }
+
+  private void startSqlStatistics() {
+    sqlStatistics = new SqlStatistics(getIntProperty("SqlStatsMaxFingerprints", 500));
+    int interval = getIntProperty("SqlStatsDumpIntervalMillis", 0);
+    if (interval > 0) {
+      sqlReporter = new SqlStatistics.Reporter(this, sqlStatistics,
+          getIntProperty("SqlStatsTopN", 20), interval);
+      sqlReporter.start();
+    }
+  }
+
+  /**
+   * Whether statements are fingerprinted, for the SQL statistics or a
+   * flight recording.
+   */
+  boolean isFingerprinting() {
+    return sqlStatistics != null || JfrSupport.isRecording();
+  }
+
+  /**
+   * Count an execution of <code>op</code> and report the time taken
+   * by a statement started at <code>startNanos</code>.
+   * @param sql The statement text, fingerprinted for the SQL statistics;
+   *            may be <code>null</code> if it never got that far
+   * @param vals The bound parameters, or <code>null</code> if unknown
+   * @param role The role set on the connection, or <code>null</code>
+   * @param rows Rows affected or returned, where known
+   * @param failed Whether the execution reported an error
+   */
+  void recordStatement(Operation op, String sql, Object[] vals, String role,
+                       long startNanos, long rows, boolean failed) {
+    recordStatement(op, sql, null, vals, role, startNanos, rows, failed);
+  }
+
+  /**
+   * As {@link #recordStatement(Operation, String, Object[], String, long, long, boolean)}
+   * @param fingerprint The fingerprint of <code>sql</code> if the caller
+   *                    already has it, or <code>null</code>
+   */
+  void recordStatement(Operation op, String sql, String fingerprint, Object[] vals,
+                       String role, long startNanos, long rows, boolean failed) {
+    long nanos = System.nanoTime() - startNanos;
+    metrics.recordOperation(op);
+    AdaptivePoolSizer sizer = poolSizer;
+    if (sizer != null)
+      sizer.recordStatementTime(nanos);
+    if (sql == null)
+      return;
+    // the statement has run; bookkeeping must not fail it
+    try {
+      SqlStatistics stats = sqlStatistics;
+      if (stats != null) {
+        if (fingerprint != null)
+          stats.recordFingerprint(fingerprint, nanos, rows, failed);
+        else
+          stats.record(sql, nanos, rows, failed);
+      }
+      SlowQueryLog slowLog = slowQueryLog;
+      if (slowLog != null)
+        slowLog.offer(op, sql, vals, role, nanos, rows, failed);
+    } catch (RuntimeException e) {
+      logError("PostgresConnectionFactory statistics failed: "+e, null);
+    }
+  }
+
+  /**
+   * Have new connections count their traffic, by way of pgjdbc's
+   * socketFactory property, and attribute it to operations.
+   */
+  private void startRoundTripProfiler() {
+    String url = getUrl();
+    setUrl(url + (url.indexOf('?') < 0 ? "?" : "&")
+           + "socketFactory=" + CountingSocketFactory.class.getName());
+    roundTripProfiler = new RoundTripProfiler(getIntProperty("RoundTripSampleRate", 16));
+    logDebug("PostgresConnectionFactory round-trip profiling on");
+  }
+
+  /**
+   * The round-trip profiler, or <code>null</code> unless RoundTripProfiling is set.
+   */
+  RoundTripProfiler getRoundTripProfiler() {
+    return roundTripProfiler;
+  }
+
+  private void startLeakDetector() {
+    leakDetector = new LeakDetector(this,
+        getIntProperty("LeakDetectionSampleRate", 100),
+        getIntProperty("LeakHoldThresholdMillis", 30000),
+        getIntProperty("LeakBorrowWaitDumpMillis", 5000));
+    leakDetector.start();
+    logDebug("PostgresConnectionFactory leak detection on");
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public synchronized IAsyncPostgresConnection getAsyncConnection() {
+    if (asyncConnection == null) {
+      int threads = getIntProperty("AsyncThreads", 0);
+      asyncConnection = new AsyncPostgresConnection(this,
+          (threads > 0) ? threads : connectionPool.getMaxTotal(),
+          getIntProperty("AsyncQueueSize", 100), virtualThreads);
+    }
+    return asyncConnection;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public IRowPublisher publishSelect(String sql, int fetchSize, Object... vals) {
+    return new RowPublisher(this, null, sql, fetchSize, vals);
+  }
+
+  /**
+   * The leak detector, or <code>null</code> unless LeakDetection is set.
+   */
+  LeakDetector getLeakDetector() {
+    return leakDetector;
+  }
+
+  private void startSlowQueryLog(int thresholdMillis) {
+    slowQueryLog = new SlowQueryLog(this, thresholdMillis,
+        getIntProperty("SlowQueryExplainPercent", 0),
+        getBooleanProperty("SlowQueryExplainWrites", false),
+        getIntProperty("SlowQueryExplainTimeoutMillis", 30000),
+        getBooleanProperty("SlowQueryRedactParams", true),
+        getIntProperty("SlowQueryHistorySize", 100),
+        getUrl(), getUser(), connectionPool.getPassword());
+    slowQueryLog.start();
+    logDebug("PostgresConnectionFactory slow query log at "+thresholdMillis+"ms");
+  }
+
+  private void startQueryCache(int size, String channelList) {
+    try {
+      queryCache = new QueryResultCache(size);
+    } catch (SQLException e) {
+      logError("QueryCacheFail "+e.getMessage(), e);
+      return;
+    }
+    if (channelList != null && !channelList.trim().isEmpty()) {
+      cacheListener = new CacheInvalidationListener(this, queryCache,
+          channelList.split(","), getUrl(), getUser(), connectionPool.getPassword());
+      cacheListener.start();
+    }
+    logDebug("PostgresConnectionFactory query cache "+size);
+  }
+
+  /**
+   * Read an integer property, falling back to <code>defaultValue</code>
+   * when it is absent from postgresql-props.xml.
+   */
+  int getIntProperty(String key, int defaultValue) {
+    String v = getStringProperty(key);
+    if (v == null || v.trim().isEmpty())
+      return defaultValue;
+    return Integer.parseInt(v.trim());
+  }
+
+  /**
+   * Read a boolean property, falling back to <code>defaultValue</code>
+   * when it is absent from postgresql-props.xml.
+   */
+  boolean getBooleanProperty(String key, boolean defaultValue) {
+    String v = getStringProperty(key);
+    if (v == null || v.trim().isEmpty())
+      return defaultValue;
+    return Boolean.parseBoolean(v.trim());
+  }
+
+  /**
+   * The size in bytes of the buffer used to stream COPY data.
+   */
+  int getCopyBufferSize() {
+    return copyBufferSize;
+  }
+
+  /**
+   * The default number of rows per fetch for streaming cursors.
+   */
+  int getCursorFetchSize() {
+    return cursorFetchSize;
+  }
+
+  BatchExecutor getBatchExecutor() {
+    return batchExecutor;
+  }
+
+  ParameterBinder getParameterBinder() {
+    return parameterBinder;
+  }
+
+  /**
+   * The statement cache of the physical connection behind <code>con</code>,
+   * created on first use.
+   * @return <code>null</code> if StatementCacheSize is 0
+   */
+  StatementCache getStatementCache(Connection con) throws SQLException {
+    if (statementCacheSize <= 0)
+      return null;
+    Connection physical = (Connection)con.unwrap(PGConnection.class);
+    synchronized (statementCaches) {
+      StatementCache cache = statementCaches.get(physical);
+      if (cache == null) {
+        if (statementCaches.size() >= connectionPool.getMaxTotal())
+          dropClosedStatementCaches();
+        cache = new StatementCache(physical, statementCacheSize,
+                                   statementPrepareThreshold, statementCounters);
+        statementCaches.put(physical, cache);
+      }
+      return cache;
+    }
+  }
+
+  /**
+   * Whether closeConnection undoes the session changes a borrower made.
+   */
+  boolean isSessionResetOnReturn() {
+    return sessionResetOnReturn;
+  }
+
+  /**
+   * Whether that includes the role, so the next borrower starts with none.
+   * With RoleTracking the reset is left to the next borrower, see
+   * {@link #isRoleResetPending(Connection)}.
+   */
+  boolean isResetRoleOnReturn() {
+    return resetRoleOnReturn;
+  }
+
+  /**
+   * The physical connection behind <code>con</code>, whose role is tracked.
+   * @return <code>null</code> if RoleTracking is off or it cannot be reached
+   */
+  Connection getTrackedConnection(Connection con) {
+    if (!roleTracking || con == null)
+      return null;
+    try {
+      return (Connection)con.unwrap(PGConnection.class);
+    } catch (SQLException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return the role <code>physical</code> is known to be in, "" for none,
+   *         or <code>null</code> if it is not known
+   */
+  String getSessionRole(Connection physical) {
+    synchronized (sessionRoles) {
+      return sessionRoles.get(physical);
+    }
+  }
+
+  /**
+   * Record the role <code>physical</code> is in.
+   * @param role "" for none, or <code>null</code> if it is no longer known
+   */
+  void setSessionRole(Connection physical, String role) {
+    synchronized (sessionRoles) {
+      if (role == null) {
+        sessionRoles.remove(physical);
+        return;
+      }
+      if (sessionRoles.size() >= connectionPool.getMaxTotal() && !sessionRoles.containsKey(physical)) {
+        Iterator<Connection> itr = sessionRoles.keySet().iterator();
+        while (itr.hasNext()) {
+          try {
+            if (itr.next().isClosed())
+              itr.remove();
+          } catch (SQLException e) {
+            itr.remove();
+          }
+        }
+      }
+      sessionRoles.put(physical, role);
+    }
+  }
+
+  /**
+   * @return whether the role <code>physical</code> was left in must be
+   *         cleared before its next borrower runs anything
+   */
+  boolean isRoleResetPending(Connection physical) {
+    synchronized (sessionRoles) {
+      return roleResets.contains(physical);
+    }
+  }
+
+  void setRoleResetPending(Connection physical, boolean pending) {
+    synchronized (sessionRoles) {
+      if (!pending) {
+        roleResets.remove(physical);
+        return;
+      }
+      if (roleResets.size() >= connectionPool.getMaxTotal() && !roleResets.contains(physical)) {
+        Iterator<Connection> itr = roleResets.iterator();
+        while (itr.hasNext()) {
+          try {
+            if (itr.next().isClosed())
+              itr.remove();
+          } catch (SQLException e) {
+            itr.remove();
+          }
+        }
+      }
+      roleResets.add(physical);
+    }
+  }
+
+  /**
+   * Forget the caches of physical connections the pool has closed.
+   * Their statements went with the connection.
+   */
+  private void dropClosedStatementCaches() throws SQLException {
+    Iterator<Connection> itr = statementCaches.keySet().iterator();
+    while (itr.hasNext()) {
+      if (itr.next().isClosed())
+        itr.remove();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long getStatementCacheHits() {
+    return statementCounters.hits.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long getStatementCacheMisses() {
+    return statementCounters.misses.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long getStatementCacheEvictions() {
+    return statementCounters.evictions.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public PoolStatistics getPoolStatistics() {
+    return metrics.snapshot();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void resetPoolStatistics() {
+    metrics.reset();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public List<SqlStatistic> getTopStatements(int n) {
+    SqlStatistics stats = sqlStatistics;
+    if (stats == null)
+      return new ArrayList<SqlStatistic>();
+    return stats.top(n);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void resetSqlStatistics() {
+    SqlStatistics stats = sqlStatistics;
+    if (stats != null)
+      stats.reset();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public List<SlowQuery> getSlowQueries() {
+    SlowQueryLog slowLog = slowQueryLog;
+    if (slowLog == null)
+      return new ArrayList<SlowQuery>();
+    return slowLog.getHistory();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void addStatementListener(IStatementListener listener) {
+    statementListeners.add(listener);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void removeStatementListener(IStatementListener listener) {
+    statementListeners.remove(listener);
+  }
+
+  StatementListeners getStatementListeners() {
+    return statementListeners;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public List<RoundTripStatistic> getRoundTripsByOperation() {
+    RoundTripProfiler profiler = roundTripProfiler;
+    if (profiler == null)
+      return new ArrayList<RoundTripStatistic>();
+    return profiler.byOperation();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public List<RoundTripStatistic> getChattiestCallSites(int n) {
+    RoundTripProfiler profiler = roundTripProfiler;
+    if (profiler == null)
+      return new ArrayList<RoundTripStatistic>();
+    return profiler.chattiestSites(n);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void resetRoundTripStatistics() {
+    RoundTripProfiler profiler = roundTripProfiler;
+    if (profiler != null)
+      profiler.reset();
+  }
+
+  /**
+   * The client-side result cache, or <code>null</code> if it is disabled.
+   */
+  QueryResultCache getQueryCache() {
+    return queryCache;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void registerWarmupStatement(String sql) {
+    if (!warmupStatements.contains(sql))
+      warmupStatements.add(sql);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void registerWarmupTable(String table) {
+    if (!warmupTables.contains(table))
+      warmupTables.add(table);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public IResult warmUp(int connections) {
+    IResult result = new ResultPojo();
+    // connections beyond those the pool keeps idle would be closed on return
+    int n = Math.min(connections,
+        Math.min(connectionPool.getMaxTotal(), connectionPool.getMaxIdle()));
+    ConnectionWarmer warmer = new ConnectionWarmer(this, warmupStatements, warmupTables,
+        getIntProperty("WarmupJitterMillis", 50));
+    result.setResultObject(warmer.run(n, result));
+    return result;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void invalidateQueryCache(String table) {
+    if (queryCache != null)
+      queryCache.invalidate(table);
   }
 
   /**
@@ -159,8 +815,48 @@ public class PostgresConnectionFactory extends RootEnvironment
   public IPostgresConnection getConnection() throws SQLException {
 
 	  try {
-		  Connection con = connectionPool.getConnection();
-		  return new PostgresConnection(con, this);
+		  Object event = JfrSupport.isRecording() ? JfrEvents.beginBorrow() : null;
+		  RoundTripProfiler profiler = roundTripProfiler;
+		  long[] traffic = (profiler == null) ? null : profiler.begin();
+		  long start = System.nanoTime();
+		  IStatementListener[] listeners = statementListeners.get();
+		  StatementContext context = null;
+		  if (listeners.length > 0) {
+			  context = new StatementContext(StatementContext.Kind.BORROW, null, null, null,
+			                                 null, null, start);
+			  statementListeners.before(listeners, context);
+		  }
+		  Connection con = null;
+		  PostgresConnection result = null;
+		  metrics.borrowStarted();
+		  LeakDetector detector = leakDetector;
+		  if (detector != null)
+			  detector.borrowStarted(start);
+		  try {
+			  con = connectionPool.getConnection();
+			  result = new PostgresConnection(con, this);
+			  if (detector != null)
+				  detector.borrowed(result, System.nanoTime());
+		  } finally {
+			  metrics.borrowEnded(System.nanoTime() - start);
+			  if (event != null)
+				  JfrEvents.endBorrow(event, getUrl(), connectionPool.getNumActive(), con == null);
+			  if (traffic != null)
+				  profiler.end("BORROW", traffic);
+			  if (detector != null) {
+				  detector.borrowEnded();
+				  detector.borrowWaited(System.nanoTime() - start);
+			  }
+			  if (context != null) {
+				  context.setConnection(result);
+				  context.setFailed(result == null);
+				  statementListeners.after(listeners, context);
+			  }
+		  }
+		  AdaptivePoolSizer sizer = poolSizer;
+		  if (sizer != null)
+			  sizer.recordBorrowWait(System.nanoTime() - start);
+		  return result;
 	  } catch (Exception e) {
 		  logError("ConnectionFail "+e.getMessage(), e);
 		  throw new SQLException(e);
@@ -173,6 +869,45 @@ public class PostgresConnectionFactory extends RootEnvironment
    */
   @Override
   public void shutDown() /*throws SQLException*/ {
+    if (cacheListener != null) {
+      cacheListener.shutDown();
+      cacheListener = null;
+    }
+    if (poolSizer != null) {
+      poolSizer.shutDown();
+      poolSizer = null;
+    }
+    if (sqlReporter != null) {
+      sqlReporter.shutDown();
+      sqlReporter = null;
+    }
+    if (slowQueryLog != null) {
+      slowQueryLog.shutDown();
+      slowQueryLog = null;
+    }
+    if (leakDetector != null) {
+      leakDetector.shutDown();
+      leakDetector = null;
+    }
+    synchronized (this) {
+      if (asyncConnection != null) {
+        asyncConnection.shutDown();
+        asyncConnection = null;
+      }
+    }
+    if (metricsName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+      } catch (JMException e) {
+        logError(e.getMessage(), e);
+      }
+      metricsName = null;
+    }
+    synchronized (statementCaches) {
+      for (StatementCache cache : statementCaches.values())
+        cache.clear();
+      statementCaches.clear();
+    }
     try {
       connectionPool.close();
     } catch (SQLException e) {
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.topicquests.pg.api.IRow;
+
+/**
+ * A detached row: the column values are copied out of the ResultSet so
+ * the row stays valid after the cursor has moved on. Column names are
+ * shared by every row of a query.
+ */
+class PostgresRow implements IRow {
+  private final Columns columns;
+  private final Object[] values;
+
+  PostgresRow(Columns columns, Object[] values) {
+    this.columns = columns;
+    this.values = values;
+  }
+
+  /**
+   * Copy the current row of <code>rs</code>.
+   */
+  static PostgresRow read(Columns columns, ResultSet rs) throws SQLException {
+    int n = columns.names.length;
+    Object[] values = new Object[n];
+    for (int i = 0; i < n; i++) {
+      values[i] = rs.getObject(i + 1);
+    }
+    return new PostgresRow(columns, values);
+  }
+
+  @Override
+  public int getColumnCount() {
+    return values.length;
+  }
+
+  @Override
+  public String getColumnName(int column) {
+    return columns.names[column - 1];
+  }
+
+  @Override
+  public Object getObject(int column) {
+    return values[column - 1];
+  }
+
+  @Override
+  public Object getObject(String columnLabel) {
+    return values[columns.indexOf(columnLabel)];
+  }
+
+  @Override
+  public String getString(int column) {
+    Object v = getObject(column);
+    return (v == null) ? null : v.toString();
+  }
+
+  @Override
+  public String getString(String columnLabel) {
+    Object v = getObject(columnLabel);
+    return (v == null) ? null : v.toString();
+  }
+
+  @Override
+  public Object[] toArray() {
+    return values.clone();
+  }
+
+  /**
+   * Column labels of a query, with a case-insensitive index.
+   */
+  static final class Columns {
+    final String[] names;
+    private final Map<String, Integer> index = new HashMap<String, Integer>();
+
+    Columns(String[] names) {
+      this.names = names;
+      for (int i = names.length - 1; i >= 0; i--) {
+        index.put(names[i].toLowerCase(), Integer.valueOf(i));
+      }
+    }
+
+    static Columns of(ResultSetMetaData md) throws SQLException {
+      String[] names = new String[md.getColumnCount()];
+      for (int i = 0; i < names.length; i++) {
+        names[i] = md.getColumnLabel(i + 1);
+      }
+      return new Columns(names);
+    }
+
+    int indexOf(String label) {
+      Integer i = index.get(label.toLowerCase());
+      if (i == null)
+        throw new IllegalArgumentException("No column "+label);
+      return i.intValue();
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.NoSuchElementException;
+
+import org.topicquests.pg.api.IRow;
+import org.topicquests.pg.api.IRowCursor;
+
+/**
+ * Iterates a ResultSet opened with a fetch size inside a transaction, so
+ * pgjdbc reads it through a server-side portal one fetch at a time
+ * instead of buffering the whole result.
+ * <p>
+ * If the cursor began the transaction itself it also ends it (with a
+ * rollback, since it only read) and restores autocommit when closed.
+ */
+class PostgresRowCursor implements IRowCursor {
+  private final PostgresConnectionFactory environment;
+  private final Connection conn;
+  private final Statement stmt;
+  private final ResultSet rs;
+  private final boolean ownsTransaction;
+  private final PostgresRow.Columns columns;
+  private PostgresRow next = null;
+  private boolean closed = false;
+  private long rowCount = 0;
+
+  PostgresRowCursor(PostgresConnectionFactory env, Connection conn, Statement stmt,
+                    ResultSet rs, boolean ownsTransaction) throws SQLException {
+    this.environment = env;
+    this.conn = conn;
+    this.stmt = stmt;
+    this.rs = rs;
+    this.ownsTransaction = ownsTransaction;
+    this.columns = PostgresRow.Columns.of(rs.getMetaData());
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (next != null)
+      return true;
+    if (closed)
+      return false;
+    try {
+      if (rs.next()) {
+        next = PostgresRow.read(columns, rs);
+        return true;
+      }
+    } catch (SQLException e) {
+      environment.logError(e.getMessage(), e);
+      close();
+      throw new IllegalStateException("PGD-31 "+e.getMessage(), e);
+    }
+    close();
+    return false;
+  }
+
+  @Override
+  public IRow next() {
+    if (!hasNext())
+      throw new NoSuchElementException();
+    IRow row = next;
+    next = null;
+    rowCount++;
+    return row;
+  }
+
+  @Override
+  public long getRowCount() {
+    return rowCount;
+  }
+
+  @Override
+  public void close() {
+    if (closed)
+      return;
+    closed = true;
+    environment.getMetrics().recordRowsReturned(rowCount);
+    try {
+      rs.close();
+      stmt.close();
+    } catch (SQLException e) {
+      environment.logError(e.getMessage(), e);
+    } finally {
+      if (ownsTransaction)
+        endTransaction(conn, environment);
+    }
+  }
+
+  /**
+   * Roll back a cursor-owned transaction and restore autocommit.
+   */
+  static void endTransaction(Connection conn, PostgresConnectionFactory env) {
+    try {
+      conn.rollback();
+      conn.setAutoCommit(true);
+    } catch (SQLException e) {
+      env.logError(e.getMessage(), e);
+    }
+  }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import org.topicquests.pg.api.IPostgresStatement;
+import org.topicquests.pg.api.Operation;
+import org.topicquests.pg.api.StatementResult;
+
+/**
+ * A reusable handle on one PreparedStatement. Bind failures are held
+ * until the next execution, which reports them in its StatementResult,
+ * so the fluent setters need no result of their own.
+ */
+class PostgresStatement implements IPostgresStatement {
+  private final PostgresConnection connection;
+  private final PostgresConnectionFactory environment;
+  private final String sql;
+  // worked out on the first execution that records it, then reused
+  private String fingerprint = null;
+  private PreparedStatement ps;
+  private SQLException bindError = null;
+
+  PostgresStatement(PostgresConnection connection, PostgresConnectionFactory env,
+                    String sql, PreparedStatement ps) {
+    this.connection = connection;
+    this.environment = env;
+    this.sql = sql;
+    this.ps = ps;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public IPostgresStatement bindInt(int index, int value) {
+    try {
+      ps().setInt(index, value);
+    } catch (SQLException e) {
+      bindFailed(e);
+    }
+    return this;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public IPostgresStatement bindLong(int index, long value) {
+    try {
+      ps().setLong(index, value);
+    } catch (SQLException e) {
+      bindFailed(e);
+    }
+    return this;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public IPostgresStatement bindDouble(int index, double value) {
+    try {
+      ps().setDouble(index, value);
+    } catch (SQLException e) {
+      bindFailed(e);
+    }
+    return this;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public IPostgresStatement bindBoolean(int index, boolean value) {
+    try {
+      ps().setBoolean(index, value);
+    } catch (SQLException e) {
+      bindFailed(e);
+    }
+    return this;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public IPostgresStatement bindString(int index, String value) {
+    try {
+      if (value == null)
+        ps().setNull(index, Types.VARCHAR);
+      else
+        ps().setString(index, value);
+    } catch (SQLException e) {
+      bindFailed(e);
+    }
+    return this;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public IPostgresStatement bindNull(int index, int sqlType) {
+    try {
+      ps().setNull(index, sqlType);
+    } catch (SQLException e) {
+      bindFailed(e);
+    }
+    return this;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public IPostgresStatement bindObject(int index, Object value) {
+    try {
+      environment.getParameterBinder().bind(ps(), index, value);
+    } catch (SQLException e) {
+      bindFailed(e);
+    }
+    return this;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public IPostgresStatement clearParameters() {
+    bindError = null;
+    try {
+      ps().clearParameters();
+    } catch (SQLException e) {
+      bindFailed(e);
+    }
+    return this;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public StatementResult executeUpdate(StatementResult result) {
+    result.reset();
+    if (checkBound(result)) {
+      long start = connection.startStatement(Operation.STATEMENT_UPDATE, sql);
+      try {
+        int rows = ps.executeUpdate();
+        environment.getMetrics().recordRowsAffected(rows);
+        result.setRowCount(rows);
+      } catch (SQLException e) {
+        environment.logError(e.getMessage(), e);
+        addError(result, e.getMessage());
+      }
+      connection.endStatement(Operation.STATEMENT_UPDATE, sql, fingerprint(), start,
+                              result.getRowCount(), result.hasError());
+    }
+    return result;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public StatementResult executeQuery(StatementResult result) {
+    result.reset();
+    if (checkBound(result)) {
+      long start = connection.startStatement(Operation.STATEMENT_QUERY, sql);
+      try {
+        ResultSet rs = ps.executeQuery();
+        result.setResultObject(rs);
+      } catch (SQLException e) {
+        environment.logError(e.getMessage(), e);
+        addError(result, e.getMessage());
+      }
+      connection.endStatement(Operation.STATEMENT_QUERY, sql, fingerprint(), start, 0,
+                              result.hasError());
+    }
+    return result;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void close() {
+    if (ps == null)
+      return;
+    try {
+      connection.releaseStatement(ps);
+    } catch (SQLException e) {
+      environment.logError(e.getMessage(), e);
+    } finally {
+      ps = null;
+      connection.statementClosed(this);
+    }
+  }
+
+  private void addError(StatementResult result, String message) {
+    connection.reportError("PGD-33", message);
+    result.addErrorString("PGD-33", message);
+  }
+
+  /**
+   * @return the fingerprint of the SQL, or <code>null</code> if nothing records it
+   */
+  private String fingerprint() {
+    if (fingerprint == null && environment.isFingerprinting()) {
+      try {
+        fingerprint = SqlFingerprint.normalize(sql);
+      } catch (RuntimeException e) {
+        // left to the statistics, which guard their own failures
+      }
+    }
+    return fingerprint;
+  }
+
+  /**
+   * @return the statement, unless the handle or its connection is closed
+   */
+  private PreparedStatement ps() throws SQLException {
+    if (ps == null)
+      throw new SQLException("statement handle is closed");
+    return ps;
+  }
+
+  private void bindFailed(SQLException e) {
+    if (bindError == null)
+      bindError = e;
+  }
+
+  /**
+   * Report a held bind failure, or a closed handle.
+   * @return <code>true</code> if the statement can be executed
+   */
+  private boolean checkBound(StatementResult result) {
+    if (ps == null) {
+      addError(result, "statement handle is closed");
+      return false;
+    }
+    if (bindError != null) {
+      environment.logError(bindError.getMessage(), bindError);
+      addError(result, bindError.getMessage());
+      bindError = null;
+      return false;
+    }
+    return true;
+  }
+}
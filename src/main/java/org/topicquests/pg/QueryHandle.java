@@ -0,0 +1,95 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.topicquests.pg.api.IQueryHandle;
+
+/**
+ * An open result set and the statement behind it, tracked by the
+ * connection that created them until one of them closes the handle.
+ */
+class QueryHandle implements IQueryHandle {
+  private final PostgresConnection connection;
+  private final Statement statement;
+  private ResultSet rs;
+  // closed when a transaction ends, not only with the connection
+  private final boolean scoped;
+  // where it was opened, when the leak detector sampled it
+  private final Exception opened;
+
+  QueryHandle(PostgresConnection connection, Statement statement, ResultSet rs,
+              boolean scoped, Exception opened) {
+    this.connection = connection;
+    this.statement = statement;
+    this.rs = rs;
+    this.scoped = scoped;
+    this.opened = opened;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public ResultSet getResultSet() {
+    return rs;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean isClosed() {
+    return rs == null;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void close() {
+    if (rs != null)
+      connection.closeHandle(this);
+  }
+
+  boolean isScoped() {
+    return scoped;
+  }
+
+  Exception getOpened() {
+    return opened;
+  }
+
+  boolean owns(ResultSet r) {
+    return rs == r;
+  }
+
+  /**
+   * Close the result set and hand the statement back to the connection.
+   */
+  void release() throws SQLException {
+    ResultSet r = rs;
+    rs = null;
+    try {
+      r.close();
+    } finally {
+      connection.releaseStatement(statement);
+    }
+  }
+}
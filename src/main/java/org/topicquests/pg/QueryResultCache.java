@@ -0,0 +1,255 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import java.io.InputStream;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetFactory;
+import javax.sql.rowset.RowSetProvider;
+
+/**
+ * A bounded LRU cache of materialized SELECT results, keyed on the
+ * role, the SQL text and the bound parameter values.
+ * <p>
+ * Cached results are held as read-only {@link CachedRowSet} objects;
+ * every hit hands out a shared copy with its own cursor, so callers
+ * can iterate and close it like any other ResultSet.
+ * <p>
+ * Entries are invalidated by table name (see {@link #invalidate(String)})
+ * as PostgreSQL NOTIFY messages arrive, and as this provider's own
+ * connections write (see {@link #writtenTable(String)}), so a write is
+ * seen here without waiting for its notification. A generation counter
+ * guards against a load that raced with an invalidation putting stale
+ * rows back into the cache.
+ */
+class QueryResultCache {
+  // statements that change the session or transaction but no table
+  private static final Set<String> NO_WRITES = new HashSet<String>(Arrays.asList(
+      "set", "reset", "show", "begin", "start", "commit", "end", "rollback", "savepoint",
+      "release", "discard", "listen", "unlisten", "notify", "deallocate", "lock"));
+
+  private final int maxEntries;
+  private final AtomicLong generation = new AtomicLong();
+  private final LinkedHashMap<Key, CachedRowSet> entries;
+  private final RowSetFactory rowSetFactory;
+
+  QueryResultCache(int maxEntries) throws SQLException {
+    this.maxEntries = maxEntries;
+    this.rowSetFactory = RowSetProvider.newFactory();
+    this.entries = new LinkedHashMap<Key, CachedRowSet>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, CachedRowSet> eldest) {
+        return size() > QueryResultCache.this.maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Can a statement with these parameters be cached at all?
+   * Streams and LOB handles are single use and cannot be part of a key.
+   */
+  static boolean isCacheable(Object... vals) {
+    if (vals == null)
+      return true;
+    for (Object v : vals) {
+      if (v instanceof InputStream || v instanceof Blob || v instanceof Clob)
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return the current generation; pass it back to {@link #put}
+   */
+  long generation() {
+    return generation.get();
+  }
+
+  /**
+   * Look up a cached result.
+   * @return a fresh ResultSet over the cached rows, or <code>null</code> on a miss
+   */
+  ResultSet get(String role, String sql, Object... vals) throws SQLException {
+    CachedRowSet crs;
+    synchronized (entries) {
+      crs = entries.get(new Key(role, sql, vals));
+    }
+    if (crs == null)
+      return null;
+    return (ResultSet)crs.createShared();
+  }
+
+  /**
+   * Materialize <code>rs</code>, store it unless the cache was invalidated
+   * since <code>loadGeneration</code>, and return a ResultSet over the rows.
+   * The live ResultSet is fully consumed but not closed.
+   */
+  ResultSet put(String role, String sql, Object[] vals, ResultSet rs,
+                long loadGeneration) throws SQLException {
+    CachedRowSet crs = rowSetFactory.createCachedRowSet();
+    crs.populate(rs);
+    crs.setReadOnly(true);
+
+    Key key = new Key(role, sql, vals);
+    synchronized (entries) {
+      if (generation.get() == loadGeneration)
+        entries.put(key, crs);
+    }
+    return (ResultSet)crs.createShared();
+  }
+
+  /**
+   * Drop every entry whose SQL references <code>table</code>.
+   * A schema-qualified name also matches unqualified references.
+   * @param table the table name; <code>null</code> or empty clears the cache
+   */
+  void invalidate(String table) {
+    if (table == null || table.trim().isEmpty()) {
+      invalidateAll();
+      return;
+    }
+    String name = table.trim().toLowerCase();
+    String bare = name.substring(name.lastIndexOf('.') + 1);
+
+    synchronized (entries) {
+      generation.incrementAndGet();
+      Iterator<Key> itr = entries.keySet().iterator();
+      while (itr.hasNext()) {
+        String sql = itr.next().sql.toLowerCase();
+        if (references(sql, name) || references(sql, bare))
+          itr.remove();
+      }
+    }
+  }
+
+  /**
+   * @return the table an INSERT, UPDATE, DELETE, TRUNCATE or COPY writes,
+   *         <code>null</code> for session and transaction statements such
+   *         as SET or COMMIT, which write none, or "" for anything else,
+   *         which may write any table
+   */
+  static String writtenTable(String sql) {
+    String[] stmts = CountQueries.strip(sql).split(";");
+    if (stmts.length == 1)
+      return tableOf(stmts[0]);
+    // several statements: only sure when none of them writes
+    for (String stmt : stmts) {
+      if (tableOf(stmt) != null)
+        return "";
+    }
+    return null;
+  }
+
+  private static String tableOf(String sql) {
+    String stmt = sql.trim();
+    if (stmt.isEmpty())
+      return null;
+    String[] words = stmt.split("[\\s(]+", 5);
+    String verb = words[0].toLowerCase(Locale.ROOT);
+    if (NO_WRITES.contains(verb))
+      return null;
+    // COPY (SELECT ...) TO only reads
+    if (verb.equals("copy") && stmt.substring(4).trim().startsWith("("))
+      return null;
+    int at;
+    if (verb.equals("insert") || verb.equals("delete"))
+      at = 2;
+    else if (verb.equals("update") || verb.equals("copy"))
+      at = 1;
+    else if (verb.equals("truncate"))
+      at = (words.length > 1 && words[1].equalsIgnoreCase("table")) ? 2 : 1;
+    else
+      return "";
+    if (at < words.length && words[at].equalsIgnoreCase("only"))
+      at++;
+    if (at >= words.length)
+      return "";
+    String name = words[at].replace("\"", "");
+    // several tables
+    if (name.isEmpty() || name.indexOf(',') >= 0)
+      return "";
+    return name;
+  }
+
+  void invalidateAll() {
+    synchronized (entries) {
+      generation.incrementAndGet();
+      entries.clear();
+    }
+  }
+
+  int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  private static boolean references(String sql, String name) {
+    int from = 0;
+    int idx;
+    while ((idx = sql.indexOf(name, from)) >= 0) {
+      int end = idx + name.length();
+      boolean startOk = idx == 0 || !isIdentifierChar(sql.charAt(idx - 1));
+      boolean endOk = end == sql.length() || !isIdentifierChar(sql.charAt(end));
+      if (startOk && endOk)
+        return true;
+      from = idx + 1;
+    }
+    return false;
+  }
+
+  private static boolean isIdentifierChar(char c) {
+    return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+  }
+
+  private static final class Key {
+    final String role;
+    final String sql;
+    final Object[] vals;
+    final int hash;
+
+    Key(String role, String sql, Object[] vals) {
+      this.role = role;
+      this.sql = sql;
+      this.vals = (vals == null) ? new Object[0] : vals.clone();
+      this.hash = 31 * (31 * Objects.hashCode(role) + sql.hashCode())
+          + Arrays.deepHashCode(this.vals);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key))
+        return false;
+      Key k = (Key)o;
+      return hash == k.hash && sql.equals(k.sql)
+          && Objects.equals(role, k.role) && Arrays.deepEquals(vals, k.vals);
+    }
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.topicquests.pg.api.RoundTripStatistic;
+
+/**
+ * Attributes network round trips and bytes to logical operations and
+ * to the code that called them. Connections opened while the profiler
+ * is on use {@link CountingSocketFactory}, which adds their traffic to
+ * per-thread {@link Counters}. Each operation reads those counters when
+ * it starts and ends. The difference is added to the totals of the
+ * operation, and, for one in RoundTripSampleRate operations, to the
+ * totals of the first caller frame outside this package.
+ */
+class RoundTripProfiler {
+  private static final String PACKAGE = RoundTripProfiler.class.getPackage().getName() + ".";
+  private static final ThreadLocal<Counters> COUNTERS = new ThreadLocal<Counters>() {
+    @Override
+    protected Counters initialValue() {
+      return new Counters();
+    }
+  };
+
+  private final int sampleRate;
+  private final ConcurrentHashMap<String, Totals> operations = new ConcurrentHashMap<String, Totals>();
+  private final ConcurrentHashMap<String, Totals> sites = new ConcurrentHashMap<String, Totals>();
+
+  RoundTripProfiler(int sampleRate) {
+    this.sampleRate = Math.max(sampleRate, 1);
+  }
+
+  /**
+   * The traffic of the current thread, written by its sockets.
+   */
+  static Counters counters() {
+    return COUNTERS.get();
+  }
+
+  /**
+   * @return the token to pass to {@link #end(String, long[])}
+   */
+  long[] begin() {
+    Counters c = COUNTERS.get();
+    return new long[] {c.roundTrips, c.bytesSent, c.bytesReceived};
+  }
+
+  void end(String operation, long[] begin) {
+    Counters c = COUNTERS.get();
+    long trips = c.roundTrips - begin[0];
+    long sent = c.bytesSent - begin[1];
+    long received = c.bytesReceived - begin[2];
+    totals(operations, operation).add(trips, sent, received);
+    if (sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0) {
+      String site = callSite();
+      if (site != null)
+        totals(sites, site).add(trips, sent, received);
+    }
+  }
+
+  private static Totals totals(ConcurrentHashMap<String, Totals> map, String key) {
+    Totals t = map.get(key);
+    return (t != null) ? t : map.computeIfAbsent(key, k -> new Totals());
+  }
+
+  /**
+   * @return the first frame outside this package, or <code>null</code>
+   */
+  private static String callSite() {
+    for (StackTraceElement e : new Throwable().getStackTrace()) {
+      String cls = e.getClassName();
+      if (!cls.startsWith(PACKAGE))
+        return e.toString();
+    }
+    return null;
+  }
+
+  List<RoundTripStatistic> byOperation() {
+    return sorted(operations, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @return up to <code>n</code> sampled call sites, most round trips first
+   */
+  List<RoundTripStatistic> chattiestSites(int n) {
+    return sorted(sites, n);
+  }
+
+  void reset() {
+    operations.clear();
+    sites.clear();
+  }
+
+  private static List<RoundTripStatistic> sorted(ConcurrentHashMap<String, Totals> map, int n) {
+    List<RoundTripStatistic> result = new ArrayList<RoundTripStatistic>(map.size());
+    for (Map.Entry<String, Totals> e : map.entrySet())
+      result.add(e.getValue().snapshot(e.getKey()));
+    Collections.sort(result, new Comparator<RoundTripStatistic>() {
+      @Override
+      public int compare(RoundTripStatistic a, RoundTripStatistic b) {
+        return Long.compare(b.getRoundTrips(), a.getRoundTrips());
+      }
+    });
+    return (result.size() > n) ? new ArrayList<RoundTripStatistic>(result.subList(0, n)) : result;
+  }
+
+  /**
+   * Running totals for one thread. Only that thread writes them.
+   */
+  static final class Counters {
+    long roundTrips;
+    long bytesSent;
+    long bytesReceived;
+  }
+
+  private static final class Totals {
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder roundTrips = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+
+    void add(long trips, long sent, long received) {
+      calls.increment();
+      roundTrips.add(trips);
+      bytesSent.add(sent);
+      bytesReceived.add(received);
+    }
+
+    RoundTripStatistic snapshot(String key) {
+      return new RoundTripStatistic(key, calls.sum(), roundTrips.sum(),
+                                    bytesSent.sum(), bytesReceived.sum());
+    }
+  }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.topicquests.pg.api.IPostgresConnection;
+import org.topicquests.pg.api.IRow;
+import org.topicquests.pg.api.IRowCursor;
+import org.topicquests.pg.api.IRowPublisher;
+import org.topicquests.support.ResultPojo;
+import org.topicquests.support.api.IResult;
+
+/**
+ * Publishes the rows of an {@link IRowCursor} as they are requested.
+ * <p>
+ * request and cancel only record what was asked and then drain: the
+ * first thread in runs the loop and later callers, including a
+ * subscriber requesting from inside onNext, just leave work for it. So
+ * the JDBC connection is used by one thread at a time and the stack does
+ * not grow with each request.
+ */
+class RowPublisher implements IRowPublisher {
+  private final PostgresConnectionFactory environment;
+  /** The connection to use, or <code>null</code> to borrow one */
+  private final IPostgresConnection connection;
+  private final String sql;
+  private final int fetchSize;
+  private final Object[] vals;
+  private final AtomicBoolean subscribed = new AtomicBoolean();
+
+  RowPublisher(PostgresConnectionFactory env, IPostgresConnection connection,
+               String sql, int fetchSize, Object... vals) {
+    this.environment = env;
+    this.connection = connection;
+    this.sql = sql;
+    this.fetchSize = fetchSize;
+    this.vals = vals;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void subscribe(Subscriber subscriber) {
+    if (subscriber == null)
+      throw new NullPointerException("subscriber");
+    if (!subscribed.compareAndSet(false, true)) {
+      RowSubscription refused = new RowSubscription(subscriber);
+      refused.done = true;
+      subscriber.onSubscribe(refused);
+      subscriber.onError(new IllegalStateException("IRowPublisher allows one subscriber"));
+      return;
+    }
+    RowSubscription subscription = new RowSubscription(subscriber);
+    try {
+      subscriber.onSubscribe(subscription);
+    } catch (RuntimeException e) {
+      environment.logError("PGD-39 onSubscribe threw "+e.getMessage(), e);
+      environment.getMetrics().recordError("PGD-39");
+      subscription.cancel();
+    }
+  }
+
+  private final class RowSubscription implements Subscription {
+    private final Subscriber subscriber;
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private volatile boolean cancelled = false;
+    /** The first non-positive request, if <code>invalid</code> */
+    private volatile long badRequest = 0;
+    private volatile boolean invalid = false;
+    // only touched by the thread running drain()
+    private boolean done = false;
+    private IPostgresConnection conn = null;
+    private IRowCursor cursor = null;
+
+    RowSubscription(Subscriber subscriber) {
+      this.subscriber = subscriber;
+    }
+
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        if (!invalid) {
+          badRequest = n;
+          invalid = true;
+        }
+      } else {
+        for (;;) {
+          long r = requested.get();
+          if (r == Long.MAX_VALUE)
+            break;
+          long u = r + n;
+          if (u < 0)
+            u = Long.MAX_VALUE;
+          if (requested.compareAndSet(r, u))
+            break;
+        }
+      }
+      drain();
+    }
+
+    @Override
+    public void cancel() {
+      cancelled = true;
+      drain();
+    }
+
+    private void drain() {
+      if (wip.getAndIncrement() != 0)
+        return;
+      int missed = 1;
+      for (;;) {
+        if (!done) {
+          if (cancelled) {
+            finish();
+          } else if (invalid) {
+            finish();
+            subscriber.onError(new IllegalArgumentException(
+                "request must be positive, was "+badRequest));
+          } else {
+            emit();
+          }
+        }
+        missed = wip.addAndGet(-missed);
+        if (missed == 0)
+          break;
+      }
+    }
+
+    /**
+     * Send rows until demand runs out, the rows run out or the
+     * subscription is cancelled; a later request or cancel drains again.
+     */
+    private void emit() {
+      long n = requested.get();
+      long sent = 0;
+      while (sent != n) {
+        if (cancelled || invalid)
+          return;
+        if (cursor == null && !open())
+          return;
+        boolean more;
+        try {
+          more = cursor.hasNext();
+        } catch (IllegalStateException e) {
+          // the cursor logged it and closed itself
+          cursor = null;
+          finish();
+          subscriber.onError(e.getCause() != null ? e.getCause() : e);
+          return;
+        }
+        if (!more) {
+          finish();
+          subscriber.onComplete();
+          return;
+        }
+        IRow row = cursor.next();
+        sent++;
+        try {
+          subscriber.onNext(row);
+        } catch (RuntimeException e) {
+          environment.logError("PGD-39 onNext threw "+e.getMessage(), e);
+          environment.getMetrics().recordError("PGD-39");
+          cancelled = true;
+          finish();
+          return;
+        }
+      }
+      if (n != Long.MAX_VALUE)
+        requested.addAndGet(-sent);
+    }
+
+    /**
+     * Borrow a connection if need be and run the query.
+     * @return <code>false</code> if that failed and onError was sent
+     */
+    private boolean open() {
+      conn = connection;
+      if (conn == null) {
+        try {
+          conn = environment.getConnection();
+        } catch (SQLException e) {
+          environment.logError(e.getMessage(), e);
+          finish();
+          subscriber.onError(e);
+          return false;
+        }
+      }
+      IResult r = conn.executeSelectCursor(sql, fetchSize, vals);
+      if (r.hasError()) {
+        finish();
+        subscriber.onError(new SQLException(r.getErrorString()));
+        return false;
+      }
+      cursor = (IRowCursor)r.getResultObject();
+      return true;
+    }
+
+    /**
+     * Close the cursor and return a borrowed connection; no more signals follow.
+     */
+    private void finish() {
+      done = true;
+      if (cursor != null) {
+        cursor.close();
+        cursor = null;
+      }
+      if (conn != null && connection == null)
+        conn.closeConnection(new ResultPojo());
+      conn = null;
+    }
+  }
+}
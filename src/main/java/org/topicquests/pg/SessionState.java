@@ -0,0 +1,188 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * What a borrower has changed in its session, found by scanning the SQL
+ * of every statement it runs, so that returning the connection undoes
+ * only that.
+ * <p>
+ * Only statements at the start of the SQL or after a ';' count, so the
+ * SET of an UPDATE is not taken for a session change. Anything this
+ * cannot name, such as set_config(), is undone with RESET ALL, and a
+ * set_config() whose name is not a literal may have changed the role.
+ * SQL run on a raw Statement cannot be scanned, so handing one out
+ * counts as changing everything.
+ */
+class SessionState {
+  private static final Pattern CHANGE = Pattern.compile(
+      "(?:^|;)\\s*(?:set\\s+(?:session\\s+)?(role\\b|session\\s+authorization\\b|local\\b"
+      + "|transaction\\b|constraints\\b|time\\s+zone\\b|[a-z_][\\w.]*)"
+      + "|reset\\s+(role\\b|all\\b|session\\s+authorization\\b|[a-z_][\\w.]*)"
+      + "|(discard)\\b"
+      + "|(create\\s+(?:(?:global|local)\\s+)?temp(?:orary)?)\\b)"
+      + "|\\b(set_config)\\s*\\(",
+      Pattern.CASE_INSENSITIVE);
+
+  private Set<String> settings = null;
+  private boolean allSettings = false;
+  private boolean tempTables = false;
+
+  /**
+   * Note the session changes made by <code>sql</code>.
+   * @return <code>true</code> if it may have changed the session's role
+   */
+  boolean scan(String sql) {
+    if (!mayChange(sql))
+      return false;
+    boolean role = false;
+    Matcher m = CHANGE.matcher(sql);
+    while (m.find()) {
+      if (m.group(1) != null) {
+        String name = m.group(1).toLowerCase(Locale.ROOT);
+        if (name.equals("role") || name.startsWith("session") || name.equals("authorization"))
+          role = true;
+        else if (name.equals("characteristics"))
+          allSettings = true;
+        else if (name.startsWith("time"))
+          setting("timezone");
+        else if (name.equals("schema"))
+          setting("search_path");
+        else if (name.equals("names"))
+          setting("client_encoding");
+        else if (!name.equals("local") && !name.equals("transaction")
+                 && !name.equals("constraints"))
+          setting(name);
+      } else if (m.group(2) != null || m.group(3) != null) {
+        // RESET ALL and DISCARD also reset the role
+        String name = (m.group(2) != null) ? m.group(2).toLowerCase(Locale.ROOT) : "all";
+        if (name.equals("role") || name.startsWith("session") || name.equals("all"))
+          role = true;
+      } else if (m.group(4) != null) {
+        tempTables = true;
+      } else if (m.group(5) != null) {
+        allSettings = true;
+        String name = literalArgument(sql, m.end());
+        if (name == null || name.equals("role") || name.equals("session_authorization"))
+          role = true;
+      }
+    }
+    return role;
+  }
+
+  /**
+   * Note that SQL this cannot see may have changed anything.
+   */
+  void unknown() {
+    allSettings = true;
+    tempTables = true;
+  }
+
+  /**
+   * Every change the pattern looks for contains "set", "discard" or
+   * "temp"; most statements contain none of them and skip the regex.
+   */
+  private static boolean mayChange(String sql) {
+    int n = sql.length();
+    for (int i = 0; i < n; i++) {
+      switch (sql.charAt(i)) {
+        case 's': case 'S':
+          if (sql.regionMatches(true, i, "set", 0, 3))
+            return true;
+          break;
+        case 'd': case 'D':
+          if (sql.regionMatches(true, i, "discard", 0, 7))
+            return true;
+          break;
+        case 't': case 'T':
+          if (sql.regionMatches(true, i, "temp", 0, 4))
+            return true;
+          break;
+        default:
+          break;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the lower-cased string literal starting at <code>from</code>,
+   *         after any blanks, or <code>null</code> if there is none
+   */
+  private static String literalArgument(String sql, int from) {
+    int i = from;
+    while (i < sql.length() && Character.isWhitespace(sql.charAt(i)))
+      i++;
+    if (i >= sql.length() || sql.charAt(i) != '\'')
+      return null;
+    int end = sql.indexOf('\'', i + 1);
+    if (end < 0)
+      return null;
+    return sql.substring(i + 1, end).trim().toLowerCase(Locale.ROOT);
+  }
+
+  private void setting(String name) {
+    if (settings == null)
+      settings = new LinkedHashSet<String>();
+    settings.add(name);
+  }
+
+  /**
+   * @return <code>true</code> if the reset includes RESET ALL
+   */
+  boolean resetsAll() {
+    return allSettings;
+  }
+
+  /**
+   * The statements that undo the changes noted so far, as one string
+   * for a single round trip.
+   * @param role whether to reset the role as well
+   * @return <code>null</code> if there is nothing to undo
+   */
+  String resetSql(boolean role) {
+    StringBuilder buf = new StringBuilder();
+    if (role)
+      append(buf, "RESET ROLE");
+    if (allSettings)
+      append(buf, "RESET ALL");
+    else if (settings != null) {
+      for (String name : settings)
+        append(buf, "RESET " + name);
+    }
+    if (tempTables)
+      append(buf, "DISCARD TEMP");
+    return (buf.length() == 0) ? null : buf.toString();
+  }
+
+  private static void append(StringBuilder buf, String sql) {
+    if (buf.length() > 0)
+      buf.append("; ");
+    buf.append(sql);
+  }
+
+  void clear() {
+    settings = null;
+    allSettings = false;
+    tempTables = false;
+  }
+}
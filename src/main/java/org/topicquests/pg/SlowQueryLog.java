@@ -0,0 +1,329 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import java.io.InputStream;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.topicquests.pg.api.Operation;
+import org.topicquests.pg.api.SlowQuery;
+
+/**
+ * Logs statements that run longer than SlowQueryMillis. The calling
+ * thread only queues the statement; this thread does the logging, and
+ * drops entries rather than block when the queue is full.
+ * <p>
+ * SlowQueryExplainPercent of the slow statements are also run again
+ * under EXPLAIN (ANALYZE, BUFFERS) for their plan. That happens on a
+ * dedicated, unpooled connection, in a transaction that is always
+ * rolled back, under the caller's role and with a statement_timeout
+ * of SlowQueryExplainTimeoutMillis. ANALYZE really executes the
+ * statement, so writes, including a WITH with a data-modifying part,
+ * are only explained if SlowQueryExplainWrites is set. Several statements
+ * in one string are never explained, as only the first would be under
+ * EXPLAIN and the rest would really run. Statements whose parameters
+ * cannot be replayed (statement handles, batches, COPY, streams and
+ * LOBs) are logged without a plan.
+ * <p>
+ * The last SlowQueryHistorySize entries are kept for
+ * {@link PostgresConnectionFactory#getSlowQueries()}.
+ */
+class SlowQueryLog extends Thread {
+  private static final int QUEUE_SIZE = 1024;
+  private static final int MAX_PARAM_LENGTH = 100;
+  private static final Pattern WRITE_KEYWORD =
+      Pattern.compile("\\b(insert|update|delete|merge)\\b");
+
+  private final PostgresConnectionFactory environment;
+  private final long thresholdNanos;
+  private final int explainPercent;
+  private final boolean explainWrites;
+  private final int explainTimeoutMillis;
+  private final boolean redactParams;
+  private final int historySize;
+  private final String url, user, password;
+  private final BlockingQueue<Pending> queue = new ArrayBlockingQueue<Pending>(QUEUE_SIZE);
+  private final ArrayDeque<SlowQuery> history = new ArrayDeque<SlowQuery>();
+  private final AtomicLong dropped = new AtomicLong();
+  private volatile boolean running = true;
+  private Connection conn = null;
+
+  SlowQueryLog(PostgresConnectionFactory env, long thresholdMillis, int explainPercent,
+               boolean explainWrites, int explainTimeoutMillis, boolean redactParams,
+               int historySize, String url, String user, String password) {
+    super("tq-pg-slow-query");
+    setDaemon(true);
+    this.environment = env;
+    this.thresholdNanos = thresholdMillis * 1000000L;
+    this.explainPercent = explainPercent;
+    this.explainWrites = explainWrites;
+    this.explainTimeoutMillis = explainTimeoutMillis;
+    this.redactParams = redactParams;
+    this.historySize = historySize;
+    this.url = url;
+    this.user = user;
+    this.password = password;
+  }
+
+  /**
+   * Queue a statement if it was slow. Cheap when it was not.
+   * @param vals The bound parameters, or <code>null</code> if unknown
+   */
+  void offer(Operation op, String sql, Object[] vals, String role, long nanos,
+             long rows, boolean failed) {
+    if (nanos < thresholdNanos)
+      return;
+    boolean explain = explainPercent > 0
+        && ThreadLocalRandom.current().nextInt(100) < explainPercent
+        && canExplain(op, sql, vals);
+    Pending p = new Pending(System.currentTimeMillis(), op, sql, describe(vals),
+        (explain && vals != null) ? vals.clone() : null, explain, role, nanos, rows, failed);
+    if (!queue.offer(p))
+      dropped.incrementAndGet();
+  }
+
+  /**
+   * @return the recorded slow statements, oldest first
+   */
+  List<SlowQuery> getHistory() {
+    synchronized (history) {
+      return new ArrayList<SlowQuery>(history);
+    }
+  }
+
+  @Override
+  public void run() {
+    while (running) {
+      Pending p;
+      try {
+        p = queue.take();
+      } catch (InterruptedException e) {
+        break;
+      }
+      String plan = p.explain ? explain(p) : null;
+      SlowQuery q = new SlowQuery(p.timestamp, p.op, p.sql, p.params, p.role,
+          p.nanos / 1000L, p.rows, p.failed, plan);
+      long lost = dropped.getAndSet(0);
+      environment.logError((lost > 0) ? q + "\n(" + lost + " slow queries not logged)"
+                                        : q.toString(), null);
+      synchronized (history) {
+        if (history.size() >= historySize)
+          history.removeFirst();
+        history.addLast(q);
+      }
+    }
+    closeQuietly();
+  }
+
+  void shutDown() {
+    running = false;
+    interrupt();
+  }
+
+  private boolean canExplain(Operation op, String sql, Object[] vals) {
+    switch (op) {
+      case EXECUTE_SQL:
+      case EXECUTE_SELECT:
+      case EXECUTE_UPDATE:
+        break;
+      default:
+        return false;
+    }
+    Boolean write = isWrite(sql);
+    if (write == null || (write.booleanValue() && !explainWrites))
+      return false;
+    if (vals == null)
+      return sql.indexOf('?') < 0;
+    for (Object v : vals) {
+      if (v instanceof InputStream || v instanceof Blob || v instanceof Clob)
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * A WITH statement is a write if any of its parts modifies data; that
+   * is decided by keyword, so a WITH that merely mentions one (say in a
+   * string literal) is also treated as a write.
+   * @return whether <code>sql</code> modifies data, or <code>null</code>
+   * if it is neither a plain read nor a plain write, or is several statements
+   */
+  static Boolean isWrite(String sql) {
+    if (separatesStatements(CountQueries.strip(sql)))
+      return null;
+    String head = sql.trim().toLowerCase();
+    if (head.startsWith("with"))
+      return Boolean.valueOf(WRITE_KEYWORD.matcher(head).find());
+    if (head.startsWith("select") || head.startsWith("values") || head.startsWith("table"))
+      return Boolean.FALSE;
+    if (head.startsWith("insert") || head.startsWith("update")
+        || head.startsWith("delete") || head.startsWith("merge"))
+      return Boolean.TRUE;
+    return null;
+  }
+
+  /**
+   * @return whether <code>sql</code> has a ';' outside its literals,
+   *         quoted identifiers and comments
+   */
+  private static boolean separatesStatements(String sql) {
+    int len = sql.length();
+    for (int i = 0; i < len; i++) {
+      char c = sql.charAt(i);
+      if (c == ';')
+        return true;
+      if (c == '\'') {
+        // E'...' strings escape with a backslash as well as ''
+        boolean escapes = i > 0 && (sql.charAt(i - 1) == 'E' || sql.charAt(i - 1) == 'e');
+        for (i++; i < len && sql.charAt(i) != '\''; i++) {
+          if (escapes && sql.charAt(i) == '\\')
+            i++;
+        }
+      } else if (c == '"') {
+        i = sql.indexOf('"', i + 1);
+      } else if (c == '-' && sql.startsWith("--", i)) {
+        i = sql.indexOf('\n', i);
+      } else if (c == '/' && sql.startsWith("/*", i)) {
+        i = sql.indexOf("*/", i + 2);
+        if (i >= 0)
+          i++;
+      } else if (c == '$') {
+        int end = sql.indexOf('$', i + 1);
+        String tag = (end < 0) ? null : sql.substring(i, end + 1);
+        if (tag != null && tag.matches("\\$[A-Za-z_]*\\$")) {
+          i = sql.indexOf(tag, end + 1);
+          if (i >= 0)
+            i += tag.length() - 1;
+        }
+      }
+      // an unterminated literal or comment hides nothing more
+      if (i < 0)
+        return false;
+    }
+    return false;
+  }
+
+  private List<String> describe(Object[] vals) {
+    if (vals == null || vals.length == 0)
+      return Collections.emptyList();
+    List<String> result = new ArrayList<String>(vals.length);
+    for (Object v : vals) {
+      if (v == null)
+        result.add("null");
+      else if (redactParams)
+        result.add("<" + v.getClass().getSimpleName() + ">");
+      else {
+        String s = (v instanceof byte[]) ? "<" + ((byte[])v).length + " bytes>" : v.toString();
+        result.add(s.length() > MAX_PARAM_LENGTH ? s.substring(0, MAX_PARAM_LENGTH) + "..." : s);
+      }
+    }
+    return result;
+  }
+
+  private String explain(Pending p) {
+    try {
+      if (conn == null || conn.isClosed())
+        conn = DriverManager.getConnection(url, user, password);
+      conn.setAutoCommit(false);
+      try {
+        Statement s = conn.createStatement();
+        try {
+          if (p.role != null)
+            s.execute("SET LOCAL ROLE " + p.role);
+          s.execute("SET LOCAL statement_timeout = " + explainTimeoutMillis);
+        } finally {
+          s.close();
+        }
+        PreparedStatement ps = conn.prepareStatement("EXPLAIN (ANALYZE, BUFFERS) " + p.sql);
+        try {
+          if (p.vals != null)
+            environment.getParameterBinder().bind(ps, p.vals);
+          ResultSet rs = ps.executeQuery();
+          StringBuilder plan = new StringBuilder();
+          while (rs.next()) {
+            if (plan.length() > 0)
+              plan.append('\n');
+            plan.append(rs.getString(1));
+          }
+          rs.close();
+          return plan.toString();
+        } finally {
+          ps.close();
+        }
+      } finally {
+        conn.rollback();
+      }
+    } catch (SQLException e) {
+      environment.logError("SlowQuery explain "+e.getMessage(), e);
+      closeQuietly();
+      return null;
+    }
+  }
+
+  private void closeQuietly() {
+    if (conn != null) {
+      try {
+        conn.close();
+      } catch (SQLException x) {
+        // nothing more to do
+      }
+      conn = null;
+    }
+  }
+
+  private static final class Pending {
+    final long timestamp;
+    final Operation op;
+    final String sql;
+    final List<String> params;
+    final Object[] vals;
+    final boolean explain;
+    final String role;
+    final long nanos;
+    final long rows;
+    final boolean failed;
+
+    Pending(long timestamp, Operation op, String sql, List<String> params, Object[] vals,
+            boolean explain, String role, long nanos, long rows, boolean failed) {
+      this.timestamp = timestamp;
+      this.op = op;
+      this.sql = sql;
+      this.params = params;
+      this.vals = vals;
+      this.explain = explain;
+      this.role = role;
+      this.nanos = nanos;
+      this.rows = rows;
+      this.failed = failed;
+    }
+  }
+}
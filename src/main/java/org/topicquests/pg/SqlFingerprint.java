@@ -0,0 +1,241 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+/**
+ * Reduces a SQL string to a fingerprint shared by every execution of the
+ * same statement shape, the way pg_stat_statements does on the server:
+ * <ul>
+ * <li>string, dollar-quoted and numeric literals, and $n parameters,
+ * become ?;</li>
+ * <li>comments go, whitespace collapses to single spaces and words
+ * outside double quotes are lower-cased;</li>
+ * <li>IN lists and multi-row VALUES lists collapse to one element
+ * followed by "...".</li>
+ * </ul>
+ * So <code>"INSERT INTO vertex values('" + id + "', 3)"</code> gives
+ * <code>insert into vertex values(?, ?)</code> whatever the id.
+ * <p>
+ * Lists are collapsed as each closing bracket is written, looking back
+ * only over the list it closes, so the cost stays linear in the length
+ * of the SQL however long the lists the caller concatenated.
+ */
+final class SqlFingerprint {
+  private SqlFingerprint() {
+  }
+
+  static String normalize(String sql) {
+    int len = sql.length();
+    StringBuilder out = new StringBuilder(Math.min(len, 256));
+    boolean space = false;
+    int i = 0;
+    while (i < len) {
+      char c = sql.charAt(i);
+      if (Character.isWhitespace(c)) {
+        space = true;
+        i++;
+      } else if (c == '-' && i + 1 < len && sql.charAt(i + 1) == '-') {
+        while (i < len && sql.charAt(i) != '\n')
+          i++;
+        space = true;
+      } else if (c == '/' && i + 1 < len && sql.charAt(i + 1) == '*') {
+        int end = sql.indexOf("*/", i + 2);
+        i = (end < 0) ? len : end + 2;
+        space = true;
+      } else if (c == '\'') {
+        // E'...' strings take backslash escapes; drop the E with the literal
+        boolean escapes = false;
+        int n = out.length();
+        if (!space && n > 0 && (out.charAt(n - 1) == 'e')
+            && (n == 1 || !isWordChar(out.charAt(n - 2)))) {
+          out.setLength(n - 1);
+          escapes = true;
+        }
+        i = skipString(sql, i + 1, escapes);
+        space = append(out, '?', space);
+      } else if (c == '"') {
+        int end = sql.indexOf('"', i + 1);
+        end = (end < 0) ? len : end + 1;
+        space = append(out, '"', space);
+        out.append(sql, i + 1, end);
+        i = end;
+      } else if (c == '$') {
+        int end = dollarQuoteEnd(sql, i);
+        if (end > 0) {
+          i = end;
+        } else {
+          i++;
+          while (i < len && Character.isDigit(sql.charAt(i)))
+            i++;
+        }
+        space = append(out, '?', space);
+      } else if (Character.isDigit(c) && !(out.length() > 0 && !space
+                                           && isWordChar(out.charAt(out.length() - 1)))) {
+        i = skipNumber(sql, i);
+        space = append(out, '?', space);
+      } else if (c == ')') {
+        space = append(out, c, space);
+        collapseList(out);
+        i++;
+      } else {
+        space = append(out, Character.toLowerCase(c), space);
+        i++;
+      }
+    }
+    return out.toString();
+  }
+
+  /**
+   * If <code>out</code> ends with a bracketed list of ? only, drop it when
+   * it repeats the list before it, so "(?, ?), (?, ?), (?, ?)" becomes
+   * "(?, ?), ...", or after IN shorten it to "(?, ...)".
+   */
+  private static void collapseList(StringBuilder out) {
+    int end = out.length();
+    int open = end - 2;
+    while (open >= 0 && "?, ".indexOf(out.charAt(open)) >= 0)
+      open--;
+    if (open < 0 || out.charAt(open) != '(')
+      return;
+    int items = end - open - 2;
+    if (items % 3 != 1)
+      return;
+    for (int k = 0; k < items; k++) {
+      if (out.charAt(open + 1 + k) != "?, ".charAt(k % 3))
+        return;
+    }
+
+    int len = end - open;
+    int comma = open - 2;
+    if (comma >= 0 && out.charAt(comma) == ',' && out.charAt(comma + 1) == ' ') {
+      // a second row, or a later one after the rows were collapsed
+      if (sameList(out, comma - len, open, len)) {
+        out.setLength(comma);
+        out.append(", ...");
+        return;
+      }
+      if (endsWith(out, comma, ", ...") && sameList(out, comma - 5 - len, open, len)) {
+        out.setLength(comma);
+        return;
+      }
+    }
+
+    int k = open;
+    if (k > 0 && out.charAt(k - 1) == ' ')
+      k--;
+    if (items > 1 && k >= 2 && out.charAt(k - 2) == 'i' && out.charAt(k - 1) == 'n'
+        && (k == 2 || !isWordChar(out.charAt(k - 3)))) {
+      out.setLength(open);
+      out.append("(?, ...)");
+    }
+  }
+
+  private static boolean sameList(StringBuilder out, int from, int list, int len) {
+    if (from < 0)
+      return false;
+    for (int k = 0; k < len; k++) {
+      if (out.charAt(from + k) != out.charAt(list + k))
+        return false;
+    }
+    return true;
+  }
+
+  private static boolean endsWith(StringBuilder out, int end, String tail) {
+    int from = end - tail.length();
+    if (from < 0)
+      return false;
+    for (int k = 0; k < tail.length(); k++) {
+      if (out.charAt(from + k) != tail.charAt(k))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Append <code>c</code>, with a space before it if whitespace came
+   * first. Commas get a space after them and none before; brackets
+   * none inside.
+   * @return whether a space is pending
+   */
+  private static boolean append(StringBuilder out, char c, boolean space) {
+    int n = out.length();
+    char last = (n == 0) ? '(' : out.charAt(n - 1);
+    if (space && c != ',' && c != ')' && last != '(' && last != ' ')
+      out.append(' ');
+    else if (!space && last == ',' && c != ' ')
+      out.append(' ');
+    out.append(c);
+    return false;
+  }
+
+  private static boolean isWordChar(char c) {
+    return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+  }
+
+  /**
+   * @return the index after the closing quote
+   */
+  private static int skipString(String sql, int i, boolean escapes) {
+    int len = sql.length();
+    while (i < len) {
+      char c = sql.charAt(i++);
+      if (escapes && c == '\\') {
+        i++;
+      } else if (c == '\'') {
+        if (i < len && sql.charAt(i) == '\'')
+          i++;
+        else
+          return i;
+      }
+    }
+    return len;
+  }
+
+  private static int skipNumber(String sql, int i) {
+    int len = sql.length();
+    while (i < len) {
+      char c = sql.charAt(i);
+      if (Character.isDigit(c) || c == '.') {
+        i++;
+      } else if ((c == 'e' || c == 'E') && i + 1 < len
+                 && (Character.isDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '-'
+                     || sql.charAt(i + 1) == '+')) {
+        i += 2;
+      } else {
+        break;
+      }
+    }
+    return i;
+  }
+
+  /**
+   * @return the index after a $tag$...$tag$ literal starting at
+   *         <code>i</code>, or -1 if there is none
+   */
+  private static int dollarQuoteEnd(String sql, int i) {
+    int close = sql.indexOf('$', i + 1);
+    if (close < 0)
+      return -1;
+    for (int k = i + 1; k < close; k++) {
+      char c = sql.charAt(k);
+      if (!(Character.isLetter(c) || c == '_' || (k > i + 1 && Character.isDigit(c))))
+        return -1;
+    }
+    String tag = sql.substring(i, close + 1);
+    int end = sql.indexOf(tag, close + 1);
+    return (end < 0) ? sql.length() : end + tag.length();
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.topicquests.pg.api.SqlStatistic;
+
+/**
+ * Per-fingerprint totals of the statements run through a factory's
+ * connections, kept on the client like pg_stat_statements keeps them
+ * on the server. Entries live in a ConcurrentHashMap and count with
+ * LongAdders, so threads recording the same statement do not contend
+ * on one counter.
+ * <p>
+ * Each shape holds a LatencyHistogram of about 8 KB, so at most
+ * SqlStatsMaxFingerprints are tracked; once full, new ones add up
+ * under {@link #OTHER}. When SqlStatsDumpIntervalMillis is
+ * set, a {@link Reporter} logs the top SqlStatsTopN that often.
+ */
+class SqlStatistics {
+  static final String OTHER = "<other>";
+
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+  private final int maxFingerprints;
+  private volatile Entry other = new Entry(OTHER);
+
+  SqlStatistics(int maxFingerprints) {
+    this.maxFingerprints = maxFingerprints;
+  }
+
+  void record(String sql, long nanos, long rows, boolean failed) {
+    recordFingerprint(SqlFingerprint.normalize(sql), nanos, rows, failed);
+  }
+
+  /**
+   * As {@link #record(String, long, long, boolean)}, for a statement
+   * whose fingerprint the caller already has.
+   */
+  void recordFingerprint(String fingerprint, long nanos, long rows, boolean failed) {
+    Entry e = entries.get(fingerprint);
+    if (e == null) {
+      if (entries.size() >= maxFingerprints)
+        e = other;
+      else
+        e = entries.computeIfAbsent(fingerprint, Entry::new);
+    }
+    e.record(nanos, rows, failed);
+  }
+
+  /**
+   * @return up to <code>n</code> fingerprints, by total time, largest first
+   */
+  List<SqlStatistic> top(int n) {
+    List<SqlStatistic> all = new ArrayList<SqlStatistic>(entries.size() + 1);
+    for (Entry e : entries.values())
+      all.add(e.snapshot());
+    SqlStatistic rest = other.snapshot();
+    if (rest.getCalls() > 0)
+      all.add(rest);
+    Collections.sort(all, new Comparator<SqlStatistic>() {
+      @Override
+      public int compare(SqlStatistic a, SqlStatistic b) {
+        return Long.compare(b.getTotalMicros(), a.getTotalMicros());
+      }
+    });
+    return (all.size() > n) ? new ArrayList<SqlStatistic>(all.subList(0, n)) : all;
+  }
+
+  void reset() {
+    entries.clear();
+    other = new Entry(OTHER);
+  }
+
+  static final class Entry {
+    private final String fingerprint;
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAdder rows = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final AtomicLong minNanos = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final LatencyHistogram times = new LatencyHistogram();
+
+    Entry(String fingerprint) {
+      this.fingerprint = fingerprint;
+    }
+
+    void record(long nanos, long n, boolean failed) {
+      calls.increment();
+      totalNanos.add(nanos);
+      if (n > 0)
+        rows.add(n);
+      if (failed)
+        errors.increment();
+      times.recordNanos(nanos);
+      long m;
+      while (nanos < (m = minNanos.get()) && !minNanos.compareAndSet(m, nanos))
+        ;
+      while (nanos > (m = maxNanos.get()) && !maxNanos.compareAndSet(m, nanos))
+        ;
+    }
+
+    SqlStatistic snapshot() {
+      long count = calls.sum();
+      long min = minNanos.get();
+      return new SqlStatistic(fingerprint, count, totalNanos.sum() / 1000L,
+          (count == 0 || min == Long.MAX_VALUE) ? 0 : min / 1000L, maxNanos.get() / 1000L,
+          times.snapshot().getPercentileMicros(99), rows.sum(), errors.sum());
+    }
+  }
+
+  /**
+   * Logs the top fingerprints at a fixed interval.
+   */
+  static class Reporter extends Thread {
+    private final PostgresConnectionFactory environment;
+    private final SqlStatistics statistics;
+    private final int topN;
+    private final long intervalMillis;
+    private volatile boolean running = true;
+
+    Reporter(PostgresConnectionFactory env, SqlStatistics statistics, int topN,
+             long intervalMillis) {
+      super("tq-pg-sql-stats");
+      setDaemon(true);
+      this.environment = env;
+      this.statistics = statistics;
+      this.topN = topN;
+      this.intervalMillis = intervalMillis;
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        try {
+          Thread.sleep(intervalMillis);
+        } catch (InterruptedException e) {
+          break;
+        }
+        List<SqlStatistic> top = statistics.top(topN);
+        if (top.isEmpty())
+          continue;
+        StringBuilder buf = new StringBuilder("SqlStats top ").append(top.size());
+        for (SqlStatistic s : top)
+          buf.append("\n  ").append(s);
+        environment.logDebug(buf.toString());
+      }
+    }
+
+    void shutDown() {
+      running = false;
+      interrupt();
+    }
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.postgresql.PGStatement;
+
+/**
+ * An LRU cache of PreparedStatements for one physical connection, keyed
+ * on the SQL text, result set type and concurrency.
+ * <p>
+ * Statements are prepared on the physical PostgreSQL connection rather
+ * than on the pool's wrapper, so they survive the connection going back
+ * to the pool. A statement is taken out of the cache while it is in use
+ * and put back by {@link #release(Statement)}; an idle statement pushed
+ * out by a newer one is closed. Each statement gets StatementPrepareThreshold
+ * as its pgjdbc prepare threshold, so a statement that keeps coming back
+ * is promoted to a named server-side statement and parsed and planned
+ * only once per connection.
+ * <p>
+ * The cache is guarded by a ReentrantLock rather than its monitor, since
+ * a miss prepares a statement with the lock held and a virtual thread
+ * blocked on a monitor would pin its carrier thread.
+ */
+class StatementCache {
+  private final Connection physical;
+  private final int maxStatements;
+  private final int prepareThreshold;
+  private final Counters counters;
+  private final LinkedHashMap<Key, PreparedStatement> idle;
+  private final IdentityHashMap<Statement, Key> inUse =
+      new IdentityHashMap<Statement, Key>();
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * Hit, miss and eviction counts shared by every cache of a factory.
+   */
+  static final class Counters {
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong evictions = new AtomicLong();
+  }
+
+  StatementCache(Connection physical, int maxStatements, int prepareThreshold,
+                 Counters counters) {
+    this.physical = physical;
+    this.maxStatements = maxStatements;
+    this.prepareThreshold = prepareThreshold;
+    this.counters = counters;
+    this.idle = new LinkedHashMap<Key, PreparedStatement>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, PreparedStatement> eldest) {
+        if (size() <= StatementCache.this.maxStatements)
+          return false;
+        StatementCache.this.counters.evictions.incrementAndGet();
+        closeQuietly(eldest.getValue());
+        return true;
+      }
+    };
+  }
+
+  Connection getPhysicalConnection() {
+    return physical;
+  }
+
+  /**
+   * Take a statement out of the cache, preparing it on a miss.
+   * The caller must hand it back with {@link #release(Statement)}.
+   */
+  PreparedStatement checkout(String sql, int resultSetType,
+                             int resultSetConcurrency) throws SQLException {
+    lock.lock();
+    try {
+      Key key = new Key(sql, resultSetType, resultSetConcurrency);
+      PreparedStatement s = idle.remove(key);
+      if (s != null && !s.isClosed()) {
+        counters.hits.incrementAndGet();
+      } else {
+        counters.misses.incrementAndGet();
+        s = physical.prepareStatement(sql, resultSetType, resultSetConcurrency);
+        if (prepareThreshold > 0)
+          s.unwrap(PGStatement.class).setPrepareThreshold(prepareThreshold);
+      }
+      inUse.put(s, key);
+      return s;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Is <code>s</code> a statement handed out by this cache?
+   */
+  boolean owns(Statement s) {
+    lock.lock();
+    try {
+      return inUse.containsKey(s);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Put a statement back into the cache. Any open ResultSet on it is
+   * closed. A statement not handed out by this cache is simply closed.
+   */
+  void release(Statement s) throws SQLException {
+    lock.lock();
+    try {
+      Key key = inUse.remove(s);
+      if (key == null || s.isClosed() || maxStatements <= 0) {
+        s.close();
+        return;
+      }
+      PreparedStatement ps = (PreparedStatement)s;
+      try {
+        ps.clearParameters();
+        ps.clearWarnings();
+      } catch (SQLException e) {
+        s.close();
+        throw e;
+      }
+      PreparedStatement previous = idle.put(key, ps);
+      if (previous != null && previous != ps)
+        closeQuietly(previous);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Put back every statement still checked out, e.g. when the caller
+   * returns the connection without closing its ResultSets.
+   */
+  void releaseAll() {
+    lock.lock();
+    try {
+      List<Statement> open = new ArrayList<Statement>(inUse.keySet());
+      for (Statement s : open) {
+        try {
+          release(s);
+        } catch (SQLException e) {
+          // the statement is closed and dropped
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int size() {
+    lock.lock();
+    try {
+      return idle.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Close every cached statement.
+   */
+  void clear() {
+    lock.lock();
+    try {
+      for (PreparedStatement s : idle.values())
+        closeQuietly(s);
+      idle.clear();
+      inUse.clear();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static void closeQuietly(Statement s) {
+    try {
+      s.close();
+    } catch (SQLException e) {
+      // the connection is probably gone; nothing to release
+    }
+  }
+
+  private static final class Key {
+    final String sql;
+    final int type;
+    final int concurrency;
+
+    Key(String sql, int type, int concurrency) {
+      this.sql = sql;
+      this.type = type;
+      this.concurrency = concurrency;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * sql.hashCode() + type) + concurrency;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key))
+        return false;
+      Key k = (Key)o;
+      return type == k.type && concurrency == k.concurrency && sql.equals(k.sql);
+    }
+  }
+}
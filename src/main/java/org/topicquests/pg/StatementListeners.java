@@ -0,0 +1,114 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import org.topicquests.pg.api.IStatementListener;
+import org.topicquests.pg.api.StatementContext;
+import org.topicquests.support.RootEnvironment;
+
+/**
+ * The registered {@link IStatementListener}s, kept in a copy-on-write
+ * array. Callers read {@link #get()} once per call and skip building a
+ * {@link StatementContext} when it is empty, so with no listeners the
+ * only cost is a volatile read.
+ */
+class StatementListeners {
+  static final IStatementListener[] NONE = new IStatementListener[0];
+
+  private final RootEnvironment environment;
+  private volatile IStatementListener[] listeners = NONE;
+
+  StatementListeners(RootEnvironment env) {
+    this.environment = env;
+  }
+
+  IStatementListener[] get() {
+    return listeners;
+  }
+
+  synchronized void add(IStatementListener listener) {
+    IStatementListener[] old = listeners;
+    IStatementListener[] copy = new IStatementListener[old.length + 1];
+    System.arraycopy(old, 0, copy, 0, old.length);
+    copy[old.length] = listener;
+    listeners = copy;
+  }
+
+  synchronized void remove(IStatementListener listener) {
+    IStatementListener[] old = listeners;
+    for (int i = 0; i < old.length; i++) {
+      if (old[i] == listener) {
+        IStatementListener[] copy = new IStatementListener[old.length - 1];
+        System.arraycopy(old, 0, copy, 0, i);
+        System.arraycopy(old, i + 1, copy, i, old.length - i - 1);
+        listeners = (copy.length == 0) ? NONE : copy;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Call each listener with the before callback for the context's kind.
+   */
+  void before(IStatementListener[] ls, StatementContext context) {
+    for (IStatementListener l : ls) {
+      try {
+        switch (context.getKind()) {
+          case STATEMENT:   l.beforeStatement(context); break;
+          case BORROW:      l.beforeBorrow(context); break;
+          case TRANSACTION: l.beforeTransaction(context); break;
+          default:          break;
+        }
+      } catch (RuntimeException e) {
+        failed(l, e);
+      }
+    }
+  }
+
+  /**
+   * Call each listener with the after callback for the context's kind,
+   * once its duration is set.
+   */
+  void after(IStatementListener[] ls, StatementContext context) {
+    context.setDurationNanos(System.nanoTime() - context.getStartNanos());
+    for (IStatementListener l : ls) {
+      try {
+        switch (context.getKind()) {
+          case STATEMENT:   l.afterStatement(context); break;
+          case BORROW:      l.afterBorrow(context); break;
+          case RETURN:      l.onReturn(context); break;
+          case TRANSACTION: l.afterTransaction(context); break;
+        }
+      } catch (RuntimeException e) {
+        failed(l, e);
+      }
+    }
+  }
+
+  void error(IStatementListener[] ls, StatementContext context, String code, String message) {
+    for (IStatementListener l : ls) {
+      try {
+        l.onError(context, code, message);
+      } catch (RuntimeException e) {
+        failed(l, e);
+      }
+    }
+  }
+
+  private void failed(IStatementListener l, RuntimeException e) {
+    environment.logError("StatementListener "+l.getClass().getName()+" "+e.getMessage(), e);
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the provider's worker threads. This is the Java 8 version,
+ * which only has platform threads; a multi-release jar built on Java 21
+ * replaces it with one that can also create virtual threads (see
+ * src/main/java21).
+ */
+final class ThreadSupport {
+
+  private ThreadSupport() {
+  }
+
+  /**
+   * @return <code>true</code> if this JVM can run virtual threads
+   */
+  static boolean hasVirtualThreads() {
+    return false;
+  }
+
+  /**
+   * A factory of threads named <code>prefix</code>1, <code>prefix</code>2, ...
+   * @param virtual Ask for virtual threads; ignored where there are none
+   * @return daemon platform threads, or virtual threads
+   */
+  static ThreadFactory newThreadFactory(final String prefix, boolean virtual) {
+    final AtomicInteger count = new AtomicInteger();
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, prefix + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    };
+  }
+}
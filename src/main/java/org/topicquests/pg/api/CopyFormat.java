@@ -0,0 +1,41 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg.api;
+
+/**
+ * The wire formats supported by PostgreSQL COPY.
+ */
+public enum CopyFormat {
+  /** Tab separated text with backslash escapes and \N for NULL */
+  TEXT("text"),
+  /** Comma separated values with double-quote quoting */
+  CSV("csv"),
+  /** The PostgreSQL binary COPY format */
+  BINARY("binary");
+
+  private final String sqlName;
+
+  CopyFormat(String sqlName) {
+    this.sqlName = sqlName;
+  }
+
+  /**
+   * @return the name used in the FORMAT option of a COPY statement
+   */
+  public String sqlName() {
+    return sqlName;
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg.api;
+
+/**
+ * Throughput figures for a completed COPY operation.
+ */
+public class CopyStatistics {
+  private final long rows;
+  private final long bytes;
+  private final long elapsedNanos;
+
+  public CopyStatistics(long rows, long bytes, long elapsedNanos) {
+    this.rows = rows;
+    this.bytes = bytes;
+    this.elapsedNanos = elapsedNanos;
+  }
+
+  /**
+   * @return the number of rows copied
+   */
+  public long getRows() {
+    return rows;
+  }
+
+  /**
+   * @return the number of bytes sent or received in COPY data
+   */
+  public long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * @return the wall-clock duration of the copy in milliseconds
+   */
+  public long getElapsedMillis() {
+    return elapsedNanos / 1000000L;
+  }
+
+  public double getRowsPerSecond() {
+    return perSecond(rows);
+  }
+
+  public double getBytesPerSecond() {
+    return perSecond(bytes);
+  }
+
+  private double perSecond(long n) {
+    if (elapsedNanos <= 0)
+      return 0;
+    return n * 1.0e9 / elapsedNanos;
+  }
+
+  @Override
+  public String toString() {
+    return rows + " rows, " + bytes + " bytes in " + getElapsedMillis()
+        + " ms (" + Math.round(getRowsPerSecond()) + " rows/s)";
+  }
+}
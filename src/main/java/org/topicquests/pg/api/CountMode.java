@@ -0,0 +1,31 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg.api;
+
+/**
+ * How executeCount arrives at a row count.
+ */
+public enum CountMode {
+  /** Run SELECT count(*) over the query on the server */
+  EXACT,
+  /** Use the planner's row estimate from EXPLAIN of the query */
+  PLANNER_ESTIMATE,
+  /**
+   * The argument is a table name; use pg_class.reltuples, which is kept
+   * by VACUUM and ANALYZE. Cheapest, and the least current.
+   */
+  TABLE_ESTIMATE
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg.api;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import org.topicquests.support.api.IResult;
+
+/**
+ * Non-blocking access to a connection factory. Each call becomes a task
+ * on an executor with one thread per pooled connection; the task borrows
+ * a connection when it starts, not when it is submitted, and closes it
+ * before the future completes.
+ * <p>
+ * At most AsyncQueueSize tasks wait for a thread. Beyond that a call
+ * fails at once: its future completes exceptionally with a
+ * RejectedExecutionException. A future also completes exceptionally
+ * if no connection could be borrowed or the work threw; SQL errors are
+ * reported in the IResult as with the blocking methods.
+ */
+public interface IAsyncPostgresConnection {
+
+  /**
+   * Run <code>work</code> on a borrowed connection.
+   * @param work Called with the connection, which it must not close or keep.
+   * @return The future value of <code>work</code>.
+   */
+  public <T> CompletableFuture<T> submit(Function<IPostgresConnection, T> work);
+
+  /**
+   * Execute a SELECT and read all of its rows.
+   * @param sql The prepared statement to be executed.
+   * @param vals The values to be injected into the prepared statement.
+   * @return An IResult containing a List of {@link IRow} and any error messages.
+   */
+  public CompletableFuture<IResult> executeSelect(String sql, Object... vals);
+
+  /**
+   * Execute an INSERT, UPDATE or DELETE.
+   * @see IPostgresConnection#executeUpdate(String, Object...)
+   */
+  public CompletableFuture<IResult> executeUpdate(String sql, Object... vals);
+
+  /**
+   * Execute a batch of rows.
+   * @see IPostgresConnection#executeBatch(String, Object...)
+   */
+  public CompletableFuture<IResult> executeBatch(String sql, Object... vals);
+
+  /**
+   * Run <code>block</code> in a transaction, committed if it returns a
+   * result without errors and rolled back otherwise.
+   * @param block Called with the connection inside the transaction.
+   * @return The result of <code>block</code>, with any commit error.
+   */
+  public CompletableFuture<IResult> inTransaction(Function<IPostgresConnection, IResult> block);
+
+  /**
+   * @return the number of tasks waiting for a thread
+   */
+  public int getQueueDepth();
+
+  /**
+   * @return the number of calls refused because the queue was full
+   */
+  public long getRejectedCount();
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg.api;
+
+/**
+ * Receives periodic progress reports from a running COPY operation.
+ * Called on the thread running the copy.
+ */
+public interface ICopyProgressListener {
+
+  /**
+   * Report progress so far.
+   * @param rows The number of rows transferred.
+   * @param bytes The number of bytes of COPY data transferred, before any compression.
+   */
+  public void progress(long rows, long bytes);
+}
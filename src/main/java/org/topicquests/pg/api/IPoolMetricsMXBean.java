@@ -0,0 +1,72 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg.api;
+
+import java.util.Map;
+
+/**
+ * The JMX view of a connection factory's pool and statement counters,
+ * registered as org.topicquests.pg:type=ConnectionFactory,name=&lt;dbName&gt;
+ * when JmxEnabled is true. The same figures are available in code from
+ * {@link IPostgresConnectionFactory#getPoolStatistics()}.
+ */
+public interface IPoolMetricsMXBean {
+
+  int getNumActive();
+
+  int getNumIdle();
+
+  int getNumWaiting();
+
+  int getMaxTotal();
+
+  long getBorrowCount();
+
+  long getBorrowWaitMeanMicros();
+
+  long getBorrowWaitP95Micros();
+
+  long getBorrowWaitP99Micros();
+
+  long getBorrowWaitMaxMicros();
+
+  long getHoldTimeMeanMicros();
+
+  long getHoldTimeP95Micros();
+
+  long getHoldTimeP99Micros();
+
+  long getHoldTimeMaxMicros();
+
+  /**
+   * @return executions per {@link Operation} name
+   */
+  Map<String, Long> getOperationCounts();
+
+  /**
+   * @return errors per PGD code
+   */
+  Map<String, Long> getErrorCounts();
+
+  long getRowsReturned();
+
+  long getRowsAffected();
+
+  /**
+   * Zero the counters and histograms.
+   */
+  void reset();
+}
@@ -15,7 +15,11 @@
  */
 package org.topicquests.pg.api;
 
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
 import java.sql.*;
+import java.util.Iterator;
 import java.util.List;
 
 import org.topicquests.support.api.IResult;
@@ -240,20 +244,39 @@ public interface IPostgresConnection {
   public IResult executeMultiSQL(List<String> sql, IResult result);
 	
   /**
-   * Execute the list of SQL strings in the database and return the number of rows.
-   * @param sql The SQL string to be executed.
-   * @return An IResult object containing the row count and any error messages.
+   * Return the exact number of rows the query produces. The count is
+   * computed on the server; no rows are sent to the client.
+   * @param sql The SQL string to be counted.
+   * @return An IResult object containing the row count as a Long and any error messages.
    */
   public IResult executeCount(String sql);
 
   /**
-   * Execute the list of SQL strings in the database and return the number of rows.
-   * @param sql The SQL string to be executed.
+   * Return the exact number of rows the query produces. The count is
+   * computed on the server; no rows are sent to the client.
+   * @param sql The SQL string to be counted.
    * @param result an IResult object
-   * @return An updated IResult object containing the row count and any error messages.
+   * @return An updated IResult object containing the row count as a Long and any error messages.
    */
   public IResult executeCount(String sql, IResult result);
 
+  /**
+   * Return an exact or estimated number of rows.
+   * @param sql The SQL string to be counted, or a table name for CountMode.TABLE_ESTIMATE.
+   * @param mode How the count is obtained.
+   * @return An IResult object containing the row count as a Long and any error messages.
+   */
+  public IResult executeCount(String sql, CountMode mode);
+
+  /**
+   * Return an exact or estimated number of rows.
+   * @param sql The SQL string to be counted, or a table name for CountMode.TABLE_ESTIMATE.
+   * @param mode How the count is obtained.
+   * @param result an IResult object
+   * @return An updated IResult object containing the row count as a Long and any error messages.
+   */
+  public IResult executeCount(String sql, CountMode mode, IResult result);
+
   /**
    * Execute the UPDATE SQL string in the database.
    * @param sql The UPDATE SQL string to be executed.
@@ -319,10 +342,14 @@ public interface IPostgresConnection {
   public IResult executeUpdate(String sql, IResult result, Object... vals);
 
   /**
-   * Execute the prepared statement for batch inserts/updates.
+   * Execute the prepared statement for batch inserts/updates. The values
+   * hold one group of parameters per row, back to back. Rows are sent in
+   * chunks of BatchChunkSize, and a single-row INSERT is rewritten into a
+   * multi-row INSERT when BatchRewriteInserts is on.
    * @param sql The prepared statement to be executed.
    * @param vals The values to be injected into the prepared statement.
-   * @return An IResult object containing the number of rows updated and any error messages.
+   * @return An IResult object containing the number of rows updated, as an
+   *         Integer capped at Integer.MAX_VALUE, and any error messages.
    */
   public IResult executeBatch(String sql, Object... vals);
 
@@ -335,6 +362,114 @@ public interface IPostgresConnection {
    */
   public IResult executeBatch(String sql, IResult result, Object... vals);
 
+  /**
+   * Stream rows into a table with COPY ... FROM STDIN. Rows are encoded
+   * into a fixed-size buffer as they are pulled from the iterator, so
+   * memory use stays flat however many rows are loaded.
+   * @param table The table to load, optionally schema-qualified.
+   * @param columns The columns to load, or <code>null</code> for all columns in table order.
+   * @param format The COPY format to use on the wire.
+   * @param rows The rows to load; each array holds one value per column.
+   * @return An IResult object containing the number of rows copied as a Long,
+   * a CopyStatistics object as result object A, and any error messages.
+   */
+  public IResult executeCopyIn(String table, String[] columns, CopyFormat format,
+                               Iterator<Object[]> rows);
+
+  /**
+   * Stream rows into a table with COPY ... FROM STDIN.
+   * @param table The table to load, optionally schema-qualified.
+   * @param columns The columns to load, or <code>null</code> for all columns in table order.
+   * @param format The COPY format to use on the wire.
+   * @param rows The rows to load; each array holds one value per column.
+   * @param result an IResult object
+   * @return An updated IResult object containing the number of rows copied as a Long,
+   * a CopyStatistics object as result object A, and any error messages.
+   */
+  public IResult executeCopyIn(String table, String[] columns, CopyFormat format,
+                               Iterator<Object[]> rows, IResult result);
+
+  /**
+   * Stream the output of COPY ... TO STDOUT into an OutputStream.
+   * @param query A SELECT (or WITH, VALUES, TABLE) query, or a table name.
+   * @param format The COPY format to produce.
+   * @param out The sink; it is flushed but not closed.
+   * @param gzip <code>true</code> to gzip compress the output on the fly.
+   * @param listener Receives row and byte progress; can be <code>null</code>.
+   * @return An IResult object containing the number of rows copied as a Long,
+   * a CopyStatistics object as result object A, and any error messages.
+   */
+  public IResult copyOut(String query, CopyFormat format, OutputStream out,
+                         boolean gzip, ICopyProgressListener listener);
+
+  /**
+   * Stream the output of COPY ... TO STDOUT into an OutputStream.
+   * @param query A SELECT (or WITH, VALUES, TABLE) query, or a table name.
+   * @param format The COPY format to produce.
+   * @param out The sink; it is flushed but not closed.
+   * @param gzip <code>true</code> to gzip compress the output on the fly.
+   * @param listener Receives row and byte progress; can be <code>null</code>.
+   * @param result an IResult object
+   * @return An updated IResult object containing the number of rows copied as a Long,
+   * a CopyStatistics object as result object A, and any error messages.
+   */
+  public IResult copyOut(String query, CopyFormat format, OutputStream out,
+                         boolean gzip, ICopyProgressListener listener, IResult result);
+
+  /**
+   * Stream the output of COPY ... TO STDOUT into a channel.
+   * @param query A SELECT (or WITH, VALUES, TABLE) query, or a table name.
+   * @param format The COPY format to produce.
+   * @param channel The sink; it is not closed.
+   * @param gzip <code>true</code> to gzip compress the output on the fly.
+   * @param listener Receives row and byte progress; can be <code>null</code>.
+   * @return An IResult object containing the number of rows copied as a Long,
+   * a CopyStatistics object as result object A, and any error messages.
+   */
+  public IResult copyOut(String query, CopyFormat format, WritableByteChannel channel,
+                         boolean gzip, ICopyProgressListener listener);
+
+  /**
+   * Stream the output of COPY ... TO STDOUT into a channel.
+   * @param query A SELECT (or WITH, VALUES, TABLE) query, or a table name.
+   * @param format The COPY format to produce.
+   * @param channel The sink; it is not closed.
+   * @param gzip <code>true</code> to gzip compress the output on the fly.
+   * @param listener Receives row and byte progress; can be <code>null</code>.
+   * @param result an IResult object
+   * @return An updated IResult object containing the number of rows copied as a Long,
+   * a CopyStatistics object as result object A, and any error messages.
+   */
+  public IResult copyOut(String query, CopyFormat format, WritableByteChannel channel,
+                         boolean gzip, ICopyProgressListener listener, IResult result);
+
+  /**
+   * Stream the output of COPY ... TO STDOUT into a file, replacing it if it exists.
+   * @param query A SELECT (or WITH, VALUES, TABLE) query, or a table name.
+   * @param format The COPY format to produce.
+   * @param path The file to write.
+   * @param gzip <code>true</code> to gzip compress the output on the fly.
+   * @param listener Receives row and byte progress; can be <code>null</code>.
+   * @return An IResult object containing the number of rows copied as a Long,
+   * a CopyStatistics object as result object A, and any error messages.
+   */
+  public IResult copyOut(String query, CopyFormat format, Path path,
+                         boolean gzip, ICopyProgressListener listener);
+
+  /**
+   * Stream the output of COPY ... TO STDOUT into a file, replacing it if it exists.
+   * @param query A SELECT (or WITH, VALUES, TABLE) query, or a table name.
+   * @param format The COPY format to produce.
+   * @param path The file to write.
+   * @param gzip <code>true</code> to gzip compress the output on the fly.
+   * @param listener Receives row and byte progress; can be <code>null</code>.
+   * @param result an IResult object
+   * @return An updated IResult object containing the number of rows copied as a Long,
+   * a CopyStatistics object as result object A, and any error messages.
+   */
+  public IResult copyOut(String query, CopyFormat format, Path path,
+                         boolean gzip, ICopyProgressListener listener, IResult result);
+
   /**
    * Execute the prepared statement SELECT SQL string in the database.
    * @param sql The prepared statement to be executed.
@@ -364,6 +499,77 @@ public interface IPostgresConnection {
   public IResult executeSelect(String sql, IResult result, int resultSetType,
           int resultSetConcurrency, Object... vals);
 
+  /**
+   * Execute a SELECT and stream its rows through a server-side cursor.
+   * If the connection is in autocommit mode, a read-only transaction is
+   * opened for the cursor and ended when the cursor is closed; until then
+   * the connection should not be used for anything else.
+   * @param sql The prepared statement to be executed.
+   * @param fetchSize The number of rows per fetch, or 0 for the CursorFetchSize default.
+   * @param vals The values to be injected into the prepared statement.
+   * @return An IResult object containing an IRowCursor and any error messages.
+   */
+  public IResult executeSelectCursor(String sql, int fetchSize, Object... vals);
+
+  /**
+   * Execute a SELECT and stream its rows through a server-side cursor.
+   * @param sql The prepared statement to be executed.
+   * @param fetchSize The number of rows per fetch, or 0 for the CursorFetchSize default.
+   * @param result an IResult object
+   * @param vals The values to be injected into the prepared statement.
+   * @return An updated IResult object containing an IRowCursor and any error messages.
+   */
+  public IResult executeSelectCursor(String sql, int fetchSize, IResult result, Object... vals);
+
+  /**
+   * Execute a SELECT and return a handle that owns its statement and
+   * result set; close it, e.g. with try-with-resources, to release both.
+   * A handle still open when the transaction ends (endTransaction or
+   * rollback) or the connection is closed is closed then.
+   * @param sql The prepared statement to be executed.
+   * @param vals The values to be injected into the prepared statement.
+   * @return An IResult object containing an IQueryHandle and any error messages.
+   */
+  public IResult openQuery(String sql, Object... vals);
+
+  /**
+   * Execute a SELECT and return a handle that owns its statement and result set.
+   * @param sql The prepared statement to be executed.
+   * @param result an IResult object
+   * @param vals The values to be injected into the prepared statement.
+   * @return An updated IResult object containing an IQueryHandle and any error messages.
+   */
+  public IResult openQuery(String sql, IResult result, Object... vals);
+
+  /**
+   * Publish the rows of a SELECT, fetching cursor pages only as the
+   * subscriber requests rows. The query runs on this connection, from the
+   * thread that calls request, so it should not be used for anything else
+   * until the subscription ends; it stays open afterwards.
+   * @param sql The prepared statement to be executed.
+   * @param fetchSize The number of rows per fetch, or 0 for the CursorFetchSize default.
+   * @param vals The values to be injected into the prepared statement.
+   * @return A single-subscriber IRowPublisher; errors are sent to its subscriber.
+   */
+  public IRowPublisher publishSelect(String sql, int fetchSize, Object... vals);
+
+  /**
+   * Prepare a statement for repeated execution with primitive-typed
+   * binds and a reusable {@link StatementResult}. Close the handle when
+   * done; the statement goes back to the statement cache.
+   * @param sql The SQL statement, with ? placeholders.
+   * @return An IResult object containing an IPostgresStatement and any error messages.
+   */
+  public IResult prepareStatement(String sql);
+
+  /**
+   * Prepare a statement for repeated execution.
+   * @param sql The SQL statement, with ? placeholders.
+   * @param result an IResult object
+   * @return An updated IResult object containing an IPostgresStatement and any error messages.
+   */
+  public IResult prepareStatement(String sql, IResult result);
+
   /**
    * Perform a validation of the database.
    * @param tableSchema An array of SQL statements to be executed.
@@ -385,7 +591,8 @@ public interface IPostgresConnection {
   public IResult createStatement(IResult result);
 
   /**
-   * Close a result set.
+   * Close a result set, and the statement behind it if it came from
+   * executeSelect.
    * @param rs a java.sql.ResultSet object to close
    * @param result an IResult object
    */
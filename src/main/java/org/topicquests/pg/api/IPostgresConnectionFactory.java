@@ -18,8 +18,11 @@ package org.topicquests.pg.api;
 import java.sql.Connection;
 import java.sql.SQLException;
 
+import java.util.List;
 import java.util.Properties;
 
+import org.topicquests.support.api.IResult;
+
 public interface IPostgresConnectionFactory {
 
   /**
@@ -75,6 +78,153 @@ public interface IPostgresConnectionFactory {
    */
   public IPostgresConnection getConnection() throws SQLException;
 
+  /**
+   * Get the asynchronous view of this factory, whose calls run on a
+   * bounded executor sized to the pool (AsyncThreads, AsyncQueueSize).
+   * @return The factory's IAsyncPostgresConnection, created on first use.
+   */
+  public IAsyncPostgresConnection getAsyncConnection();
+
+  /**
+   * Publish the rows of a SELECT on a connection of its own. The
+   * connection is borrowed at the first request, not at subscribe, and
+   * returned when the rows run out, on error or on cancel.
+   * @see IPostgresConnection#publishSelect(String, int, Object...)
+   */
+  public IRowPublisher publishSelect(String sql, int fetchSize, Object... vals);
+
+  /**
+   * Add a statement to put in the statement cache of every connection
+   * opened by {@link #warmUp(int)}, parsed and described but not executed.
+   * Statements can also be listed in WarmupStatements, separated by ';'.
+   * @param sql The statement, with ? placeholders.
+   */
+  public void registerWarmupStatement(String sql);
+
+  /**
+   * Add a table for {@link #warmUp(int)} to read a row from on every
+   * connection. Tables can also be listed in WarmupTables.
+   * @param table The table name, optionally schema-qualified.
+   */
+  public void registerWarmupTable(String table);
+
+  /**
+   * Open connections in parallel and warm them: prepare the registered
+   * statements on each and read from the registered tables. The
+   * connections stay in the pool. Runs at startup when
+   * WarmupConnections is set.
+   * @param connections The number of connections, at most the pool size
+   *                    and the number of idle connections it keeps.
+   * @return An IResult containing a WarmupReport and any error messages.
+   */
+  public IResult warmUp(int connections);
+
+  /**
+   * Read the pool and statement counters: active, idle and waiting
+   * connections, borrow-wait and hold-time percentiles, executions per
+   * {@link Operation}, errors per PGD code and row counts. The same
+   * figures are published over JMX when JmxEnabled is true.
+   * @return A snapshot that does not change afterwards.
+   */
+  public PoolStatistics getPoolStatistics();
+
+  /**
+   * Zero the counters and histograms behind {@link #getPoolStatistics()}.
+   */
+  public void resetPoolStatistics();
+
+  /**
+   * Read the client-side statement statistics. Every executed SQL string
+   * is reduced to a fingerprint, with its literals replaced by ?, and
+   * calls, times, rows and errors add up per fingerprint. Set
+   * SqlStatsDumpIntervalMillis to have the top SqlStatsTopN logged
+   * periodically.
+   * @param n The number of fingerprints to return.
+   * @return The fingerprints with the most total time, largest first;
+   *         empty if SqlStatsEnabled is false.
+   */
+  public List<SqlStatistic> getTopStatements(int n);
+
+  /**
+   * Forget the statement statistics gathered so far.
+   */
+  public void resetSqlStatistics();
+
+  /**
+   * Read the slow-query log. Statements running longer than
+   * SlowQueryMillis are logged off the calling thread with their
+   * parameters (redacted unless SlowQueryRedactParams is false),
+   * duration, rows and role. SlowQueryExplainPercent of them also get
+   * an EXPLAIN (ANALYZE, BUFFERS) plan, run on a separate connection in
+   * a rolled-back transaction.
+   * @return The last SlowQueryHistorySize slow statements, oldest first;
+   *         empty if the log is off.
+   */
+  public List<SlowQuery> getSlowQueries();
+
+  /**
+   * Register a listener for statements, borrows, returns, transaction
+   * calls and errors on this factory's connections. With none registered
+   * the callbacks cost nothing.
+   * @param listener The listener; callbacks run on the calling thread.
+   */
+  public void addStatementListener(IStatementListener listener);
+
+  /**
+   * Unregister a listener. Calls already running may still reach it.
+   * @param listener The listener passed to {@link #addStatementListener(IStatementListener)}.
+   */
+  public void removeStatementListener(IStatementListener listener);
+
+  /**
+   * Read the round-trip profile by operation. With RoundTripProfiling
+   * set, connections count the round trips and bytes they exchange with
+   * the server, and each {@link Operation}, BEGIN, COMMIT, ROLLBACK and
+   * BORROW is charged with its share.
+   * @return The operations, most round trips first; empty unless profiling.
+   */
+  public List<RoundTripStatistic> getRoundTripsByOperation();
+
+  /**
+   * Read the round-trip profile by caller. One in RoundTripSampleRate
+   * operations is also charged to the first stack frame outside the
+   * provider, so repeated small calls from one place stand out.
+   * @param n The number of call sites to return.
+   * @return The sampled call sites, most round trips first; empty unless profiling.
+   */
+  public List<RoundTripStatistic> getChattiestCallSites(int n);
+
+  /**
+   * Forget the round-trip profile gathered so far.
+   */
+  public void resetRoundTripStatistics();
+
+  /**
+   * Drop cached SELECT results that reference a table. The cache is
+   * normally kept current by NOTIFY messages on the channels listed in
+   * ClientCacheChannels; use this after changes made outside of them.
+   * @param table The table name, or <code>null</code> to clear the whole cache.
+   */
+  public void invalidateQueryCache(String table);
+
+  /**
+   * Statements served from the per-connection statement cache.
+   * @return The number of cache hits since the factory was created.
+   */
+  public long getStatementCacheHits();
+
+  /**
+   * Statements that had to be prepared because they were not cached.
+   * @return The number of cache misses since the factory was created.
+   */
+  public long getStatementCacheMisses();
+
+  /**
+   * Idle statements closed to make room in a full statement cache.
+   * @return The number of evictions since the factory was created.
+   */
+  public long getStatementCacheEvictions();
+
   /**
    * Shut down the connection factory.
    * @throws SQLException if the connection factory does not shut down properly.
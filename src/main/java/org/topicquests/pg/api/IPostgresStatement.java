@@ -0,0 +1,79 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg.api;
+
+/**
+ * A prepared statement that is bound and executed many times. Setters
+ * take primitives, so binding a row allocates nothing, and results go
+ * into a {@link StatementResult} the caller reuses. Parameter indexes
+ * start at 1. Bind values are kept between executions until they are
+ * bound again or {@link #clearParameters()} is called.
+ * <p>
+ * A handle belongs to the connection that created it and should be closed
+ * before the connection is. Closing the connection closes any handle
+ * left open, whose executions then report an error.
+ */
+public interface IPostgresStatement extends AutoCloseable {
+
+  public IPostgresStatement bindInt(int index, int value);
+
+  public IPostgresStatement bindLong(int index, long value);
+
+  public IPostgresStatement bindDouble(int index, double value);
+
+  public IPostgresStatement bindBoolean(int index, boolean value);
+
+  /**
+   * @param value The value; <code>null</code> binds SQL NULL.
+   */
+  public IPostgresStatement bindString(int index, String value);
+
+  /**
+   * Bind SQL NULL.
+   * @param sqlType The type from java.sql.Types.
+   */
+  public IPostgresStatement bindNull(int index, int sqlType);
+
+  /**
+   * Bind a value of any class handled by the varargs methods of
+   * IPostgresConnection.
+   */
+  public IPostgresStatement bindObject(int index, Object value);
+
+  public IPostgresStatement clearParameters();
+
+  /**
+   * Execute an INSERT, UPDATE, DELETE or other statement.
+   * @param result Reset, then given the update count and any error.
+   * @return <code>result</code>
+   */
+  public StatementResult executeUpdate(StatementResult result);
+
+  /**
+   * Execute a query.
+   * @param result Reset, then given the ResultSet as its result object
+   *               and any error. Close the ResultSet before the next execution.
+   * @return <code>result</code>
+   */
+  public StatementResult executeQuery(StatementResult result);
+
+  /**
+   * Release the statement. It goes back to the connection's statement
+   * cache when there is one.
+   */
+  @Override
+  public void close();
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg.api;
+
+import java.sql.ResultSet;
+
+/**
+ * The result of {@link IPostgresConnection#openQuery(String, Object...)}.
+ * It owns the statement and result set, and closing it releases both,
+ * so use it in a try-with-resources block. A handle left open is closed
+ * when its connection's transaction ends or the connection is closed.
+ */
+public interface IQueryHandle extends AutoCloseable {
+
+  /**
+   * @return the rows; <code>null</code> once the handle is closed
+   */
+  public ResultSet getResultSet();
+
+  /**
+   * @return <code>true</code> once the handle has been closed
+   */
+  public boolean isClosed();
+
+  /**
+   * Close the result set and release the statement. Safe to call more
+   * than once; errors are logged.
+   */
+  @Override
+  public void close();
+}
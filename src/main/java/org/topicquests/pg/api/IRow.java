@@ -0,0 +1,63 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg.api;
+
+/**
+ * One row read from a streaming query. Column indexes start at 1,
+ * as in JDBC.
+ */
+public interface IRow {
+
+  /**
+   * @return the number of columns in the row
+   */
+  public int getColumnCount();
+
+  /**
+   * @param column the column index, starting at 1
+   * @return the column label
+   */
+  public String getColumnName(int column);
+
+  /**
+   * @param column the column index, starting at 1
+   * @return the column value, or <code>null</code> for SQL NULL
+   */
+  public Object getObject(int column);
+
+  /**
+   * @param columnLabel the column label, matched case-insensitively
+   * @return the column value, or <code>null</code> for SQL NULL
+   */
+  public Object getObject(String columnLabel);
+
+  /**
+   * @param column the column index, starting at 1
+   * @return the column value as a string, or <code>null</code> for SQL NULL
+   */
+  public String getString(int column);
+
+  /**
+   * @param columnLabel the column label, matched case-insensitively
+   * @return the column value as a string, or <code>null</code> for SQL NULL
+   */
+  public String getString(String columnLabel);
+
+  /**
+   * @return the column values in column order
+   */
+  public Object[] toArray();
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg.api;
+
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A forward-only iterator over the rows of a query, read from a
+ * server-side cursor one fetch at a time. The cursor closes itself once
+ * the last row has been read; close it explicitly to stop early.
+ * Errors while fetching are thrown as IllegalStateException.
+ */
+public interface IRowCursor extends Iterator<IRow>, AutoCloseable {
+
+  /**
+   * Release the cursor, its statement and any transaction it opened.
+   * Safe to call more than once.
+   */
+  @Override
+  public void close();
+
+  /**
+   * @return the number of rows read so far
+   */
+  public long getRowCount();
+
+  /**
+   * @return the remaining rows as a sequential Stream that closes this
+   * cursor when the stream is closed
+   */
+  public default Stream<IRow> stream() {
+    Spliterator<IRow> split = Spliterators.spliteratorUnknownSize(this,
+        Spliterator.ORDERED | Spliterator.NONNULL);
+    return StreamSupport.stream(split, false).onClose(this::close);
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg.api;
+
+/**
+ * A cold, single-subscriber source of the rows of a query, shaped like
+ * java.util.concurrent.Flow.Publisher (and org.reactivestreams) so that
+ * an adapter to either is a few lines; this library still runs on Java 8.
+ * <p>
+ * Nothing is sent to PostgreSQL until the subscriber requests rows. The
+ * query then runs through a server-side cursor, and later cursor pages
+ * are fetched only as demand calls for them, on the thread that called
+ * {@link Subscription#request(long)}. Completion, an error or
+ * {@link Subscription#cancel()} closes the cursor and, if the publisher
+ * borrowed its connection, returns it to the pool.
+ */
+public interface IRowPublisher {
+
+  /**
+   * Start the query for <code>subscriber</code>. A publisher serves one
+   * subscriber; any later one is sent onError with an IllegalStateException.
+   * @param subscriber must not be <code>null</code>
+   */
+  public void subscribe(Subscriber subscriber);
+
+  /**
+   * Receives the rows of an {@link IRowPublisher}. Signals are never
+   * concurrent, and after onError or onComplete there are no more.
+   */
+  public interface Subscriber {
+
+    /**
+     * Called once, before any other signal.
+     */
+    public void onSubscribe(Subscription subscription);
+
+    /**
+     * Called with the next row, at most as many times as requested.
+     */
+    public void onNext(IRow row);
+
+    /**
+     * Called if the query or a fetch failed, or the subscriber broke the
+     * protocol; the cursor has already been closed.
+     */
+    public void onError(Throwable error);
+
+    /**
+     * Called after the last row; the cursor has already been closed.
+     */
+    public void onComplete();
+  }
+
+  /**
+   * The link between a publisher and its subscriber.
+   */
+  public interface Subscription {
+
+    /**
+     * Ask for up to <code>n</code> more rows. Demand adds up and is
+     * unbounded at Long.MAX_VALUE. A non-positive <code>n</code> ends the
+     * subscription with an IllegalArgumentException.
+     */
+    public void request(long n);
+
+    /**
+     * Stop sending rows, close the cursor and return a borrowed
+     * connection. Safe to call more than once.
+     */
+    public void cancel();
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg.api;
+
+/**
+ * Callbacks around the work of a connection factory and its connections,
+ * for tracing and accounting. Register one with
+ * {@link IPostgresConnectionFactory#addStatementListener(IStatementListener)}.
+ * <p>
+ * Callbacks run on the thread doing the work, so they should be quick.
+ * Each before/after pair gets the same {@link StatementContext}, which is
+ * where a listener keeps what it needs between the two. An exception
+ * thrown by a listener is logged and does not affect the call.
+ */
+public interface IStatementListener {
+
+  /**
+   * A statement is about to run. The context carries its
+   * {@link Operation}, SQL and role.
+   */
+  default void beforeStatement(StatementContext context) {
+  }
+
+  /**
+   * A statement has run. The context now also carries its duration,
+   * rows and whether it failed.
+   */
+  default void afterStatement(StatementContext context) {
+  }
+
+  /**
+   * A connection is about to be borrowed from the pool.
+   */
+  default void beforeBorrow(StatementContext context) {
+  }
+
+  /**
+   * A borrow has finished. The context carries the wait, and its
+   * connection unless the borrow failed.
+   */
+  default void afterBorrow(StatementContext context) {
+  }
+
+  /**
+   * A connection has been returned to the pool. The context's duration
+   * is the time it was held.
+   */
+  default void onReturn(StatementContext context) {
+  }
+
+  /**
+   * A transaction control call is about to run. The context's action is
+   * one of "begin", "commit", "rollback" or "rollback to savepoint".
+   */
+  default void beforeTransaction(StatementContext context) {
+  }
+
+  /**
+   * A transaction control call has run.
+   */
+  default void afterTransaction(StatementContext context) {
+  }
+
+  /**
+   * A PGD error was added to a result.
+   * @param context The statement or transaction call that failed, or
+   *        <code>null</code> if the error came from outside one, such as
+   *        closing a connection.
+   * @param code The PGD code, e.g. "PGD-7".
+   * @param message The message that follows the code.
+   */
+  default void onError(StatementContext context, String code, String message) {
+  }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg.api;
+
+/**
+ * The kinds of statement execution counted in {@link PoolStatistics},
+ * one per family of {@link IPostgresConnection} and
+ * {@link IPostgresStatement} methods.
+ */
+public enum Operation {
+  EXECUTE_SQL,
+  EXECUTE_COUNT,
+  EXECUTE_UPDATE,
+  EXECUTE_SELECT,
+  EXECUTE_SELECT_CURSOR,
+  EXECUTE_BATCH,
+  COPY_IN,
+  COPY_OUT,
+  STATEMENT_UPDATE,
+  STATEMENT_QUERY
+}
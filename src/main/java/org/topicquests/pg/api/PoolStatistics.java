@@ -0,0 +1,191 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg.api;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A point-in-time reading of a connection factory's pool and statement
+ * counters. Counts and histograms run from factory startup, or from
+ * the last {@link IPostgresConnectionFactory#resetPoolStatistics()}.
+ */
+public class PoolStatistics {
+  private final int numActive;
+  private final int numIdle;
+  private final int numWaiting;
+  private final int maxTotal;
+  private final Latency borrowWait;
+  private final Latency holdTime;
+  private final Map<Operation, Long> operations;
+  private final Map<String, Long> errors;
+  private final long rowsReturned;
+  private final long rowsAffected;
+
+  public PoolStatistics(int numActive, int numIdle, int numWaiting, int maxTotal,
+                        Latency borrowWait, Latency holdTime,
+                        Map<Operation, Long> operations, Map<String, Long> errors,
+                        long rowsReturned, long rowsAffected) {
+    this.numActive = numActive;
+    this.numIdle = numIdle;
+    this.numWaiting = numWaiting;
+    this.maxTotal = maxTotal;
+    this.borrowWait = borrowWait;
+    this.holdTime = holdTime;
+    this.operations = Collections.unmodifiableMap(operations);
+    this.errors = Collections.unmodifiableMap(errors);
+    this.rowsReturned = rowsReturned;
+    this.rowsAffected = rowsAffected;
+  }
+
+  /**
+   * @return the number of connections currently borrowed
+   */
+  public int getNumActive() {
+    return numActive;
+  }
+
+  /**
+   * @return the number of open connections waiting in the pool
+   */
+  public int getNumIdle() {
+    return numIdle;
+  }
+
+  /**
+   * @return the number of threads waiting to borrow a connection
+   */
+  public int getNumWaiting() {
+    return numWaiting;
+  }
+
+  /**
+   * @return the current pool limit
+   */
+  public int getMaxTotal() {
+    return maxTotal;
+  }
+
+  /**
+   * @return how long getConnection waited for a connection
+   */
+  public Latency getBorrowWait() {
+    return borrowWait;
+  }
+
+  /**
+   * @return how long connections were held, from getConnection to closeConnection
+   */
+  public Latency getHoldTime() {
+    return holdTime;
+  }
+
+  /**
+   * @return the number of executions of each kind; kinds never executed are absent
+   */
+  public Map<Operation, Long> getOperations() {
+    return operations;
+  }
+
+  public long getOperationCount(Operation op) {
+    Long n = operations.get(op);
+    return (n == null) ? 0 : n.longValue();
+  }
+
+  /**
+   * @return the number of errors reported under each PGD code, e.g. "PGD-17"
+   */
+  public Map<String, Long> getErrors() {
+    return errors;
+  }
+
+  /**
+   * @return rows read through row cursors, cached selects and COPY OUT.
+   *         Rows of a ResultSet handed to the caller are not counted,
+   *         since the caller iterates it.
+   */
+  public long getRowsReturned() {
+    return rowsReturned;
+  }
+
+  /**
+   * @return rows inserted, updated or deleted, including batches and COPY IN
+   */
+  public long getRowsAffected() {
+    return rowsAffected;
+  }
+
+  @Override
+  public String toString() {
+    return "active " + numActive + ", idle " + numIdle + ", waiting " + numWaiting
+        + ", max " + maxTotal + "; borrow wait " + borrowWait + "; hold time " + holdTime
+        + "; operations " + operations + "; errors " + errors
+        + "; rows returned " + rowsReturned + ", affected " + rowsAffected;
+  }
+
+  /**
+   * A summary of recorded durations, in microseconds. Percentiles are
+   * within 12.5% of the true value.
+   */
+  public static class Latency {
+    private final long count;
+    private final long meanMicros;
+    private final long p50Micros;
+    private final long p95Micros;
+    private final long p99Micros;
+    private final long maxMicros;
+
+    public Latency(long count, long meanMicros, long p50Micros, long p95Micros,
+                   long p99Micros, long maxMicros) {
+      this.count = count;
+      this.meanMicros = meanMicros;
+      this.p50Micros = p50Micros;
+      this.p95Micros = p95Micros;
+      this.p99Micros = p99Micros;
+      this.maxMicros = maxMicros;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getMeanMicros() {
+      return meanMicros;
+    }
+
+    public long getP50Micros() {
+      return p50Micros;
+    }
+
+    public long getP95Micros() {
+      return p95Micros;
+    }
+
+    public long getP99Micros() {
+      return p99Micros;
+    }
+
+    public long getMaxMicros() {
+      return maxMicros;
+    }
+
+    @Override
+    public String toString() {
+      return count + " x mean " + meanMicros + "us p50 " + p50Micros + "us p95 "
+          + p95Micros + "us p99 " + p99Micros + "us max " + maxMicros + "us";
+    }
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg.api;
+
+/**
+ * Network traffic attributed to one logical operation or one call site
+ * by the round-trip profiler.
+ */
+public class RoundTripStatistic {
+  private final String key;
+  private final long calls;
+  private final long roundTrips;
+  private final long bytesSent;
+  private final long bytesReceived;
+
+  public RoundTripStatistic(String key, long calls, long roundTrips,
+                            long bytesSent, long bytesReceived) {
+    this.key = key;
+    this.calls = calls;
+    this.roundTrips = roundTrips;
+    this.bytesSent = bytesSent;
+    this.bytesReceived = bytesReceived;
+  }
+
+  /**
+   * @return an {@link Operation} name, BEGIN, COMMIT, ROLLBACK or BORROW,
+   *         or a caller's stack frame
+   */
+  public String getKey() {
+    return key;
+  }
+
+  public long getCalls() {
+    return calls;
+  }
+
+  public long getRoundTrips() {
+    return roundTrips;
+  }
+
+  public double getRoundTripsPerCall() {
+    return (calls == 0) ? 0 : (double)roundTrips / calls;
+  }
+
+  public long getBytesSent() {
+    return bytesSent;
+  }
+
+  public long getBytesReceived() {
+    return bytesReceived;
+  }
+
+  @Override
+  public String toString() {
+    return calls + " calls, " + roundTrips + " round trips ("
+        + String.format("%.2f", getRoundTripsPerCall()) + "/call), " + bytesSent
+        + " bytes sent, " + bytesReceived + " received: " + key;
+  }
+}
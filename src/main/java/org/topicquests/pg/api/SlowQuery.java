@@ -0,0 +1,118 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg.api;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One statement that ran longer than SlowQueryMillis, as recorded by
+ * the slow-query log.
+ */
+public class SlowQuery {
+  private final long timestamp;
+  private final Operation operation;
+  private final String sql;
+  private final List<String> params;
+  private final String role;
+  private final long durationMicros;
+  private final long rows;
+  private final boolean failed;
+  private final String plan;
+
+  public SlowQuery(long timestamp, Operation operation, String sql, List<String> params,
+                   String role, long durationMicros, long rows, boolean failed, String plan) {
+    this.timestamp = timestamp;
+    this.operation = operation;
+    this.sql = sql;
+    this.params = Collections.unmodifiableList(params);
+    this.role = role;
+    this.durationMicros = durationMicros;
+    this.rows = rows;
+    this.failed = failed;
+    this.plan = plan;
+  }
+
+  /**
+   * @return when the statement finished, in milliseconds since the epoch
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public Operation getOperation() {
+    return operation;
+  }
+
+  public String getSql() {
+    return sql;
+  }
+
+  /**
+   * @return the parameter values as text; with SlowQueryRedactParams
+   *         only their types, e.g. "&lt;String&gt;"
+   */
+  public List<String> getParams() {
+    return params;
+  }
+
+  /**
+   * @return the role set on the connection, or <code>null</code>
+   */
+  public String getRole() {
+    return role;
+  }
+
+  public long getDurationMicros() {
+    return durationMicros;
+  }
+
+  /**
+   * @return rows affected or returned where known, otherwise 0
+   */
+  public long getRows() {
+    return rows;
+  }
+
+  public boolean isFailed() {
+    return failed;
+  }
+
+  /**
+   * @return the EXPLAIN (ANALYZE, BUFFERS) output if this statement was
+   *         sampled, otherwise <code>null</code>
+   */
+  public String getPlan() {
+    return plan;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder buf = new StringBuilder("SlowQuery ")
+        .append(durationMicros / 1000L).append("ms ").append(operation)
+        .append(" rows ").append(rows);
+    if (failed)
+      buf.append(" failed");
+    if (role != null)
+      buf.append(" role ").append(role);
+    buf.append(": ").append(sql);
+    if (!params.isEmpty())
+      buf.append(" params ").append(params);
+    if (plan != null)
+      buf.append('\n').append(plan);
+    return buf.toString();
+  }
+}
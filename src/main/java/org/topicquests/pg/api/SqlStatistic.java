@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg.api;
+
+/**
+ * Client-side totals for one SQL fingerprint: the statement text with
+ * its literals replaced by ?, so executions that differ only in their
+ * values add up together.
+ */
+public class SqlStatistic {
+  private final String fingerprint;
+  private final long calls;
+  private final long totalMicros;
+  private final long minMicros;
+  private final long maxMicros;
+  private final long p99Micros;
+  private final long rows;
+  private final long errors;
+
+  public SqlStatistic(String fingerprint, long calls, long totalMicros, long minMicros,
+                      long maxMicros, long p99Micros, long rows, long errors) {
+    this.fingerprint = fingerprint;
+    this.calls = calls;
+    this.totalMicros = totalMicros;
+    this.minMicros = minMicros;
+    this.maxMicros = maxMicros;
+    this.p99Micros = p99Micros;
+    this.rows = rows;
+    this.errors = errors;
+  }
+
+  public String getFingerprint() {
+    return fingerprint;
+  }
+
+  public long getCalls() {
+    return calls;
+  }
+
+  /**
+   * @return the time spent in all calls, in microseconds
+   */
+  public long getTotalMicros() {
+    return totalMicros;
+  }
+
+  public long getMeanMicros() {
+    return (calls == 0) ? 0 : totalMicros / calls;
+  }
+
+  public long getMinMicros() {
+    return minMicros;
+  }
+
+  public long getMaxMicros() {
+    return maxMicros;
+  }
+
+  /**
+   * @return the 99th percentile call time, within 12.5%
+   */
+  public long getP99Micros() {
+    return p99Micros;
+  }
+
+  /**
+   * @return rows affected, plus rows returned by cached selects and COPY OUT
+   */
+  public long getRows() {
+    return rows;
+  }
+
+  /**
+   * @return the number of calls that reported an error
+   */
+  public long getErrors() {
+    return errors;
+  }
+
+  @Override
+  public String toString() {
+    return calls + " calls, " + (totalMicros / 1000L) + "ms total, mean " + getMeanMicros()
+        + "us min " + minMicros + "us max " + maxMicros + "us p99 " + p99Micros + "us, "
+        + rows + " rows, " + errors + " errors: " + fingerprint;
+  }
+}
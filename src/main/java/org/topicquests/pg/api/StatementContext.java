@@ -0,0 +1,157 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg.api;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * What an {@link IStatementListener} is told about one statement, borrow,
+ * return or transaction call. A context is created only while listeners
+ * are registered, and is used by one thread at a time.
+ */
+public class StatementContext {
+  /**
+   * What the context describes.
+   */
+  public enum Kind {
+    STATEMENT,
+    BORROW,
+    RETURN,
+    TRANSACTION
+  }
+
+  private final Kind kind;
+  private final Operation operation;
+  private final String action;
+  private final String sql;
+  private final String role;
+  private final long startNanos;
+  private IPostgresConnection connection;
+  private long durationNanos = -1;
+  private long rows;
+  private boolean failed;
+  private Map<String, Object> attributes = null;
+
+  public StatementContext(Kind kind, Operation operation, String action, String sql,
+                          String role, IPostgresConnection connection, long startNanos) {
+    this.kind = kind;
+    this.operation = operation;
+    this.action = action;
+    this.sql = sql;
+    this.role = role;
+    this.connection = connection;
+    this.startNanos = startNanos;
+  }
+
+  public Kind getKind() {
+    return kind;
+  }
+
+  /**
+   * @return the statement's operation, or <code>null</code> for other kinds
+   */
+  public Operation getOperation() {
+    return operation;
+  }
+
+  /**
+   * @return "begin", "commit", "rollback" or "rollback to savepoint" for
+   *         a transaction call, otherwise <code>null</code>
+   */
+  public String getAction() {
+    return action;
+  }
+
+  /**
+   * @return the statement's SQL, or <code>null</code> for other kinds
+   */
+  public String getSql() {
+    return sql;
+  }
+
+  /**
+   * @return the role set on the connection, or <code>null</code>
+   */
+  public String getRole() {
+    return role;
+  }
+
+  /**
+   * @return the connection, or <code>null</code> before a borrow succeeds
+   */
+  public IPostgresConnection getConnection() {
+    return connection;
+  }
+
+  public void setConnection(IPostgresConnection connection) {
+    this.connection = connection;
+  }
+
+  /**
+   * @return the start, from System.nanoTime()
+   */
+  public long getStartNanos() {
+    return startNanos;
+  }
+
+  /**
+   * @return the duration, or -1 until the call has finished
+   */
+  public long getDurationNanos() {
+    return durationNanos;
+  }
+
+  public void setDurationNanos(long durationNanos) {
+    this.durationNanos = durationNanos;
+  }
+
+  /**
+   * @return the rows affected, or read at once, by a statement
+   */
+  public long getRows() {
+    return rows;
+  }
+
+  public void setRows(long rows) {
+    this.rows = rows;
+  }
+
+  public boolean isFailed() {
+    return failed;
+  }
+
+  public void setFailed(boolean failed) {
+    this.failed = failed;
+  }
+
+  /**
+   * Keep a value, such as a trace span, between a before and an after
+   * callback.
+   */
+  public void setAttribute(String key, Object value) {
+    if (attributes == null)
+      attributes = new HashMap<String, Object>(4);
+    attributes.put(key, value);
+  }
+
+  /**
+   * @return the value kept under <code>key</code>, or <code>null</code>
+   */
+  public Object getAttribute(String key) {
+    return (attributes == null) ? null : attributes.get(key);
+  }
+}
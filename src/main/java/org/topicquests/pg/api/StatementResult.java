@@ -0,0 +1,85 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg.api;
+
+/**
+ * A caller-owned result for {@link IPostgresStatement}. One instance can be
+ * passed to every execution of a statement: each execution resets it
+ * first, and the error text is kept in a reused buffer, so a successful
+ * execution leaves nothing behind for the garbage collector.
+ */
+public class StatementResult {
+  private long rowCount = -1;
+  private boolean error = false;
+  private final StringBuilder errors = new StringBuilder();
+  private Object resultObject = null;
+
+  /**
+   * Clear the row count, errors and result object.
+   */
+  public StatementResult reset() {
+    rowCount = -1;
+    error = false;
+    errors.setLength(0);
+    resultObject = null;
+    return this;
+  }
+
+  /**
+   * @return the update count of the last execution, or -1 if there was none
+   */
+  public long getRowCount() {
+    return rowCount;
+  }
+
+  public void setRowCount(long rowCount) {
+    this.rowCount = rowCount;
+  }
+
+  /**
+   * @return the ResultSet of the last query, or <code>null</code>
+   */
+  public Object getResultObject() {
+    return resultObject;
+  }
+
+  public void setResultObject(Object resultObject) {
+    this.resultObject = resultObject;
+  }
+
+  public boolean hasError() {
+    return error;
+  }
+
+  /**
+   * Add an error in the "PGD-n message" form used by IResult.
+   */
+  public void addErrorString(String code, String message) {
+    if (error)
+      errors.append('\n');
+    errors.append(code).append(' ').append(message);
+    error = true;
+  }
+
+  public String getErrorString() {
+    return errors.toString();
+  }
+
+  @Override
+  public String toString() {
+    return error ? getErrorString() : "rows=" + rowCount;
+  }
+}
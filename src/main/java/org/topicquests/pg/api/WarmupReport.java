@@ -0,0 +1,84 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg.api;
+
+/**
+ * What a connection warmup did and how long it took.
+ */
+public class WarmupReport {
+  private final int connections;
+  private final int statements;
+  private final int tables;
+  private final int errors;
+  private final long elapsedNanos;
+  private final long slowestConnectNanos;
+
+  public WarmupReport(int connections, int statements, int tables, int errors,
+                      long elapsedNanos, long slowestConnectNanos) {
+    this.connections = connections;
+    this.statements = statements;
+    this.tables = tables;
+    this.errors = errors;
+    this.elapsedNanos = elapsedNanos;
+    this.slowestConnectNanos = slowestConnectNanos;
+  }
+
+  /**
+   * @return the number of connections opened and warmed
+   */
+  public int getConnections() {
+    return connections;
+  }
+
+  /**
+   * @return the number of statements prepared, over all connections
+   */
+  public int getStatements() {
+    return statements;
+  }
+
+  /**
+   * @return the number of table reads, over all connections
+   */
+  public int getTables() {
+    return tables;
+  }
+
+  public int getErrors() {
+    return errors;
+  }
+
+  /**
+   * @return the wall-clock duration of the warmup in milliseconds
+   */
+  public long getElapsedMillis() {
+    return elapsedNanos / 1000000L;
+  }
+
+  /**
+   * @return the longest time taken to get one connection, in milliseconds
+   */
+  public long getSlowestConnectMillis() {
+    return slowestConnectNanos / 1000000L;
+  }
+
+  @Override
+  public String toString() {
+    return connections + " connections, " + statements + " statements, " + tables
+        + " tables in " + getElapsedMillis() + " ms (slowest connect "
+        + getSlowestConnectMillis() + " ms, " + errors + " errors)";
+  }
+}
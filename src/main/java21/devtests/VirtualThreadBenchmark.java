@@ -0,0 +1,141 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package devtests;
+
+import java.sql.ResultSet;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jdk.jfr.consumer.RecordingStream;
+
+import org.topicquests.pg.PostgresConnectionFactory;
+import org.topicquests.pg.api.IPostgresConnection;
+import org.topicquests.support.ResultPojo;
+import org.topicquests.support.api.IResult;
+
+/**
+ * Starts 10000 virtual threads at once (or as many as given), each
+ * borrowing a connection, running the ThreadsTest query and returning it,
+ * so the requests far outnumber PoolMaxTotal connections.
+ * <p>
+ * Carrier starvation shows up two ways. A heartbeat virtual thread that
+ * sleeps 5 ms at a time reports how late it woke up: if waiting borrowers
+ * pinned every carrier it would not get one. And JFR's
+ * jdk.VirtualThreadPinned events count the waits that did pin a carrier.
+ * Run it with VirtualThreads "true" and "false" in postgresql-props.xml
+ * to compare. Needs Java 21; it is built only by the java21 profile:
+ * <p>
+ * java -cp target/classes/META-INF/versions/21:target/classes:... devtests.VirtualThreadBenchmark [requests]
+ */
+public class VirtualThreadBenchmark {
+  private static final String TEST_DB = "geodb";
+  private static final long HEARTBEAT_MILLIS = 5;
+
+  public static void main(String args []) throws Exception {
+    int requests = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+    PostgresConnectionFactory provider = new PostgresConnectionFactory(TEST_DB, "", "geo", "geopwd");
+    System.out.println("ConnectionPool " + provider.getStringProperty("ConnectionPool")
+        + ", VirtualThreads " + provider.getStringProperty("VirtualThreads")
+        + ", PoolMaxTotal " + provider.getStringProperty("PoolMaxTotal"));
+
+    AtomicLong pinned = new AtomicLong();
+    AtomicLong maxPinnedNanos = new AtomicLong();
+    try (RecordingStream events = new RecordingStream()) {
+      events.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ofMillis(1));
+      events.onEvent("jdk.VirtualThreadPinned", e -> {
+        pinned.incrementAndGet();
+        maxPinnedNanos.accumulateAndGet(e.getDuration().toNanos(), Math::max);
+      });
+      events.startAsync();
+
+      run(provider, requests);   // warm up
+      pinned.set(0);
+      maxPinnedNanos.set(0);
+      run(provider, requests);
+      System.out.println("pinned over 1 ms: " + pinned.get() + " times, longest "
+          + (maxPinnedNanos.get() / 1000) + " us");
+    }
+    provider.shutDown();
+  }
+
+  private static void run(PostgresConnectionFactory provider, int requests) throws Exception {
+    CountDownLatch start = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(requests);
+    AtomicLong errors = new AtomicLong();
+    AtomicLong maxBorrowNanos = new AtomicLong();
+    AtomicLong maxLateNanos = new AtomicLong();
+
+    Thread heartbeat = Thread.ofVirtual().name("heartbeat").start(() -> {
+      try {
+        while (done.getCount() > 0) {
+          long t = System.nanoTime();
+          Thread.sleep(HEARTBEAT_MILLIS);
+          long late = System.nanoTime() - t - HEARTBEAT_MILLIS * 1000000L;
+          maxLateNanos.accumulateAndGet(late, Math::max);
+        }
+      } catch (InterruptedException e) {
+        // done
+      }
+    });
+
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < requests; i++) {
+        final int id = (i % 100) + 1;
+        executor.execute(() -> {
+          try {
+            start.await();
+            long b = System.nanoTime();
+            IPostgresConnection conn = provider.getConnection();
+            maxBorrowNanos.accumulateAndGet(System.nanoTime() - b, Math::max);
+            if (!select(conn, id))
+              errors.incrementAndGet();
+            conn.closeConnection(new ResultPojo());
+          } catch (Exception e) {
+            errors.incrementAndGet();
+          } finally {
+            done.countDown();
+          }
+        });
+      }
+      long t0 = System.nanoTime();
+      start.countDown();
+      done.await();
+      long nanos = System.nanoTime() - t0;
+      heartbeat.join();
+      System.out.println(requests + " virtual threads: "
+          + Math.round(requests * 1.0e9 / nanos) + " requests/s, max borrow "
+          + (maxBorrowNanos.get() / 1000000) + " ms, heartbeat late by up to "
+          + (maxLateNanos.get() / 1000000) + " ms, errors " + errors.get());
+    }
+  }
+
+  /**
+   * The ThreadsTest query.
+   */
+  private static boolean select(IPostgresConnection conn, int id) throws Exception {
+    IResult r = conn.executeSelect("select * from city where id < ?", id * 3);
+    if (r.hasError())
+      return false;
+    ResultSet rs = (ResultSet)r.getResultObject();
+    while (rs.next())
+      rs.getString(2);
+    conn.closeResultSet(rs, r);
+    return !r.hasError();
+  }
+}
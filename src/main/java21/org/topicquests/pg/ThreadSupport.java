@@ -0,0 +1,46 @@
+/*
+ * Copyright 2018, TopicQuests
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package org.topicquests.pg;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the provider's worker threads: the Java 21 version, used from
+ * META-INF/versions/21 of the multi-release jar.
+ */
+final class ThreadSupport {
+
+  private ThreadSupport() {
+  }
+
+  /**
+   * @return <code>true</code> if this JVM can run virtual threads
+   */
+  static boolean hasVirtualThreads() {
+    return true;
+  }
+
+  /**
+   * A factory of threads named <code>prefix</code>1, <code>prefix</code>2, ...
+   * @param virtual Ask for virtual threads
+   * @return daemon platform threads, or virtual threads
+   */
+  static ThreadFactory newThreadFactory(String prefix, boolean virtual) {
+    if (virtual)
+      return Thread.ofVirtual().name(prefix, 1).factory();
+    return Thread.ofPlatform().name(prefix, 1).daemon(true).factory();
+  }
+}
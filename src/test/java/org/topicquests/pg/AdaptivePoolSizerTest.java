@@ -0,0 +1,50 @@
+package org.topicquests.pg;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class AdaptivePoolSizerTest {
+  private static final long MS = 1000000L;
+
+  @Test
+  @DisplayName("Grows toward the Little's law estimate when borrowers wait")
+  void growsOnWait() {
+    AdaptivePoolSizer sizer = newSizer();
+    // 1000 borrows/s held 20 ms each need about 20 connections
+    int next = sizer.nextLimit(10, 0, times(100, 30 * MS), times(1000, 20 * MS), times(1000, 2 * MS));
+    assertEquals(15, next);  // at most half again per interval
+    next = sizer.nextLimit(15, 0, times(100, 30 * MS), times(1000, 20 * MS), times(1000, 2 * MS));
+    assertEquals(21, next);
+  }
+
+  @Test
+  @DisplayName("Shrinks by one when idle, never below the minimum")
+  void shrinksWhenIdle() {
+    AdaptivePoolSizer sizer = newSizer();
+    LatencyHistogram.Snapshot none = times(0, 0);
+    assertEquals(9, sizer.nextLimit(10, 5, times(50, 0), times(50, 10 * MS), times(50, 2 * MS)));
+    assertEquals(2, sizer.nextLimit(2, 2, none, none, none));
+  }
+
+  @Test
+  @DisplayName("Backs off when statement latency climbs")
+  void backsOffOnSlowServer() {
+    AdaptivePoolSizer sizer = newSizer();
+    sizer.nextLimit(10, 0, times(100, 0), times(100, 10 * MS), times(1000, 2 * MS));
+    int next = sizer.nextLimit(10, 0, times(100, 30 * MS), times(1000, 20 * MS), times(1000, 8 * MS));
+    assertEquals(9, next);
+  }
+
+  private static AdaptivePoolSizer newSizer() {
+    return new AdaptivePoolSizer(null, null, 2, 40, 5, 95, 150, 1000);
+  }
+
+  private static LatencyHistogram.Snapshot times(int n, long nanos) {
+    LatencyHistogram h = new LatencyHistogram();
+    for (int i = 0; i < n; i++)
+      h.recordNanos(nanos);
+    return h.snapshotAndReset();
+  }
+}
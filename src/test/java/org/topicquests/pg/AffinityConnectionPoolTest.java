@@ -0,0 +1,227 @@
+package org.topicquests.pg;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Exercises the pool against a fake driver, so no database is needed.
+ */
+public class AffinityConnectionPoolTest {
+  private static final String URL = "jdbc:tqfake:pool";
+  private static final AtomicInteger opened = new AtomicInteger();
+  private static PostgresConnectionFactory provider;
+  private static Driver driver;
+
+  @BeforeAll
+  static void setUp() throws SQLException {
+    provider = new PostgresConnectionFactory("tq_database");
+    driver = new FakeDriver();
+    DriverManager.registerDriver(driver);
+  }
+
+  @AfterAll
+  static void tearDown() throws SQLException {
+    DriverManager.deregisterDriver(driver);
+    provider.shutDown();
+  }
+
+  @Test
+  @DisplayName("A thread gets back the connection it returned")
+  void sameThreadSameConnection() throws SQLException {
+    AffinityConnectionPool pool = newPool(4, -1);
+    Connection a = pool.getConnection();
+    Connection b = pool.getConnection();
+    String first = a.toString();
+    a.close();
+    b.close();
+    Connection c = pool.getConnection();
+    assertEquals(b.toString(), c.toString());
+    c.close();
+    assertEquals(2, pool.getNumIdle());
+    assertEquals(0, pool.getNumActive());
+    assertTrue(!first.equals(c.toString()));
+    pool.close();
+  }
+
+  @Test
+  @DisplayName("Connections are never shared and MaxTotal holds")
+  void exclusiveUnderContention() throws Exception {
+    final int maxTotal = 4;
+    final AffinityConnectionPool pool = newPool(maxTotal, -1);
+    final Set<String> inUse = ConcurrentHashMap.newKeySet();
+    final AtomicInteger failures = new AtomicInteger();
+    int before = opened.get();
+
+    Thread[] threads = new Thread[32];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread(() -> {
+        try {
+          for (int i = 0; i < 200; i++) {
+            Connection c = pool.getConnection();
+            if (!inUse.add(c.toString()))
+              failures.incrementAndGet();
+            Thread.yield();
+            inUse.remove(c.toString());
+            c.close();
+          }
+        } catch (SQLException e) {
+          failures.incrementAndGet();
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread t : threads)
+      t.join();
+
+    assertEquals(0, failures.get());
+    assertTrue(opened.get() - before <= maxTotal);
+    assertEquals(0, pool.getNumActive());
+    pool.close();
+  }
+
+  @Test
+  @DisplayName("A full pool times out after PoolMaxWaitMillis")
+  void borrowTimesOut() throws SQLException {
+    AffinityConnectionPool pool = newPool(1, 50);
+    Connection held = pool.getConnection();
+    try {
+      pool.getConnection();
+      fail("expected a timeout");
+    } catch (SQLException e) {
+      assertTrue(e.getMessage().startsWith("Timed out"));
+    }
+    held.close();
+    assertTrue(held.isClosed());
+    try {
+      held.getAutoCommit();
+      fail("expected a closed connection");
+    } catch (SQLException e) {
+      assertEquals("Connection is closed", e.getMessage());
+    }
+    pool.getConnection().close();
+    pool.close();
+  }
+
+  @Test
+  @DisplayName("Closing a connection from several threads returns it once")
+  void concurrentDoubleClose() throws Exception {
+    AffinityConnectionPool pool = newPool(2, 50);
+    for (int round = 0; round < 500; round++) {
+      Connection c = pool.getConnection();
+      // spinning rather than blocking, so the closes start as close together as can be
+      AtomicBoolean go = new AtomicBoolean();
+      AtomicInteger ready = new AtomicInteger();
+      Thread[] threads = new Thread[4];
+      for (int t = 0; t < threads.length; t++) {
+        threads[t] = new Thread(() -> {
+          ready.incrementAndGet();
+          while (!go.get())
+            Thread.yield();
+          try {
+            c.close();
+          } catch (SQLException e) {
+            // close on a returned connection does nothing
+          }
+        });
+        threads[t].start();
+      }
+      while (ready.get() < threads.length)
+        Thread.yield();
+      go.set(true);
+      for (Thread t : threads)
+        t.join();
+      assertEquals(0, pool.getNumActive());
+      assertTrue(pool.getNumIdle() <= 2);
+    }
+    // a connection returned twice would be handed to both of these
+    Connection a = pool.getConnection();
+    Connection b = pool.getConnection();
+    assertTrue(!a.toString().equals(b.toString()));
+    a.close();
+    b.close();
+    pool.close();
+  }
+
+  private static AffinityConnectionPool newPool(int maxTotal, long maxWaitMillis) {
+    AffinityConnectionPool pool = new AffinityConnectionPool(provider);
+    pool.setUrl(URL);
+    pool.setMaxTotal(maxTotal);
+    pool.setMaxWaitMillis(maxWaitMillis);
+    return pool;
+  }
+
+  /**
+   * Hands out connections that answer the calls the pool makes.
+   */
+  private static final class FakeDriver implements Driver {
+    @Override
+    public Connection connect(String url, Properties info) {
+      if (!acceptsURL(url))
+        return null;
+      final String name = "fake#" + opened.incrementAndGet();
+      final boolean[] closed = new boolean[1];
+      return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(),
+          new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+              case "toString": return name;
+              case "hashCode": return Integer.valueOf(name.hashCode());
+              case "equals": return Boolean.valueOf(proxy == args[0]);
+              case "close": closed[0] = true; return null;
+              case "isClosed": return Boolean.valueOf(closed[0]);
+              case "isValid": return Boolean.valueOf(!closed[0]);
+              case "getAutoCommit": return Boolean.TRUE;
+              default: return null;
+            }
+          });
+    }
+
+    @Override
+    public boolean acceptsURL(String url) {
+      return url.startsWith("jdbc:tqfake:");
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+      return new DriverPropertyInfo[0];
+    }
+
+    @Override
+    public int getMajorVersion() {
+      return 1;
+    }
+
+    @Override
+    public int getMinorVersion() {
+      return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+      return false;
+    }
+
+    @Override
+    public Logger getParentLogger() {
+      return Logger.getGlobal();
+    }
+  }
+}
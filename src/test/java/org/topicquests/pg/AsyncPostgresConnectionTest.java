@@ -0,0 +1,123 @@
+package org.topicquests.pg;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.topicquests.pg.api.IPostgresConnection;
+import org.topicquests.support.ResultPojo;
+import org.topicquests.support.api.IResult;
+
+/**
+ * Runs tasks against connections over a fake JDBC connection, so no
+ * database is needed.
+ */
+public class AsyncPostgresConnectionTest {
+  private static final AtomicInteger borrowed = new AtomicInteger();
+  private static final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+  private static PostgresConnectionFactory provider;
+
+  @BeforeAll
+  static void setUp() {
+    provider = new PostgresConnectionFactory("tq_database") {
+      @Override
+      public IPostgresConnection getConnection() {
+        borrowed.incrementAndGet();
+        return new PostgresConnection(new FakeJdbc(sent).recordAutoCommit().connection(), this);
+      }
+    };
+  }
+
+  @AfterAll
+  static void tearDown() {
+    provider.shutDown();
+  }
+
+  @Test
+  @DisplayName("Connections are borrowed when a task runs, on a worker thread")
+  void borrowsOnRun() throws Exception {
+    AsyncPostgresConnection async = new AsyncPostgresConnection(provider, 1, 4);
+    CountDownLatch release = new CountDownLatch(1);
+    int before = borrowed.get();
+    CompletableFuture<String> first = async.submit(conn -> {
+      await(release);
+      return Thread.currentThread().getName();
+    });
+    CompletableFuture<String> second = async.submit(conn -> "second");
+    Thread.sleep(50);
+    assertEquals(before + 1, borrowed.get());
+    assertEquals(1, async.getQueueDepth());
+    release.countDown();
+    assertTrue(first.get(5, TimeUnit.SECONDS).startsWith("tq-pg-async-"));
+    assertEquals("second", second.get(5, TimeUnit.SECONDS));
+    assertEquals(before + 2, borrowed.get());
+    async.shutDown();
+  }
+
+  @Test
+  @DisplayName("A full queue refuses work at once")
+  void failsFast() throws Exception {
+    AsyncPostgresConnection async = new AsyncPostgresConnection(provider, 1, 1);
+    CountDownLatch release = new CountDownLatch(1);
+    CompletableFuture<Object> running = async.submit(conn -> await(release));
+    Thread.sleep(50);
+    CompletableFuture<Object> queued = async.submit(conn -> "queued");
+    CompletableFuture<Object> refused = async.submit(conn -> "refused");
+    assertTrue(refused.isCompletedExceptionally());
+    try {
+      refused.get();
+      fail("expected a rejection");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+    assertEquals(1, async.getRejectedCount());
+    release.countDown();
+    running.get(5, TimeUnit.SECONDS);
+    assertEquals("queued", queued.get(5, TimeUnit.SECONDS));
+    async.shutDown();
+  }
+
+  @Test
+  @DisplayName("A transaction block is committed, or rolled back on error")
+  void runsTransactions() throws Exception {
+    AsyncPostgresConnection async = new AsyncPostgresConnection(provider, 2, 4);
+    sent.clear();
+    IResult ok = async.inTransaction(conn -> conn.executeSQL("SELECT 1")).get(5, TimeUnit.SECONDS);
+    assertTrue(!ok.hasError());
+    IResult bad = async.inTransaction(conn -> {
+      IResult r = new ResultPojo();
+      r.addErrorString("failed");
+      return r;
+    }).get(5, TimeUnit.SECONDS);
+    assertTrue(bad.hasError());
+    // returning the connection then ends the rolled-back transaction
+    assertEquals("[setAutoCommit false, SELECT 1, commit, setAutoCommit true,"
+                 + " setAutoCommit false, rollback, rollback, setAutoCommit true]",
+                 sent.toString());
+    async.shutDown();
+  }
+
+  private static Object await(CountDownLatch latch) {
+    try {
+      latch.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return null;
+  }
+}
@@ -0,0 +1,129 @@
+package org.topicquests.pg;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs batches on a fake connection whose statements log what is sent,
+ * so no database is needed.
+ */
+public class BatchExecutorTest {
+
+  @Test
+  @DisplayName("Rows go out in chunks of BatchChunkSize, with the counts summed")
+  void sendsChunks() throws Exception {
+    FakeJdbc jdbc = new FakeJdbc();
+    Connection conn = batching(jdbc, 1, -1);
+    long rows = new BatchExecutor(2, true).execute(conn, "UPDATE t SET a = a + ?",
+                                                   new Object[] {1, 2, 3, 4, 5});
+    assertEquals("[prepare UPDATE t SET a = a + ?, describe 1,"
+                 + " prepare UPDATE t SET a = a + ?, batch 2, batch 2, batch 1,"
+                 + " commit]", jdbc.sent.toString());
+    // two rows each, except SUCCESS_NO_INFO for the last, counted as one
+    assertEquals(9, rows);
+    assertTrue(jdbc.autoCommit);
+  }
+
+  @Test
+  @DisplayName("A rewritten insert stays under the bind parameter limit, then sends the rest")
+  void capsRewrittenInserts() throws Exception {
+    FakeJdbc jdbc = new FakeJdbc();
+    // 3 rows of 10000 parameters fit under 32767, 4 do not
+    Connection conn = batching(jdbc, 10000, -1);
+    long rows = new BatchExecutor(1000, true).execute(conn, "INSERT INTO t VALUES (?)",
+                                                      new Object[7 * 10000]);
+    assertEquals("[prepare INSERT INTO t VALUES (?), describe 10000,"
+                 + " prepare INSERT INTO t VALUES (?),(?),(?), update 30000, update 30000,"
+                 + " prepare INSERT INTO t VALUES (?), update 10000, commit]",
+                 jdbc.sent.toString());
+    assertEquals(7, rows);
+  }
+
+  @Test
+  @DisplayName("A failed chunk rolls the whole batch back and restores autocommit")
+  void rollsBackFailedChunk() throws Exception {
+    FakeJdbc jdbc = new FakeJdbc();
+    Connection conn = batching(jdbc, 1, 2);
+    assertThrows(SQLException.class, () -> new BatchExecutor(2, false)
+        .execute(conn, "UPDATE t SET a = ?", new Object[] {1, 2, 3, 4, 5}));
+    assertEquals("[prepare UPDATE t SET a = ?, describe 1, prepare UPDATE t SET a = ?,"
+                 + " batch 2, rollback]",
+                 jdbc.sent.toString());
+    assertTrue(jdbc.autoCommit);
+    assertEquals("[PreparedStatement, PreparedStatement]", jdbc.closed.toString());
+  }
+
+  @Test
+  @DisplayName("The parameter count of a statement is looked up once")
+  void cachesPlans() throws Exception {
+    FakeJdbc jdbc = new FakeJdbc();
+    Connection conn = batching(jdbc, 2, -1);
+    BatchExecutor executor = new BatchExecutor(10, false);
+    executor.execute(conn, "UPDATE t SET a = ? WHERE b = ?", new Object[] {1, 2});
+    jdbc.sent.clear();
+    executor.execute(conn, "UPDATE t SET a = ? WHERE b = ?", new Object[] {3, 4});
+    assertEquals("[prepare UPDATE t SET a = ? WHERE b = ?, batch 1, commit]",
+                 jdbc.sent.toString());
+  }
+
+  /**
+   * A connection whose statements report <code>paramCount</code>
+   * parameters, and whose batch number <code>failing</code> fails.
+   */
+  private static Connection batching(FakeJdbc jdbc, int paramCount, int failing) {
+    List<String> sent = jdbc.sent;
+    int[] batches = {0};
+    return jdbc.on("prepareStatement", prepareArgs -> {
+      String sql = (String)prepareArgs[0];
+      int[] bound = {0};
+      int[] pending = {0};
+      sent.add("prepare " + sql);
+      return FakeJdbc.proxy(new Class<?>[] {PreparedStatement.class}, (proxy, method, args) -> {
+        switch (method.getName()) {
+          case "getParameterMetaData":
+            sent.add("describe " + paramCount);
+            return FakeJdbc.proxy(new Class<?>[] {ParameterMetaData.class},
+                (p, m, a) -> Integer.valueOf(paramCount));
+          case "setObject":
+            bound[0]++;
+            return null;
+          case "addBatch":
+            pending[0]++;
+            return null;
+          case "executeBatch":
+            if (++batches[0] == failing)
+              throw new SQLException("chunk failed");
+            sent.add("batch " + pending[0]);
+            int[] counts = new int[pending[0]];
+            Arrays.fill(counts, 2);
+            if (pending[0] == 1)
+              counts[0] = Statement.SUCCESS_NO_INFO;
+            pending[0] = 0;
+            return counts;
+          case "executeUpdate":
+            sent.add("update " + bound[0]);
+            int rows = bound[0] / paramCount;
+            bound[0] = 0;
+            return Integer.valueOf(rows);
+          case "close":
+            jdbc.closed.add("PreparedStatement");
+            return null;
+          default:
+            return null;
+        }
+      });
+    }).connection();
+  }
+}
@@ -0,0 +1,128 @@
+package org.topicquests.pg;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.*;
+
+import org.postgresql.PGStatement;
+
+/**
+ * Compares the old instanceof chain of setParamValues with
+ * ParameterBinder.bind, each binding the same rows to a statement that
+ * only records the values bound to it. Both pay the same for the
+ * recording statement, so the difference between them is the cost of
+ * choosing the setters. No database is needed; run it with the test
+ * classpath, for instance through exec:java with classpathScope=test.
+ * <p>
+ * Each round times both in turn; the first rounds are the warm-up.
+ */
+public class BinderBenchmark {
+  private static final int ROUNDS = 12;
+  private static final int ITERATIONS = 2000000;
+  private static final Object[] bound = new Object[16];
+  private static final PreparedStatement RECORDING_STATEMENT = (PreparedStatement)FakeJdbc.proxy(
+      new Class<?>[] {PreparedStatement.class, PGStatement.class}, (proxy, method, args) -> {
+        if (method.getName().startsWith("set") && args != null && args.length >= 2
+            && args[0] instanceof Integer)
+          bound[(Integer)args[0]] = args[1];
+        return null;
+      });
+
+  public static void main(String args []) throws SQLException {
+    PostgresConnectionFactory provider = new PostgresConnectionFactory("tq_database");
+    ParameterBinder binder = new ParameterBinder(provider);
+    // a typical row, and one made of classes from the end of the chain
+    Object[] common = {
+      Long.valueOf(42), "user", "some text", new Timestamp(System.currentTimeMillis()), Boolean.TRUE
+    };
+    Object[] tail = {
+      new java.util.Date(), new ByteArrayInputStream(new byte[0]), BigInteger.TEN,
+      new BigDecimal("1.5"), Double.valueOf(2.5)
+    };
+
+    try {
+      for (int round = 1; round <= ROUNDS; round++) {
+        System.out.println("round " + round
+            + " common: " + run(binder, common) + ", tail: " + run(binder, tail));
+      }
+    } finally {
+      provider.shutDown();
+    }
+  }
+
+  private static String run(ParameterBinder binder, Object[] vals) throws SQLException {
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      instanceofChain(RECORDING_STATEMENT, vals);
+    }
+    long chain = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      binder.bind(RECORDING_STATEMENT, vals);
+    }
+    long table = System.nanoTime() - start;
+
+    return "instanceof chain " + (chain / ITERATIONS) + " ns/row"
+        + ", ParameterBinder " + (table / ITERATIONS) + " ns/row";
+  }
+
+  /**
+   * The setParamValues body that ParameterBinder replaced.
+   */
+  private static void instanceofChain(PreparedStatement s, Object... vals) throws SQLException {
+    int len = vals.length;
+
+    for (int i = 0; i < len; i++) {
+      if (vals[i] == null) {
+        s.setNull(i+1, java.sql.Types.OTHER);
+      } else {
+        if (vals[i] instanceof Byte) {
+          s.setInt(i+1, ((Byte) vals[i]).intValue());
+        } else if (vals[i] instanceof String) {
+          s.setString(i+1, (String) vals[i]);
+        } else if (vals[i] instanceof BigDecimal) {
+          s.setBigDecimal(i+1, (BigDecimal) vals[i]);
+        } else if (vals[i] instanceof Short) {
+          s.setShort(i+1, ((Short) vals[i]).shortValue());
+        } else if (vals[i] instanceof Integer) {
+          s.setInt(i+1, ((Integer) vals[i]).intValue());
+        } else if (vals[i] instanceof Long) {
+          long x =((Long) vals[i]).longValue();
+          if (x == -1)
+            s.setNull(i+1, Types.BIGINT);
+          else
+            s.setLong(i+1, x);
+        } else if (vals[i] instanceof Float) {
+          s.setFloat(i+1, ((Float) vals[i]).floatValue());
+        } else if (vals[i] instanceof Double) {
+          s.setDouble(i+1, ((Double) vals[i]).doubleValue());
+        } else if (vals[i] instanceof byte[]) {
+          s.setBytes(i+1, (byte[]) vals[i]);
+        } else if (vals[i] instanceof java.sql.Date) {
+          s.setDate(i+1, (java.sql.Date) vals[i]);
+        } else if (vals[i] instanceof Time) {
+          s.setTime(i+1, (Time) vals[i]);
+        } else if (vals[i] instanceof Timestamp) {
+          s.setTimestamp(i+1, (Timestamp) vals[i]);
+        } else if (vals[i] instanceof Boolean) {
+          s.setBoolean(i+1, ((Boolean) vals[i]).booleanValue());
+        } else if (vals[i] instanceof InputStream) {
+          s.setBinaryStream(i+1, (InputStream) vals[i], -1);
+        } else if (vals[i] instanceof java.sql.Blob) {
+          s.setBlob(i+1, (java.sql.Blob) vals[i]);
+        } else if (vals[i] instanceof java.sql.Clob) {
+          s.setClob(i+1, (java.sql.Clob) vals[i]);
+        } else if (vals[i] instanceof java.util.Date) {
+          s.setTimestamp(i+1, new Timestamp(((java.util.Date) vals[i]).getTime()));
+        } else if (vals[i] instanceof BigInteger) {
+          s.setString(i+1, vals[i].toString());
+        } else {
+          s.setObject(i+1, vals[i]);
+        }
+      }
+    }
+  }
+}
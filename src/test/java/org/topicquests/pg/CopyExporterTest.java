@@ -0,0 +1,42 @@
+package org.topicquests.pg;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import org.topicquests.pg.api.CopyFormat;
+
+public class CopyExporterTest {
+
+  @Test
+  @DisplayName("Queries are wrapped, and tables named like keywords are not")
+  void copyOutSql() {
+    assertEquals("COPY (select * from t) TO STDOUT (FORMAT csv)",
+        CopyExporter.copyOutSql("select * from t;", CopyFormat.CSV));
+    assertEquals("COPY (WITH x AS (SELECT 1) SELECT * FROM x) TO STDOUT (FORMAT csv)",
+        CopyExporter.copyOutSql("WITH x AS (SELECT 1) SELECT * FROM x", CopyFormat.CSV));
+    assertEquals("COPY (values(1)) TO STDOUT (FORMAT csv)",
+        CopyExporter.copyOutSql("values(1)", CopyFormat.CSV));
+    for (String table : new String[] {"withdrawals", "selections", "values_log", "tables"})
+      assertTrue(!CopyExporter.copyOutSql(table, CopyFormat.CSV).startsWith("COPY ("), table);
+  }
+
+  @Test
+  @DisplayName("Progress counts rows, not the binary header and trailer")
+  void countsRows() {
+    assertTrue(CopyExporter.isRow("1\tx\n".getBytes(StandardCharsets.UTF_8), false));
+    assertTrue(!CopyExporter.isRow(new byte[0], false));
+    byte[] header = "PGCOPY\n\377\r\n\0".getBytes(StandardCharsets.ISO_8859_1);
+    byte[] empty = new byte[21];
+    System.arraycopy(header, 0, empty, 0, header.length);
+    empty[19] = -1;
+    empty[20] = -1;
+    assertTrue(!CopyExporter.isRow(empty, true));
+    assertTrue(!CopyExporter.isRow(new byte[] {-1, -1}, true));
+    assertTrue(CopyExporter.isRow(new byte[] {0, 1, -1, -1, -1, -1}, true));
+  }
+}
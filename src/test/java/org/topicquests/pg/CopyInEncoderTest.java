@@ -0,0 +1,120 @@
+package org.topicquests.pg;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.postgresql.copy.CopyIn;
+import org.topicquests.pg.api.CopyFormat;
+
+/**
+ * Checks the bytes each COPY format puts on the wire, captured by a fake
+ * CopyIn, so no database is needed.
+ */
+public class CopyInEncoderTest {
+
+  @Test
+  @DisplayName("TEXT escapes NULL, backslashes and control characters")
+  void textEscapes() throws Exception {
+    String sent = text(CopyFormat.TEXT,
+        new Object[] {null, "a\\b", "tab\there", "two\nlines\r", Boolean.TRUE},
+        new Object[] {new byte[] {0x01, (byte)0xab}, 42, "\u00e9"});
+    assertEquals("\\N\ta\\\\b\ttab\\there\ttwo\\nlines\\r\tt\n"
+                 + "\\\\x01ab\t42\t\u00e9\n", sent);
+  }
+
+  @Test
+  @DisplayName("CSV quotes every string, doubles its quotes and leaves NULL empty")
+  void csvQuotes() throws Exception {
+    String sent = text(CopyFormat.CSV,
+        new Object[] {null, "", "say \"hi\"", "a,b\nc", Boolean.FALSE},
+        new Object[] {new byte[] {0x0f}, 7L});
+    assertEquals(",\"\",\"say \"\"hi\"\"\",\"a,b\nc\",f\n"
+                 + "\\x0f,\"7\"\n", sent);
+  }
+
+  @Test
+  @DisplayName("BINARY writes the header, a length per field and the trailer")
+  void binaryLayout() throws Exception {
+    byte[] sent = encode(CopyFormat.BINARY, 1024,
+        new Object[] {null, "h\u00e9", 1, 2L, (short)3, true, new byte[] {9}});
+    byte[] expected = {
+      'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte)0xff, '\r', '\n', 0,
+      0, 0, 0, 0,                     // flags
+      0, 0, 0, 0,                     // header extension
+      0, 7,                           // fields in the row
+      -1, -1, -1, -1,                 // NULL
+      0, 0, 0, 3, 'h', (byte)0xc3, (byte)0xa9,
+      0, 0, 0, 4, 0, 0, 0, 1,
+      0, 0, 0, 8, 0, 0, 0, 0, 0, 0, 0, 2,
+      0, 0, 0, 2, 0, 3,
+      0, 0, 0, 1, 1,
+      0, 0, 0, 1, 9,
+      -1, -1                          // trailer
+    };
+    assertArrayEquals(expected, sent);
+  }
+
+  @Test
+  @DisplayName("Dates and timestamps count from the PostgreSQL epoch")
+  void binaryDates() throws Exception {
+    byte[] sent = encode(CopyFormat.BINARY, 1024,
+        new Object[] {java.time.LocalDate.of(2000, 1, 2), new java.util.Date(946684800001L)});
+    byte[] row = Arrays.copyOfRange(sent, 19, sent.length - 2);
+    assertArrayEquals(new byte[] {
+      0, 2,
+      0, 0, 0, 4, 0, 0, 0, 1,
+      0, 0, 0, 8, 0, 0, 0, 0, 0, 0, 0x03, (byte)0xe8
+    }, row);
+  }
+
+  @Test
+  @DisplayName("Values larger than the buffer come out whole")
+  void spansBuffers() throws Exception {
+    char[] big = new char[3000];
+    Arrays.fill(big, 'x');
+    big[1500] = '\t';
+    String value = new String(big);
+    String sent = new String(encode(CopyFormat.TEXT, 1024, new Object[] {value, "y"}),
+                             StandardCharsets.UTF_8);
+    assertEquals(value.replace("\t", "\\t") + "\ty\n", sent);
+
+    byte[] blob = new byte[5000];
+    Arrays.fill(blob, (byte)7);
+    byte[] binary = encode(CopyFormat.BINARY, 1024, new Object[] {blob});
+    assertEquals(19 + 2 + 4 + 5000 + 2, binary.length);
+    assertArrayEquals(blob, Arrays.copyOfRange(binary, 25, 5025));
+  }
+
+  private static String text(CopyFormat format, Object[]... rows) throws Exception {
+    return new String(encode(format, 1024, rows), StandardCharsets.UTF_8);
+  }
+
+  private static byte[] encode(CopyFormat format, int bufferSize, Object[]... rows)
+      throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CopyIn copyIn = (CopyIn)FakeJdbc.proxy(new Class<?>[] {CopyIn.class},
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "writeToCopy":
+              out.write((byte[])args[0], (Integer)args[1], (Integer)args[2]);
+              return null;
+            case "endCopy": return Long.valueOf(rows.length);
+            default: return null;
+          }
+        });
+    CopyInEncoder encoder = new CopyInEncoder(copyIn, format, bufferSize);
+    encoder.writeHeader();
+    for (Object[] row : rows)
+      encoder.writeRow(row);
+    assertEquals(rows.length, encoder.finish());
+    assertEquals(out.size(), encoder.getBytes());
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,65 @@
+package org.topicquests.pg;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.topicquests.pg.api.CountMode;
+import org.topicquests.support.api.IResult;
+
+/**
+ * Runs the TABLE_ESTIMATE count over a fake connection, so no database is needed.
+ */
+public class CountQueriesTest {
+  private static PostgresConnectionFactory provider;
+
+  @BeforeAll
+  static void setUp() {
+    provider = new PostgresConnectionFactory("tq_database");
+  }
+
+  @AfterAll
+  static void tearDown() {
+    provider.shutDown();
+  }
+
+  @Test
+  @DisplayName("An analyzed table is counted from pg_class")
+  void readsStatistics() {
+    List<String> closed = new ArrayList<String>();
+    IResult r = count(1234, 10, closed);
+    assertTrue(!r.hasError(), r.getErrorString());
+    assertEquals(Long.valueOf(1234), r.getResultObject());
+    assertEquals("[ResultSet, PreparedStatement]", closed.toString());
+  }
+
+  @Test
+  @DisplayName("A never-analyzed table falls back to EXPLAIN, before and after PostgreSQL 14")
+  void explainsUnanalyzed() {
+    List<String> closed = new ArrayList<String>();
+    IResult r = count(0, 0, closed);
+    assertTrue(!r.hasError(), r.getErrorString());
+    assertEquals(Long.valueOf(2550), r.getResultObject());
+    assertEquals("[ResultSet, Statement, PreparedStatement]", closed.toString());
+    r = count(-1, 0, new ArrayList<String>());
+    assertEquals(Long.valueOf(2550), r.getResultObject());
+  }
+
+  private static IResult count(long reltuples, int relpages, List<String> closed) {
+    FakeJdbc jdbc = new FakeJdbc();
+    jdbc.answer(sql -> sql.startsWith("EXPLAIN")
+        ? jdbc.rows(new Object[] {"Seq Scan on vertex  (cost=0.00..35.50 rows=2550 width=4)"})
+        : jdbc.rows(new Object[] {Long.valueOf(reltuples), Integer.valueOf(relpages)}));
+    IResult r = new PostgresConnection(jdbc.connection(), provider)
+        .executeCount("vertex", CountMode.TABLE_ESTIMATE);
+    closed.addAll(jdbc.closed);
+    return r;
+  }
+}
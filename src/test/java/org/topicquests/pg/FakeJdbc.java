@@ -0,0 +1,242 @@
+package org.topicquests.pg;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGStatement;
+
+/**
+ * A fake JDBC connection for tests that need no database. It records the
+ * SQL it is sent and the statements and result sets closed on it, and
+ * answers the other calls PostgresConnection makes with neutral values.
+ * <p>
+ * Configure it before calling {@link #connection()}; {@link #on(String, Answer)}
+ * replaces any one of the connection's methods.
+ */
+final class FakeJdbc {
+  /** Stands in for a method of a fake object */
+  interface Answer {
+    Object answer(Object[] args) throws Throwable;
+  }
+
+  /** The SQL executed, plus commit and rollback, in order */
+  final List<String> sent;
+  /** The simple interface names of the statements and result sets closed, in order */
+  final List<String> closed = Collections.synchronizedList(new ArrayList<String>());
+  volatile boolean autoCommit = true;
+
+  private final Map<String, Answer> overrides = new HashMap<String, Answer>();
+  private Predicate<String> failing = sql -> false;
+  private String failure = null;
+  private Function<String, ResultSet> queries = sql -> null;
+  private boolean recordAutoCommit = false;
+
+  FakeJdbc() {
+    this(Collections.synchronizedList(new ArrayList<String>()));
+  }
+
+  /**
+   * @param sent Where to record the SQL, shared by several fake connections
+   */
+  FakeJdbc(List<String> sent) {
+    this.sent = sent;
+  }
+
+  /**
+   * Have statements whose SQL matches throw an SQLException with <code>message</code>.
+   */
+  FakeJdbc failOn(Predicate<String> sql, String message) {
+    this.failing = sql;
+    this.failure = message;
+    return this;
+  }
+
+  /**
+   * Answer queries with the result set <code>answer</code> gives for their
+   * SQL; a <code>null</code> answer is an empty result set.
+   */
+  FakeJdbc answer(Function<String, ResultSet> answer) {
+    this.queries = answer;
+    return this;
+  }
+
+  /**
+   * Record setAutoCommit calls in {@link #sent} as well.
+   */
+  FakeJdbc recordAutoCommit() {
+    this.recordAutoCommit = true;
+    return this;
+  }
+
+  FakeJdbc on(String method, Answer answer) {
+    overrides.put(method, answer);
+    return this;
+  }
+
+  /**
+   * @return a connection that also unwraps to PGConnection, so the factory
+   *         tracks its role and statement cache
+   */
+  Connection connection() {
+    boolean[] isClosed = {false};
+    return (Connection)proxy(new Class<?>[] {Connection.class, PGConnection.class},
+        (proxy, method, args) -> {
+          Answer override = overrides.get(method.getName());
+          if (override != null)
+            return override.answer(args);
+          switch (method.getName()) {
+            case "createStatement": return statement(null);
+            case "prepareStatement": return statement((String)args[0]);
+            case "getAutoCommit": return Boolean.valueOf(autoCommit);
+            case "setAutoCommit":
+              autoCommit = (Boolean)args[0];
+              if (recordAutoCommit)
+                sent.add("setAutoCommit " + args[0]);
+              return null;
+            case "commit": sent.add("commit"); return null;
+            case "rollback": sent.add("rollback"); return null;
+            case "isClosed": return Boolean.valueOf(isClosed[0]);
+            case "close": isClosed[0] = true; return null;
+            default: return standard(proxy, method.getName(), method.getReturnType(), args);
+          }
+        });
+  }
+
+  /**
+   * A plain Statement if <code>preparedSql</code> is <code>null</code>,
+   * otherwise a PreparedStatement for it.
+   */
+  private Statement statement(String preparedSql) {
+    Class<?> type = (preparedSql == null) ? Statement.class : PreparedStatement.class;
+    boolean[] isClosed = {false};
+    return (Statement)proxy(new Class<?>[] {type, PGStatement.class}, (proxy, method, args) -> {
+      String name = method.getName();
+      boolean withSql = args != null && args.length > 0 && args[0] instanceof String;
+      if (name.startsWith("execute") && preparedSql != null && withSql)
+        throw new SQLException("query string on a PreparedStatement");
+      String sql = withSql ? (String)args[0] : preparedSql;
+      switch (name) {
+        case "execute":
+          run(sql);
+          return Boolean.FALSE;
+        case "executeQuery":
+          run(sql);
+          ResultSet rs = queries.apply(sql);
+          return (rs != null) ? rs : rows();
+        case "executeUpdate":
+          run(sql);
+          return Integer.valueOf(0);
+        case "getUpdateCount": return Integer.valueOf(-1);
+        case "isClosed": return Boolean.valueOf(isClosed[0]);
+        case "close":
+          if (!isClosed[0])
+            closed.add(type.getSimpleName());
+          isClosed[0] = true;
+          return null;
+        default: return standard(proxy, name, method.getReturnType(), args);
+      }
+    });
+  }
+
+  private void run(String sql) throws SQLException {
+    sent.add(sql);
+    if (failing.test(sql))
+      throw new SQLException(failure);
+  }
+
+  /**
+   * A result set over <code>rows</code>, read by column index.
+   */
+  ResultSet rows(Object[]... rows) {
+    int[] position = {0};
+    boolean[] wasNull = {false};
+    int columns = (rows.length == 0) ? 1 : rows[0].length;
+    ResultSetMetaData md = (ResultSetMetaData)proxy(new Class<?>[] {ResultSetMetaData.class},
+        (proxy, method, args) -> {
+          if (method.getName().equals("getColumnCount"))
+            return Integer.valueOf(columns);
+          if (method.getName().equals("getColumnType"))
+            return Integer.valueOf(Types.OTHER);
+          if (method.getReturnType() == String.class)
+            return method.getName().startsWith("getColumn") ? "c" + args[0] : "";
+          return standard(proxy, method.getName(), method.getReturnType(), args);
+        });
+    return (ResultSet)proxy(new Class<?>[] {ResultSet.class}, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "next":
+          if (position[0] >= rows.length)
+            return Boolean.FALSE;
+          position[0]++;
+          return Boolean.TRUE;
+        case "getMetaData": return md;
+        case "wasNull": return Boolean.valueOf(wasNull[0]);
+        case "close": closed.add("ResultSet"); return null;
+        default:
+          if (method.getName().startsWith("get") && args != null && args[0] instanceof Integer) {
+            Object v = rows[position[0] - 1][(Integer)args[0] - 1];
+            wasNull[0] = v == null;
+            Class<?> type = method.getReturnType();
+            if (v == null)
+              return standard(proxy, "", type, args);
+            if (type == long.class)
+              return Long.valueOf(((Number)v).longValue());
+            if (type == int.class)
+              return Integer.valueOf(((Number)v).intValue());
+            if (type == String.class)
+              return v.toString();
+            return v;
+          }
+          return standard(proxy, method.getName(), method.getReturnType(), args);
+      }
+    });
+  }
+
+  /**
+   * Identity, unwrapping to itself, and zero, false or <code>null</code>
+   * for everything else.
+   */
+  private static Object standard(Object proxy, String name, Class<?> type, Object[] args) {
+    switch (name) {
+      case "hashCode": return Integer.valueOf(System.identityHashCode(proxy));
+      case "equals": return Boolean.valueOf(proxy == args[0]);
+      case "toString": return "Fake" + System.identityHashCode(proxy);
+      case "unwrap": return proxy;
+      case "isWrapperFor": return Boolean.TRUE;
+      default: break;
+    }
+    if (type == boolean.class)
+      return Boolean.FALSE;
+    if (type == int.class)
+      return Integer.valueOf(0);
+    if (type == long.class)
+      return Long.valueOf(0);
+    if (type == short.class)
+      return Short.valueOf((short)0);
+    if (type == byte.class)
+      return Byte.valueOf((byte)0);
+    if (type == float.class)
+      return Float.valueOf(0);
+    if (type == double.class)
+      return Double.valueOf(0);
+    return null;
+  }
+
+  static Object proxy(Class<?>[] types, InvocationHandler handler) {
+    return Proxy.newProxyInstance(PGConnection.class.getClassLoader(), types, handler);
+  }
+}
@@ -0,0 +1,191 @@
+package org.topicquests.pg;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exercises the borrow gate in front of a fake pool, so no database is needed.
+ */
+public class GatedConnectionPoolTest {
+
+  @Test
+  @DisplayName("No more than MaxTotal borrowers reach the pool")
+  void boundsBorrowers() throws Exception {
+    FakePool fake = new FakePool(4);
+    final GatedConnectionPool pool = new GatedConnectionPool(fake);
+    final AtomicInteger failures = new AtomicInteger();
+    Thread[] threads = new Thread[32];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread(() -> {
+        try {
+          for (int i = 0; i < 100; i++) {
+            Connection c = pool.getConnection();
+            Thread.yield();
+            c.close();
+          }
+        } catch (SQLException e) {
+          failures.incrementAndGet();
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread t : threads)
+      t.join();
+    assertEquals(0, failures.get());
+    assertTrue(fake.maxActive.get() <= 4);
+    assertEquals(0, fake.active.get());
+  }
+
+  @Test
+  @DisplayName("A waiting borrower gets in when a connection is closed")
+  void waitsForClose() throws Exception {
+    final GatedConnectionPool pool = new GatedConnectionPool(new FakePool(1));
+    Connection held = pool.getConnection();
+    final CountDownLatch got = new CountDownLatch(1);
+    Thread waiter = new Thread(() -> {
+      try {
+        pool.getConnection().close();
+        got.countDown();
+      } catch (SQLException e) {
+        // counted as not got
+      }
+    });
+    waiter.start();
+    assertTrue(!got.await(100, TimeUnit.MILLISECONDS));
+    held.close();
+    held.close();
+    assertTrue(got.await(5, TimeUnit.SECONDS));
+    waiter.join();
+  }
+
+  @Test
+  @DisplayName("The wait times out after PoolMaxWaitMillis, and a resize lets waiters in")
+  void timesOutAndResizes() throws Exception {
+    FakePool fake = new FakePool(1);
+    GatedConnectionPool pool = new GatedConnectionPool(fake);
+    pool.setMaxWaitMillis(50);
+    Connection held = pool.getConnection();
+    try {
+      pool.getConnection();
+      fail("expected a timeout");
+    } catch (SQLException e) {
+      assertTrue(e.getMessage().startsWith("Timed out"));
+    }
+    pool.resize(2);
+    Connection second = pool.getConnection();
+    assertEquals(2, fake.active.get());
+    second.close();
+    held.close();
+    assertEquals(0, fake.active.get());
+  }
+
+  /**
+   * Hands out connections and records how many are out at once.
+   */
+  private static final class FakePool implements IConnectionPool {
+    final AtomicInteger active = new AtomicInteger();
+    final AtomicInteger maxActive = new AtomicInteger();
+    volatile int maxTotal;
+
+    FakePool(int maxTotal) {
+      this.maxTotal = maxTotal;
+    }
+
+    @Override
+    public Connection getConnection() {
+      int n = active.incrementAndGet();
+      maxActive.accumulateAndGet(n, Math::max);
+      return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(),
+          new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+            if (method.getName().equals("close"))
+              active.decrementAndGet();
+            return null;
+          });
+    }
+
+    @Override
+    public String getUrl() {
+      return null;
+    }
+
+    @Override
+    public void setUrl(String url) {
+    }
+
+    @Override
+    public String getUsername() {
+      return null;
+    }
+
+    @Override
+    public void setUsername(String user) {
+    }
+
+    @Override
+    public String getPassword() {
+      return null;
+    }
+
+    @Override
+    public void setPassword(String password) {
+    }
+
+    @Override
+    public int getInitialSize() {
+      return 0;
+    }
+
+    @Override
+    public void setInitialSize(int initialSize) {
+    }
+
+    @Override
+    public int getMaxTotal() {
+      return maxTotal;
+    }
+
+    @Override
+    public int getMaxIdle() {
+      return maxTotal;
+    }
+
+    @Override
+    public void setMaxTotal(int maxTotal) {
+      this.maxTotal = maxTotal;
+    }
+
+    @Override
+    public void setMaxWaitMillis(long maxWaitMillis) {
+    }
+
+    @Override
+    public void resize(int maxTotal) {
+      this.maxTotal = maxTotal;
+    }
+
+    @Override
+    public int getNumActive() {
+      return active.get();
+    }
+
+    @Override
+    public int getNumIdle() {
+      return 0;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package org.topicquests.pg;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class InsertTemplateTest {
+
+  @Test
+  @DisplayName("Single-row INSERT is rewritten")
+  void rewritesSingleRowInsert() {
+    InsertTemplate t = InsertTemplate.parse(
+        "INSERT INTO vertex values(?, to_json(?::json))");
+    assertEquals("INSERT INTO vertex values(?, to_json(?::json)),(?, to_json(?::json))",
+                 t.build(2));
+  }
+
+  @Test
+  @DisplayName("Trailing clauses without parameters are kept")
+  void keepsSuffix() {
+    InsertTemplate t = InsertTemplate.parse(
+        "insert into tq_tree.conv (context, lox) VALUES (?, 'a''(b') ON CONFLICT DO NOTHING;");
+    assertEquals("insert into tq_tree.conv (context, lox) VALUES (?, 'a''(b'),(?, 'a''(b')"
+                 + " ON CONFLICT DO NOTHING", t.build(2));
+  }
+
+  @Test
+  @DisplayName("Statements that cannot be rewritten")
+  void rejectsOthers() {
+    assertNull(InsertTemplate.parse("UPDATE vertex SET json = ? WHERE id = ?"));
+    assertNull(InsertTemplate.parse("INSERT INTO t VALUES (?), (?)"));
+    assertNull(InsertTemplate.parse("INSERT INTO t VALUES (?) RETURNING id"));
+    assertNull(InsertTemplate.parse(
+        "INSERT INTO t VALUES (?, ?) ON CONFLICT (id) DO UPDATE SET n = ?"));
+    assertNull(InsertTemplate.parse("INSERT INTO t SELECT * FROM s WHERE id = ?"));
+  }
+}
@@ -0,0 +1,64 @@
+package org.topicquests.pg;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.topicquests.pg.api.Operation;
+
+public class JfrEventsTest {
+  private static PostgresConnectionFactory provider;
+
+  @BeforeAll
+  static void setUp() {
+    provider = new PostgresConnectionFactory("tq_database");
+  }
+
+  @AfterAll
+  static void tearDown() {
+    provider.shutDown();
+  }
+
+  @Test
+  @DisplayName("Events are emitted only while a recording runs")
+  void recordsStatements() throws Exception {
+    assertTrue(!JfrSupport.isRecording());
+    Path file = Files.createTempFile("tq-pg", ".jfr");
+    try (Recording recording = new Recording()) {
+      recording.enable("org.topicquests.pg.Statement");
+      recording.start();
+      assertTrue(JfrSupport.isRecording());
+      Object event = JfrEvents.beginStatement();
+      JfrEvents.endStatement(event, Operation.EXECUTE_UPDATE,
+          "UPDATE t SET v = 'x' WHERE id = 42", null, "tq_proxy", 1, false);
+      recording.stop();
+      recording.dump(file);
+    }
+    assertTrue(!JfrSupport.isRecording());
+
+    List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+    Files.delete(file);
+    int found = 0;
+    for (RecordedEvent e : events) {
+      if (e.getEventType().getName().equals("org.topicquests.pg.Statement")) {
+        assertEquals("update t set v = ? where id = ?", e.getString("fingerprint"));
+        assertEquals("tq_proxy", e.getString("role"));
+        assertEquals(1, e.getLong("rows"));
+        found++;
+      }
+    }
+    assertEquals(1, found);
+  }
+}
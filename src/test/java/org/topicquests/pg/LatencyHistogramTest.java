@@ -0,0 +1,33 @@
+package org.topicquests.pg;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class LatencyHistogramTest {
+
+  @Test
+  @DisplayName("Buckets cover every value within 12.5%")
+  void bucketBounds() {
+    for (long v = 0; v < 1000000; v += 7) {
+      long upper = LatencyHistogram.upperBound(LatencyHistogram.indexOf(v));
+      assertTrue(upper >= v && upper <= v + v / 8, v + " -> " + upper);
+    }
+  }
+
+  @Test
+  @DisplayName("Percentiles and reset")
+  void percentiles() {
+    LatencyHistogram h = new LatencyHistogram();
+    for (int i = 1; i <= 100; i++)
+      h.recordNanos(i * 1000000L);  // 1..100 ms
+    LatencyHistogram.Snapshot s = h.snapshotAndReset();
+    assertEquals(100, s.getCount());
+    assertEquals(50500, s.getMeanMicros());
+    long p95 = s.getPercentileMicros(95);
+    assertTrue(p95 >= 95000 && p95 <= 95000 * 9 / 8, "p95 " + p95);
+    assertEquals(0, h.snapshotAndReset().getCount());
+  }
+}
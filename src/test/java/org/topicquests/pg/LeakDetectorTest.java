@@ -0,0 +1,122 @@
+package org.topicquests.pg;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Drives the detector by hand, without its thread or a database.
+ */
+public class LeakDetectorTest {
+  private static final List<String> logged = new ArrayList<String>();
+  private static PostgresConnectionFactory provider;
+
+  @BeforeAll
+  static void setUp() {
+    provider = new PostgresConnectionFactory("tq_database") {
+      @Override
+      public void logError(String msg, Exception e) {
+        synchronized (logged) {
+          logged.add(msg + ((e == null) ? "" : " | " + e.getMessage()));
+        }
+      }
+    };
+  }
+
+  @AfterAll
+  static void tearDown() {
+    provider.shutDown();
+  }
+
+  @Test
+  @DisplayName("A connection held too long is logged once, with its borrow stack")
+  void logsLongHolds() {
+    logged.clear();
+    LeakDetector detector = new LeakDetector(provider, 1, 1000, 0);
+    PostgresConnection conn = new PostgresConnection(null, provider);
+    long start = System.nanoTime();
+    detector.borrowed(conn, start);
+    detector.check(start + 500000000L);
+    assertTrue(logged.isEmpty());
+    detector.check(start + 2000000000L);
+    detector.check(start + 3000000000L);
+    assertEquals(1, logged.size());
+    assertTrue(logged.get(0).startsWith("LeakDetector connection held 2000ms by "
+                                        + Thread.currentThread().getName()));
+    assertTrue(logged.get(0).endsWith("| borrowed here"));
+
+    detector.returned(conn);
+    detector.check(start + 4000000000L);
+    assertEquals(1, logged.size());
+  }
+
+  @Test
+  @DisplayName("A long borrow wait dumps every holder")
+  void dumpsHolders() {
+    logged.clear();
+    LeakDetector detector = new LeakDetector(provider, 1, 0, 100);
+    detector.borrowed(new PostgresConnection(null, provider), System.nanoTime());
+    detector.borrowed(new PostgresConnection(null, provider), System.nanoTime());
+    detector.borrowWaited(50000000L);
+    assertTrue(logged.isEmpty());
+    detector.borrowWaited(150000000L);
+    detector.borrowWaited(150000000L);
+    assertEquals(1, logged.size());
+    String dump = logged.get(0);
+    assertTrue(dump.startsWith("LeakDetector borrow waited 150ms; 2 connections held"));
+    assertTrue(dump.contains("borrowed at"));
+    assertTrue(dump.contains("LeakDetectorTest.dumpsHolders"));
+  }
+
+  @Test
+  @DisplayName("A borrow still blocked dumps every holder")
+  void dumpsWhileBlocked() throws Exception {
+    logged.clear();
+    LeakDetector detector = new LeakDetector(provider, 1, 0, 100);
+    detector.borrowed(new PostgresConnection(null, provider), System.nanoTime());
+    long start = System.nanoTime();
+    CountDownLatch waiting = new CountDownLatch(1);
+    CountDownLatch released = new CountDownLatch(1);
+    Thread borrower = new Thread(() -> {
+      detector.borrowStarted(start);
+      waiting.countDown();
+      try {
+        released.await();
+      } catch (InterruptedException e) {
+        // ends the borrow
+      }
+      detector.borrowEnded();
+    });
+    borrower.start();
+    waiting.await();
+    detector.check(start + 50000000L);
+    assertTrue(logged.isEmpty());
+    detector.check(start + 150000000L);
+    assertEquals(1, logged.size());
+    assertTrue(logged.get(0).startsWith("LeakDetector borrow waiting for 150ms;"
+                                        + " 1 connections held"));
+    released.countDown();
+    borrower.join();
+  }
+
+  @Test
+  @DisplayName("Unsampled borrows carry no stack")
+  void samples() {
+    LeakDetector detector = new LeakDetector(provider, 1000000, 0, 0);
+    int sampled = 0;
+    for (int i = 0; i < 1000; i++) {
+      if (detector.sample("borrowed") != null)
+        sampled++;
+    }
+    assertTrue(sampled < 10);
+    assertTrue(new LeakDetector(provider, 1, 0, 0).sample("opened") != null);
+  }
+}
@@ -0,0 +1,76 @@
+package org.topicquests.pg;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ParameterBinderTest {
+  private static PostgresConnectionFactory provider;
+  private static ParameterBinder binder;
+
+  @BeforeAll
+  static void setUp() {
+    provider = new PostgresConnectionFactory("tq_database");
+    binder = new ParameterBinder(provider);
+  }
+
+  @AfterAll
+  static void tearDown() {
+    provider.shutDown();
+  }
+
+  @Test
+  @DisplayName("Each class gets its own setter")
+  void bindsByClass() {
+    List<String> calls = new ArrayList<String>();
+    bind(calls, "a", 1, 2L, -1L, (byte)3, null, true,
+         new java.util.Date(0), new Timestamp(0), BigInteger.TEN, new StringBuilder("x"));
+    assertEquals("[setString 1, setInt 2, setLong 3, setNull 4, setInt 5, setNull 6,"
+                 + " setBoolean 7, setTimestamp 8, setTimestamp 9, setString 10,"
+                 + " setObject 11]", calls.toString());
+  }
+
+  @Test
+  @DisplayName("Subclasses and interfaces get the most specific setter")
+  void bindsSubclasses() {
+    List<String> calls = new ArrayList<String>();
+    bind(calls, new java.sql.Date(0), new java.sql.Time(0), new ByteArrayInputStream(new byte[0]),
+         new Decimal("1.5"), new byte[0], 1.5f);
+    assertEquals("[setDate 1, setTime 2, setBinaryStream 3, setBigDecimal 4, setBytes 5,"
+                 + " setFloat 6]", calls.toString());
+  }
+
+  private static void bind(List<String> calls, Object... vals) {
+    PreparedStatement ps = (PreparedStatement)Proxy.newProxyInstance(
+        PreparedStatement.class.getClassLoader(), new Class<?>[] {PreparedStatement.class},
+        (proxy, method, args) -> {
+          calls.add(method.getName() + " " + args[0]);
+          return null;
+        });
+    try {
+      binder.bind(ps, vals);
+    } catch (Exception e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static final class Decimal extends BigDecimal {
+    private static final long serialVersionUID = 1L;
+
+    Decimal(String value) {
+      super(value);
+    }
+  }
+}
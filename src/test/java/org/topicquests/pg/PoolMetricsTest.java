@@ -0,0 +1,75 @@
+package org.topicquests.pg;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.topicquests.pg.api.Operation;
+import org.topicquests.pg.api.PoolStatistics;
+
+public class PoolMetricsTest {
+  private static PostgresConnectionFactory provider;
+
+  @BeforeAll
+  static void setUp() {
+    provider = new PostgresConnectionFactory("tq_database");
+  }
+
+  @AfterAll
+  static void tearDown() {
+    provider.shutDown();
+  }
+
+  @Test
+  @DisplayName("Recorded events show up in the snapshot")
+  void snapshot() {
+    provider.resetPoolStatistics();
+    PoolMetrics metrics = provider.getMetrics();
+    metrics.borrowStarted();
+    assertEquals(1, provider.getPoolStatistics().getNumWaiting());
+    metrics.borrowEnded(2000000L);
+    metrics.recordHoldTime(10000000L);
+    provider.recordStatement(Operation.EXECUTE_SELECT, "SELECT 1", null, null, System.nanoTime(), 0, false);
+    provider.recordStatement(Operation.EXECUTE_SELECT, "SELECT 1", null, null, System.nanoTime(), 0, false);
+    metrics.recordError("PGD-17");
+    metrics.recordRowsAffected(5);
+
+    PoolStatistics stats = provider.getPoolStatistics();
+    assertEquals(0, stats.getNumWaiting());
+    assertEquals(1, stats.getBorrowWait().getCount());
+    assertTrue(stats.getBorrowWait().getP99Micros() >= 2000);
+    assertTrue(stats.getHoldTime().getMaxMicros() >= 10000);
+    assertEquals(2, stats.getOperationCount(Operation.EXECUTE_SELECT));
+    assertEquals(0, stats.getOperationCount(Operation.EXECUTE_BATCH));
+    assertEquals(Long.valueOf(1), stats.getErrors().get("PGD-17"));
+    assertEquals(5, stats.getRowsAffected());
+
+    provider.resetPoolStatistics();
+    assertEquals(0, provider.getPoolStatistics().getBorrowWait().getCount());
+    assertTrue(provider.getPoolStatistics().getErrors().isEmpty());
+  }
+
+  @Test
+  @DisplayName("The metrics are registered over JMX")
+  void jmx() throws Exception {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    Set<ObjectName> names = server.queryNames(
+        new ObjectName("org.topicquests.pg:type=ConnectionFactory,*"), null);
+    assertTrue(!names.isEmpty());
+    provider.getMetrics().recordRowsReturned(3);
+    long rows = 0;
+    for (ObjectName name : names)
+      rows += ((Long)server.getAttribute(name, "RowsReturned")).longValue();
+    assertTrue(rows >= 3);
+  }
+}
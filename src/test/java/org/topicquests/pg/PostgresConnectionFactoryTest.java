@@ -7,21 +7,33 @@ import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import org.topicquests.pg.PostgresConnection;
 import org.topicquests.pg.PostgresConnectionFactory;
+import org.topicquests.pg.api.CopyFormat;
+import org.topicquests.pg.api.CopyStatistics;
 import org.topicquests.pg.api.IPostgresConnection;
+import org.topicquests.pg.api.IPostgresStatement;
+import org.topicquests.pg.api.IRow;
+import org.topicquests.pg.api.IRowCursor;
 import org.topicquests.pg.api.IPostgresConnectionFactory;
+import org.topicquests.pg.api.StatementResult;
 
 import org.topicquests.support.ResultPojo;
 import org.topicquests.support.api.IResult;
 
 import net.minidev.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 public class PostgresConnectionFactoryTest {
@@ -68,6 +80,11 @@ public class PostgresConnectionFactoryTest {
     updateRow2();
     rollbackTest();
     getRowCount();
+    copyInRows();
+    copyOutRows();
+    cursorSelect();
+    statementCache();
+    statementHandle();
     tearDownAll();
   }
 
@@ -639,6 +656,144 @@ public class PostgresConnectionFactoryTest {
     }
   }
   
+  void copyInRows() {
+    System.out.println("in copyInRows");
+    final String EDGE_TABLE = "edge";
+    final String [] columns = {"id", "json"};
+    final int numRows = 50;
+
+    JSONObject jo = new JSONObject();
+    jo.put("Hello", "Copy\tWorld");
+
+    List<Object[]> rows = new ArrayList<Object[]>();
+    for (int i = 0; i < numRows; i++) {
+      rows.add(new Object[] {"text" + i, jo.toJSONString()});
+    }
+    IResult r = conn.executeCopyIn(EDGE_TABLE, columns, CopyFormat.TEXT, rows.iterator());
+    if (r.hasError()) {
+      fail(r.getErrorString());
+    }
+    assertEquals(numRows, ((Long)r.getResultObject()).longValue());
+    System.out.println("copyInRows text: " + r.getResultObjectA());
+
+    rows.clear();
+    for (int i = 0; i < numRows; i++) {
+      rows.add(new Object[] {"binary" + i, jo.toJSONString()});
+    }
+    r = conn.executeCopyIn(EDGE_TABLE, columns, CopyFormat.BINARY, rows.iterator());
+    if (r.hasError()) {
+      fail(r.getErrorString());
+    }
+    CopyStatistics stats = (CopyStatistics)r.getResultObjectA();
+    assertEquals(numRows, stats.getRows());
+    System.out.println("copyInRows binary: " + stats);
+
+    r = conn.executeCount("SELECT * FROM " + EDGE_TABLE);
+    if (r.hasError()) {
+      fail(r.getErrorString());
+    }
+    assertEquals(2 * numRows, ((Long)r.getResultObject()).longValue());
+  }
+  
+  void copyOutRows() {
+    System.out.println("in copyOutRows");
+    final String EDGE_TABLE = "edge";
+    final long[] progressRows = new long[1];
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    IResult r = conn.copyOut("SELECT id, json FROM " + EDGE_TABLE + " ORDER BY id",
+                             CopyFormat.CSV, out, false,
+                             (rows, bytes) -> progressRows[0] = rows);
+    if (r.hasError()) {
+      fail(r.getErrorString());
+    }
+    assertEquals(100, ((Long)r.getResultObject()).longValue());
+    assertEquals(100, progressRows[0]);
+    assertEquals(100, out.toString().split("\n").length);
+
+    try {
+      Path file = Files.createTempFile("edge", ".csv.gz");
+      r = conn.copyOut(EDGE_TABLE, CopyFormat.CSV, file, true, null);
+      if (r.hasError()) {
+        fail(r.getErrorString());
+      }
+      System.out.println("copyOutRows gzip: " + r.getResultObjectA());
+      Files.delete(file);
+    } catch (Exception e) {
+      fail(e.getMessage());
+    }
+  }
+
+  void cursorSelect() {
+    System.out.println("in cursorSelect");
+    final String EDGE_TABLE = "edge";
+
+    IResult r = conn.executeSelectCursor("SELECT id, json FROM " + EDGE_TABLE
+                                         + " WHERE id LIKE ?", 7, "text%");
+    if (r.hasError()) {
+      fail(r.getErrorString());
+    }
+    try (IRowCursor cursor = (IRowCursor)r.getResultObject()) {
+      while (cursor.hasNext()) {
+        IRow row = cursor.next();
+        assertEquals("text", row.getString("id").substring(0, 4));
+      }
+      assertEquals(50, cursor.getRowCount());
+    }
+
+    // Stop early; the connection must be usable straight afterwards.
+    r = conn.executeSelectCursor("SELECT id FROM " + EDGE_TABLE, 5);
+    if (r.hasError()) {
+      fail(r.getErrorString());
+    }
+    try (IRowCursor cursor = (IRowCursor)r.getResultObject()) {
+      assertEquals(3, cursor.stream().limit(3).count());
+    }
+    r = conn.executeUpdate("DELETE FROM " + EDGE_TABLE + " WHERE id = 'text0'");
+    if (r.hasError()) {
+      fail(r.getErrorString());
+    }
+  }
+
+  void statementCache() {
+    System.out.println("in statementCache");
+    final String sql = "SELECT json FROM edge WHERE id = ?";
+
+    long hits = provider.getStatementCacheHits();
+    for (int i = 1; i <= 3; i++) {
+      IResult r = conn.executeSelect(sql, "text" + i);
+      if (r.hasError()) {
+        fail(r.getErrorString());
+      }
+      conn.closeResultSet((ResultSet)r.getResultObject(), r);
+      if (r.hasError()) {
+        fail(r.getErrorString());
+      }
+    }
+    // the first call may have been a miss; the later ones reuse it
+    assertTrue(provider.getStatementCacheHits() - hits >= 2);
+  }
+
+  void statementHandle() {
+    System.out.println("in statementHandle");
+    IResult r = conn.prepareStatement("UPDATE edge SET json = to_json(?::json) WHERE id = ?");
+    if (r.hasError()) {
+      fail(r.getErrorString());
+    }
+    StatementResult sr = new StatementResult();
+    try (IPostgresStatement s = (IPostgresStatement)r.getResultObject()) {
+      for (int i = 1; i <= 5; i++) {
+        s.bindString(1, "{\"Handle\":" + i + "}").bindString(2, "binary" + i);
+        if (s.executeUpdate(sr).hasError()) {
+          fail(sr.getErrorString());
+        }
+        assertEquals(1, sr.getRowCount());
+      }
+      s.bindString(2, "no such id");
+      assertEquals(0, s.executeUpdate(sr).getRowCount());
+    }
+  }
+
   private void tearDownAll() {
     System.out.println("in tearDownAll");
 
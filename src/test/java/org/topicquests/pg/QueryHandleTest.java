@@ -0,0 +1,106 @@
+package org.topicquests.pg;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.sql.ResultSet;
+import java.util.List;
+
+import org.topicquests.pg.api.IPostgresStatement;
+import org.topicquests.pg.api.IQueryHandle;
+import org.topicquests.pg.api.StatementResult;
+import org.topicquests.support.ResultPojo;
+import org.topicquests.support.api.IResult;
+
+/**
+ * Tracks what a PostgresConnection closes on a fake JDBC connection, so
+ * no database is needed.
+ */
+public class QueryHandleTest {
+  private static PostgresConnectionFactory provider;
+
+  @BeforeAll
+  static void setUp() {
+    provider = new PostgresConnectionFactory("tq_database");
+  }
+
+  @AfterAll
+  static void tearDown() {
+    provider.shutDown();
+  }
+
+  @Test
+  @DisplayName("Closing a handle closes its result set and releases its statement")
+  void closesHandle() throws Exception {
+    FakeJdbc jdbc = new FakeJdbc();
+    List<String> closed = jdbc.closed;
+    PostgresConnection conn = new PostgresConnection(jdbc.connection(), provider);
+    IResult r = conn.openQuery("SELECT 1");
+    assertFalse(r.hasError());
+    try (IQueryHandle h = (IQueryHandle)r.getResultObject()) {
+      assertTrue(h.getResultSet() != null);
+    }
+    assertEquals("[ResultSet]", closed.toString());
+    conn.closeConnection(new ResultPojo());
+  }
+
+  @Test
+  @DisplayName("Ending the transaction closes open handles, closing the connection the rest")
+  void sweepsHandles() throws Exception {
+    FakeJdbc jdbc = new FakeJdbc();
+    List<String> closed = jdbc.closed;
+    PostgresConnection conn = new PostgresConnection(jdbc.connection(), provider);
+    conn.beginTransaction();
+    IQueryHandle h = (IQueryHandle)conn.openQuery("SELECT 1").getResultObject();
+    ResultSet legacy = (ResultSet)conn.executeSelect("SELECT 2").getResultObject();
+    conn.endTransaction();
+    assertTrue(h.isClosed());
+    assertEquals("[ResultSet]", closed.toString());
+
+    // the role reset is left to the next borrower, so no statement is run on return
+    conn.closeConnection(new ResultPojo());
+    assertEquals("[ResultSet, ResultSet, Statement]", closed.toString());
+    h.close();
+    assertEquals(3, closed.size());
+    assertTrue(legacy != null);
+  }
+
+  @Test
+  @DisplayName("closeResultSet closes the plain statement behind executeSelect")
+  void closesSelectStatement() throws Exception {
+    FakeJdbc jdbc = new FakeJdbc();
+    List<String> closed = jdbc.closed;
+    PostgresConnection conn = new PostgresConnection(jdbc.connection(), provider);
+    IResult r = conn.executeSelect("SELECT 1");
+    conn.closeResultSet((ResultSet)r.getResultObject(), r);
+    assertFalse(r.hasError());
+    assertEquals("[ResultSet, Statement]", closed.toString());
+  }
+
+  @Test
+  @DisplayName("Closing the connection closes its statement handles, which then fail")
+  void closesStatementHandles() throws Exception {
+    FakeJdbc jdbc = new FakeJdbc();
+    List<String> sent = jdbc.sent;
+    PostgresConnection conn = new PostgresConnection(jdbc.connection(), provider);
+    IPostgresStatement h = (IPostgresStatement)conn.prepareStatement("UPDATE t SET a = ?")
+        .getResultObject();
+    conn.closeConnection(new ResultPojo());
+    sent.clear();
+
+    StatementResult result = new StatementResult();
+    h.bindInt(1, 1).executeUpdate(result);
+    assertTrue(result.hasError());
+    assertTrue(result.getErrorString().contains("PGD-33"));
+    h.executeQuery(result);
+    assertTrue(result.hasError());
+    h.close();
+    assertEquals("[]", sent.toString());
+  }
+}
@@ -0,0 +1,136 @@
+package org.topicquests.pg;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.sql.ResultSet;
+
+import org.topicquests.support.ResultPojo;
+
+/**
+ * Fills the cache from fake result sets, so no database is needed.
+ */
+public class QueryResultCacheTest {
+  private final FakeJdbc jdbc = new FakeJdbc();
+
+  @Test
+  @DisplayName("The least recently used entry is evicted first")
+  void evictsLeastRecentlyUsed() throws Exception {
+    QueryResultCache cache = new QueryResultCache(2);
+    put(cache, "SELECT 1");
+    put(cache, "SELECT 2");
+    assertNotNull(cache.get("r", "SELECT 1"));
+    put(cache, "SELECT 3");
+    assertEquals(2, cache.size());
+    assertNotNull(cache.get("r", "SELECT 1"));
+    assertNull(cache.get("r", "SELECT 2"));
+    assertNotNull(cache.get("r", "SELECT 3"));
+  }
+
+  @Test
+  @DisplayName("Entries are keyed on role and parameter values")
+  void keysOnRoleAndValues() throws Exception {
+    QueryResultCache cache = new QueryResultCache(10);
+    cache.put("r", "SELECT ?", new Object[] {1}, jdbc.rows(new Object[] {"a"}), cache.generation());
+    assertNotNull(cache.get("r", "SELECT ?", 1));
+    assertNull(cache.get("r", "SELECT ?", 2));
+    assertNull(cache.get("w", "SELECT ?", 1));
+  }
+
+  @Test
+  @DisplayName("A load that raced with an invalidation is returned but not kept")
+  void dropsStaleLoads() throws Exception {
+    QueryResultCache cache = new QueryResultCache(10);
+    long loading = cache.generation();
+    cache.invalidate("users");
+    ResultSet rs = cache.put("r", "SELECT * FROM users", null,
+                             jdbc.rows(new Object[] {"old"}), loading);
+    assertTrue(rs.next());
+    assertEquals("old", rs.getString(1));
+    assertEquals(0, cache.size());
+    put(cache, "SELECT * FROM users");
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  @DisplayName("Invalidation matches whole table names, qualified or not")
+  void matchesTableNames() throws Exception {
+    QueryResultCache cache = new QueryResultCache(10);
+    put(cache, "SELECT * FROM public.users");
+    put(cache, "SELECT * FROM Users u JOIN roles r ON u.id = r.uid");
+    put(cache, "SELECT * FROM users_archive");
+    put(cache, "SELECT * FROM audit.users");
+    cache.invalidate("users");
+    assertEquals(1, cache.size());
+    assertNotNull(cache.get("r", "SELECT * FROM users_archive"));
+
+    put(cache, "SELECT * FROM users");
+    put(cache, "SELECT * FROM public.users");
+    cache.invalidate("public.users");
+    assertEquals(1, cache.size());
+    cache.invalidate("");
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  @DisplayName("Writes name the table they change, or none when it cannot be told")
+  void findsWrittenTable() {
+    assertEquals("t", QueryResultCache.writtenTable("INSERT INTO t(a, b) VALUES (?, ?)"));
+    assertEquals("public.t", QueryResultCache.writtenTable("update ONLY public.t SET a = 1"));
+    assertEquals("T", QueryResultCache.writtenTable("DELETE FROM \"T\" WHERE a = ?;"));
+    assertEquals("t", QueryResultCache.writtenTable("TRUNCATE TABLE t"));
+    assertEquals("t", QueryResultCache.writtenTable("COPY t (a) FROM STDIN"));
+    assertEquals("", QueryResultCache.writtenTable("TRUNCATE a, b"));
+    assertNull(QueryResultCache.writtenTable("COPY (SELECT 1) TO STDOUT"));
+    assertNull(QueryResultCache.writtenTable("RESET ROLE; SET ROLE tq_proxy"));
+    assertNull(QueryResultCache.writtenTable("COMMIT"));
+    assertEquals("", QueryResultCache.writtenTable("UPDATE a SET x = 1; DELETE FROM b"));
+    assertEquals("", QueryResultCache.writtenTable("WITH x AS (SELECT 1) INSERT INTO t SELECT * FROM x"));
+    assertEquals("", QueryResultCache.writtenTable("CREATE TABLE t (a int)"));
+  }
+
+  @Test
+  @DisplayName("A write on a connection drops what it changed, again at commit")
+  void invalidatesOnWrite() throws Exception {
+    QueryResultCache cache = new QueryResultCache(10);
+    PostgresConnectionFactory provider = new PostgresConnectionFactory("tq_database") {
+      @Override
+      QueryResultCache getQueryCache() {
+        return cache;
+      }
+    };
+    try {
+      PostgresConnection conn = new PostgresConnection(jdbc.connection(), provider);
+      put(cache, "SELECT * FROM users");
+      put(cache, "SELECT * FROM roles");
+      conn.executeUpdate("UPDATE users SET a = ?", 1);
+      assertEquals(1, cache.size());
+      assertNotNull(cache.get("r", "SELECT * FROM roles"));
+
+      conn.beginTransaction();
+      conn.executeUpdate("INSERT INTO roles VALUES (?)", "a");
+      // read on another connection before the commit
+      put(cache, "SELECT * FROM roles");
+      conn.endTransaction();
+      assertEquals(0, cache.size());
+
+      put(cache, "SELECT * FROM roles");
+      conn.setProxyRole();
+      assertEquals(1, cache.size());
+      conn.executeSQL("VACUUM");
+      assertEquals(0, cache.size());
+      conn.closeConnection(new ResultPojo());
+    } finally {
+      provider.shutDown();
+    }
+  }
+
+  private void put(QueryResultCache cache, String sql) throws Exception {
+    cache.put("r", sql, null, jdbc.rows(new Object[] {"a"}), cache.generation()).close();
+  }
+}
@@ -0,0 +1,181 @@
+package org.topicquests.pg;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.util.List;
+
+import org.topicquests.support.ResultPojo;
+
+/**
+ * Records the SQL a PostgresConnection sends to a fake physical
+ * connection, so no database is needed.
+ */
+public class RoleTrackingTest {
+  private static PostgresConnectionFactory provider;
+
+  @BeforeAll
+  static void setUp() {
+    provider = new PostgresConnectionFactory("tq_database");
+  }
+
+  @AfterAll
+  static void tearDown() {
+    provider.shutDown();
+  }
+
+  @Test
+  @DisplayName("Setting the role a connection already has sends nothing")
+  void elidesRepeatedRoles() {
+    FakeJdbc jdbc = new FakeJdbc();
+    List<String> sent = jdbc.sent;
+    Connection physical = jdbc.connection();
+
+    PostgresConnection conn = new PostgresConnection(physical, provider);
+    conn.setProxyRole();
+    conn.setProxyRole();
+    assertEquals("tq_proxy", conn.getCurrentRole());
+    conn.closeConnection(new ResultPojo());
+
+    // the next borrower of the same physical connection, whose role reset was deferred
+    conn = new PostgresConnection(physical, provider);
+    assertEquals(null, conn.getCurrentRole());
+    conn.setProxyRole();
+    conn.setProxyRORole();
+    conn.resetRole();
+    conn.resetRole();
+    conn.setUsersRole();
+    assertEquals("[RESET ROLE; SET ROLE tq_proxy,"
+                 + " RESET ROLE; SET ROLE tq_proxy_ro, RESET ROLE, SET ROLE tq_users]",
+                 sent.toString());
+  }
+
+  @Test
+  @DisplayName("Roles set in a transaction or by hand are not trusted")
+  void forgetsUntrackedChanges() {
+    FakeJdbc jdbc = new FakeJdbc();
+    List<String> sent = jdbc.sent;
+    PostgresConnection conn = new PostgresConnection(jdbc.connection(), provider);
+
+    conn.executeSQL("set role tq_conv");
+    conn.setConvRole();
+    conn.setConvRole();
+    jdbc.autoCommit = false;
+    conn.setUsersRole();
+    conn.setUsersRole();
+    jdbc.autoCommit = true;
+    assertEquals("[set role tq_conv, RESET ROLE; SET ROLE tq_conv,"
+                 + " RESET ROLE; SET ROLE tq_users, RESET ROLE; SET ROLE tq_users]",
+                 sent.toString());
+  }
+
+  @Test
+  @DisplayName("Returning a connection undoes only what the borrower changed")
+  void resetsOnReturn() {
+    FakeJdbc jdbc = new FakeJdbc();
+    List<String> sent = jdbc.sent;
+    Connection physical = jdbc.connection();
+
+    // a new connection's role is not known until it has been reset once
+    PostgresConnection conn = new PostgresConnection(physical, provider);
+    conn.executeSQL("SELECT 1");
+    conn.closeConnection(new ResultPojo());
+    conn = new PostgresConnection(physical, provider);
+    conn.executeSQL("SELECT 2");
+    conn.closeConnection(new ResultPojo());
+    assertEquals("[SELECT 1, RESET ROLE, SELECT 2]", sent.toString());
+
+    sent.clear();
+    conn = new PostgresConnection(physical, provider);
+    conn.setConvRole();
+    conn.executeSQL("SET search_path TO tq");
+    conn.beginTransaction();
+    jdbc.autoCommit = false;
+    conn.closeConnection(new ResultPojo());
+    assertEquals("[SET ROLE tq_conv, SET search_path TO tq, rollback,"
+                 + " RESET search_path]", sent.toString());
+  }
+
+  @Test
+  @DisplayName("A deferred role reset goes out before the next borrower's first statement")
+  void clearsDeferredRole() {
+    FakeJdbc jdbc = new FakeJdbc();
+    List<String> sent = jdbc.sent;
+    Connection physical = jdbc.connection();
+
+    PostgresConnection conn = new PostgresConnection(physical, provider);
+    conn.setUsersRole();
+    conn.closeConnection(new ResultPojo());
+    conn = new PostgresConnection(physical, provider);
+    conn.executeSQL("SELECT 1");
+    conn.executeSQL("SELECT 2");
+    conn.closeConnection(new ResultPojo());
+    assertEquals("[RESET ROLE; SET ROLE tq_users, RESET ROLE, SELECT 1, SELECT 2]",
+                 sent.toString());
+
+    // the reset is not sent inside a transaction, where a rollback would undo it
+    sent.clear();
+    conn = new PostgresConnection(physical, provider);
+    conn.setConvRole();
+    conn.closeConnection(new ResultPojo());
+    conn = new PostgresConnection(physical, provider);
+    conn.beginTransaction();
+    jdbc.autoCommit = false;
+    conn.executeSQL("SELECT 3");
+    conn.closeConnection(new ResultPojo());
+    assertEquals("[SET ROLE tq_conv, RESET ROLE, SELECT 3, rollback]", sent.toString());
+  }
+
+  @Test
+  @DisplayName("Settings changed through executeSelect and executeUpdate are undone too")
+  void scansEveryStatement() {
+    FakeJdbc jdbc = new FakeJdbc();
+    List<String> sent = jdbc.sent;
+    Connection physical = jdbc.connection();
+
+    PostgresConnection conn = new PostgresConnection(physical, provider);
+    conn.executeSQL("SELECT 1");
+    conn.closeConnection(new ResultPojo());
+    sent.clear();
+    conn = new PostgresConnection(physical, provider);
+    conn.executeSelect("SELECT set_config('search_path', 'x', false)");
+    conn.executeUpdate("SET statement_timeout = 100");
+    conn.closeConnection(new ResultPojo());
+    assertEquals("[RESET ROLE, SELECT set_config('search_path', 'x', false),"
+                 + " SET statement_timeout = 100, RESET ALL]", sent.toString());
+
+    // a raw statement may run anything
+    sent.clear();
+    conn = new PostgresConnection(physical, provider);
+    conn.createStatement();
+    conn.closeConnection(new ResultPojo());
+    assertEquals("[RESET ALL; DISCARD TEMP]", sent.toString());
+  }
+
+  @Test
+  @DisplayName("A role changed through executeSelect is not trusted by the next borrower")
+  void forgetsRoleChangedBySelect() {
+    FakeJdbc jdbc = new FakeJdbc();
+    List<String> sent = jdbc.sent;
+    Connection physical = jdbc.connection();
+
+    PostgresConnection conn = new PostgresConnection(physical, provider);
+    conn.setProxyRole();
+    conn.executeSelect("SELECT set_config('role', 'tq_users', false)");
+    conn.closeConnection(new ResultPojo());
+    conn = new PostgresConnection(physical, provider);
+    conn.setProxyRole();
+    conn.executeUpdate("SET ROLE tq_conv");
+    conn.closeConnection(new ResultPojo());
+    conn = new PostgresConnection(physical, provider);
+    conn.setProxyRole();
+    assertEquals("[RESET ROLE; SET ROLE tq_proxy, SELECT set_config('role', 'tq_users', false),"
+                 + " RESET ALL, RESET ROLE; SET ROLE tq_proxy, SET ROLE tq_conv,"
+                 + " RESET ROLE; SET ROLE tq_proxy]", sent.toString());
+  }
+}
@@ -0,0 +1,84 @@
+package org.topicquests.pg;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+
+import org.topicquests.pg.api.RoundTripStatistic;
+
+/**
+ * Counts traffic over a loopback echo server, so no database is needed.
+ */
+public class RoundTripProfilerTest {
+
+  @Test
+  @DisplayName("Each reply after a request is one round trip")
+  void countsRoundTrips() throws Exception {
+    RoundTripProfiler profiler = new RoundTripProfiler(1);
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    Thread echo = new Thread(() -> {
+      try (Socket s = server.accept()) {
+        InputStream in = s.getInputStream();
+        OutputStream out = s.getOutputStream();
+        byte[] buf = new byte[64];
+        int n;
+        while ((n = in.read(buf)) > 0)
+          out.write(buf, 0, n);
+      } catch (Exception e) {
+        // the client closed
+      }
+    });
+    echo.start();
+
+    try (Socket s = new CountingSocketFactory().createSocket(server.getInetAddress(),
+                                                             server.getLocalPort())) {
+      long[] begin = profiler.begin();
+      for (int i = 0; i < 3; i++)
+        exchange(s, 4);
+      profiler.end("EXECUTE_SQL", begin);
+
+      begin = profiler.begin();
+      exchange(s, 10);
+      profiler.end("COMMIT", begin);
+    }
+    echo.join();
+    server.close();
+
+    List<RoundTripStatistic> ops = profiler.byOperation();
+    assertEquals(2, ops.size());
+    RoundTripStatistic sql = ops.get(0);
+    assertEquals("EXECUTE_SQL", sql.getKey());
+    assertEquals(1, sql.getCalls());
+    assertEquals(3, sql.getRoundTrips());
+    assertEquals(12, sql.getBytesSent());
+    assertEquals(12, sql.getBytesReceived());
+    assertEquals(1, ops.get(1).getRoundTrips());
+    assertEquals(10, ops.get(1).getBytesSent());
+
+    // this test shares the provider's package, so both are charged to its caller
+    List<RoundTripStatistic> sites = profiler.chattiestSites(5);
+    assertEquals(1, sites.size());
+    assertEquals(2, sites.get(0).getCalls());
+
+    profiler.reset();
+    assertTrue(profiler.byOperation().isEmpty());
+  }
+
+  private static void exchange(Socket s, int len) throws Exception {
+    s.getOutputStream().write(new byte[len], 0, len);
+    InputStream in = s.getInputStream();
+    byte[] buf = new byte[len];
+    int got = 0;
+    while (got < len)
+      got += in.read(buf, got, len - got);
+  }
+}
@@ -0,0 +1,400 @@
+package org.topicquests.pg;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.topicquests.pg.api.IPostgresConnection;
+import org.topicquests.pg.api.IRow;
+import org.topicquests.pg.api.IRowPublisher;
+
+/**
+ * Checks IRowPublisher against the Reactive Streams rules that apply to
+ * it (numbered as in the specification), over a fake JDBC connection
+ * whose result set counts the pages it fetches, so no database is needed.
+ */
+public class RowPublisherTest {
+  private static final AtomicInteger borrowed = new AtomicInteger();
+  private static final AtomicInteger returned = new AtomicInteger();
+  private static final AtomicInteger executed = new AtomicInteger();
+  private static final AtomicInteger pages = new AtomicInteger();
+  private static final AtomicInteger openResultSets = new AtomicInteger();
+  private static PostgresConnectionFactory provider;
+
+  @BeforeAll
+  static void setUp() {
+    provider = new PostgresConnectionFactory("tq_database") {
+      @Override
+      public IPostgresConnection getConnection() {
+        borrowed.incrementAndGet();
+        return new PostgresConnection(fakeConnection(), this);
+      }
+    };
+  }
+
+  @AfterAll
+  static void tearDown() {
+    provider.shutDown();
+  }
+
+  @BeforeEach
+  void reset() {
+    borrowed.set(0);
+    returned.set(0);
+    executed.set(0);
+    pages.set(0);
+    openResultSets.set(0);
+  }
+
+  @Test
+  @DisplayName("Nothing is borrowed or run before the first request")
+  void lazyUntilDemand() {
+    Recorder r = new Recorder();
+    provider.publishSelect("SELECT 10", 2).subscribe(r);
+    assertEquals(1, r.subscribed);
+    assertEquals(0, borrowed.get());
+    assertEquals(0, executed.get());
+    r.subscription.request(1);
+    assertEquals(1, executed.get());
+    r.subscription.cancel();
+  }
+
+  @Test
+  @DisplayName("1.1: no more rows than requested, and pages only as demand needs them")
+  void boundedByDemand() {
+    Recorder r = new Recorder();
+    provider.publishSelect("SELECT 10", 2).subscribe(r);
+    r.subscription.request(3);
+    assertEquals(3, r.rows.size());
+    assertEquals(2, pages.get());
+    r.subscription.request(2);
+    assertEquals(5, r.rows.size());
+    assertEquals(3, pages.get());
+    assertEquals(0, r.completed);
+    r.subscription.request(Long.MAX_VALUE);
+    assertEquals(10, r.rows.size());
+    assertEquals(Integer.valueOf(10), r.rows.get(9).getObject("n"));
+    assertEquals(1, r.completed);
+    assertEquals(0, r.errors.size());
+  }
+
+  @Test
+  @DisplayName("1.6, 1.7: completion closes the cursor and returns the connection, once")
+  void completesOnce() {
+    Recorder r = new Recorder();
+    provider.publishSelect("SELECT 0", 2).subscribe(r);
+    r.subscription.request(1);
+    assertEquals(1, r.completed);
+    assertEquals(0, openResultSets.get());
+    assertEquals(1, returned.get());
+    r.subscription.request(5);
+    r.subscription.cancel();
+    assertEquals(1, r.completed);
+    assertEquals(1, returned.get());
+  }
+
+  @Test
+  @DisplayName("1.4: a failed query is sent onError and the connection returned")
+  void queryFails() {
+    Recorder r = new Recorder();
+    provider.publishSelect("SELECT bad", 2).subscribe(r);
+    r.subscription.request(1);
+    assertEquals(1, r.errors.size());
+    assertTrue(r.errors.get(0) instanceof SQLException);
+    assertTrue(r.errors.get(0).getMessage().contains("PGD-30"));
+    assertEquals(0, r.rows.size());
+    assertEquals(1, returned.get());
+  }
+
+  @Test
+  @DisplayName("1.4: a failed fetch ends the rows with onError")
+  void fetchFails() {
+    Recorder r = new Recorder();
+    provider.publishSelect("SELECT 10 broken", 2).subscribe(r);
+    r.subscription.request(10);
+    assertEquals(4, r.rows.size());
+    assertEquals(1, r.errors.size());
+    assertEquals(0, r.completed);
+    assertEquals(0, openResultSets.get());
+    assertEquals(1, returned.get());
+  }
+
+  @Test
+  @DisplayName("1.9: subscribe(null) throws NullPointerException")
+  void nullSubscriber() {
+    assertThrows(NullPointerException.class,
+                 () -> provider.publishSelect("SELECT 1", 0).subscribe(null));
+  }
+
+  @Test
+  @DisplayName("1.10: a second subscriber is refused")
+  void singleSubscriber() {
+    IRowPublisher p = provider.publishSelect("SELECT 3", 0);
+    Recorder first = new Recorder();
+    Recorder second = new Recorder();
+    p.subscribe(first);
+    p.subscribe(second);
+    assertEquals(1, second.subscribed);
+    assertEquals(1, second.errors.size());
+    assertTrue(second.errors.get(0) instanceof IllegalStateException);
+    second.subscription.request(1);
+    assertEquals(0, second.rows.size());
+    first.subscription.request(3);
+    assertEquals(3, first.rows.size());
+  }
+
+  @Test
+  @DisplayName("1.3: signals are serial under concurrent requests")
+  void serialSignals() throws Exception {
+    final AtomicBoolean inside = new AtomicBoolean();
+    final AtomicInteger overlaps = new AtomicInteger();
+    Recorder r = new Recorder() {
+      @Override
+      public void onNext(IRow row) {
+        if (!inside.compareAndSet(false, true))
+          overlaps.incrementAndGet();
+        super.onNext(row);
+        inside.set(false);
+      }
+    };
+    provider.publishSelect("SELECT 4000", 100).subscribe(r);
+    final CountDownLatch go = new CountDownLatch(1);
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread(() -> {
+        try {
+          go.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          return;
+        }
+        for (int i = 0; i < 500; i++)
+          r.subscription.request(1);
+      });
+      threads[t].start();
+    }
+    go.countDown();
+    for (Thread t : threads)
+      t.join();
+    assertEquals(0, overlaps.get());
+    assertEquals(4000, r.rows.size());
+    r.subscription.request(1);
+    assertEquals(1, r.completed);
+  }
+
+  @Test
+  @DisplayName("3.3: requesting from onNext does not recurse")
+  void noRecursion() {
+    final int[] depth = {0, 0};
+    Recorder r = new Recorder() {
+      @Override
+      public void onNext(IRow row) {
+        super.onNext(row);
+        int d = Thread.currentThread().getStackTrace().length;
+        if (depth[0] == 0)
+          depth[0] = d;
+        depth[1] = Math.max(depth[1], d);
+        subscription.request(1);
+      }
+    };
+    provider.publishSelect("SELECT 5000", 100).subscribe(r);
+    r.subscription.request(1);
+    assertEquals(5000, r.rows.size());
+    assertEquals(1, r.completed);
+    assertEquals(depth[0], depth[1]);
+  }
+
+  @Test
+  @DisplayName("3.5, 3.7, 3.13: cancel stops the rows, closes the cursor and returns the connection")
+  void cancelReleases() {
+    Recorder r = new Recorder() {
+      @Override
+      public void onNext(IRow row) {
+        super.onNext(row);
+        if (rows.size() == 3)
+          subscription.cancel();
+      }
+    };
+    provider.publishSelect("SELECT 10", 2).subscribe(r);
+    r.subscription.request(10);
+    assertEquals(3, r.rows.size());
+    assertEquals(0, openResultSets.get());
+    assertEquals(1, returned.get());
+    r.subscription.cancel();
+    r.subscription.request(1);
+    assertEquals(3, r.rows.size());
+    assertEquals(0, r.completed);
+    assertEquals(0, r.errors.size());
+    assertEquals(1, returned.get());
+  }
+
+  @Test
+  @DisplayName("3.9: a non-positive request is sent onError")
+  void nonPositiveRequest() {
+    Recorder r = new Recorder();
+    provider.publishSelect("SELECT 10", 2).subscribe(r);
+    r.subscription.request(2);
+    r.subscription.request(0);
+    assertEquals(2, r.rows.size());
+    assertEquals(1, r.errors.size());
+    assertTrue(r.errors.get(0) instanceof IllegalArgumentException);
+    assertEquals(1, returned.get());
+    r.subscription.request(-1);
+    assertEquals(1, r.errors.size());
+  }
+
+  @Test
+  @DisplayName("3.17: demand beyond Long.MAX_VALUE is unbounded")
+  void unboundedDemand() {
+    Recorder r = new Recorder();
+    provider.publishSelect("SELECT 5", 2).subscribe(r);
+    r.subscription.request(Long.MAX_VALUE - 1);
+    r.subscription.request(Long.MAX_VALUE);
+    assertEquals(5, r.rows.size());
+    assertEquals(1, r.completed);
+  }
+
+  @Test
+  @DisplayName("2.13: a throwing onNext cancels the subscription")
+  void throwingSubscriber() {
+    Recorder r = new Recorder() {
+      @Override
+      public void onNext(IRow row) {
+        super.onNext(row);
+        throw new IllegalStateException("subscriber bug");
+      }
+    };
+    provider.publishSelect("SELECT 10", 2).subscribe(r);
+    r.subscription.request(5);
+    assertEquals(1, r.rows.size());
+    assertEquals(0, r.errors.size());
+    assertEquals(0, openResultSets.get());
+    assertEquals(1, returned.get());
+  }
+
+  @Test
+  @DisplayName("A connection's own publisher closes the cursor but keeps the connection")
+  void connectionPublisher() throws SQLException {
+    IPostgresConnection conn = provider.getConnection();
+    Recorder r = new Recorder();
+    conn.publishSelect("SELECT 10", 2).subscribe(r);
+    r.subscription.request(3);
+    r.subscription.cancel();
+    assertEquals(3, r.rows.size());
+    assertEquals(0, openResultSets.get());
+    assertEquals(0, returned.get());
+    conn.closeConnection(new org.topicquests.support.ResultPojo());
+    assertEquals(1, returned.get());
+  }
+
+  /**
+   * Records the signals it receives.
+   */
+  private static class Recorder implements IRowPublisher.Subscriber {
+    final List<IRow> rows = Collections.synchronizedList(new ArrayList<IRow>());
+    final List<Throwable> errors = new ArrayList<Throwable>();
+    volatile IRowPublisher.Subscription subscription;
+    int subscribed = 0;
+    int completed = 0;
+
+    @Override
+    public void onSubscribe(IRowPublisher.Subscription subscription) {
+      this.subscription = subscription;
+      subscribed++;
+    }
+
+    @Override
+    public void onNext(IRow row) {
+      rows.add(row);
+    }
+
+    @Override
+    public void onError(Throwable error) {
+      errors.add(error);
+    }
+
+    @Override
+    public void onComplete() {
+      completed++;
+    }
+  }
+
+  /**
+   * A connection whose queries are "SELECT n": n rows numbered from 1,
+   * read a fetch size at a time. "bad" fails the query; "broken" fails
+   * the third fetch.
+   */
+  private static Connection fakeConnection() {
+    return new FakeJdbc()
+        .on("prepareStatement", args -> fakeStatement((String)args[0]))
+        .on("close", args -> returned.incrementAndGet())
+        .connection();
+  }
+
+  private static PreparedStatement fakeStatement(String sql) {
+    int[] fetchSize = {0};
+    return (PreparedStatement)Proxy.newProxyInstance(Connection.class.getClassLoader(),
+        new Class<?>[] {PreparedStatement.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "setFetchSize": fetchSize[0] = (Integer)args[0]; return null;
+            case "executeQuery":
+              executed.incrementAndGet();
+              if (sql.contains("bad"))
+                throw new SQLException("relation \"bad\" does not exist");
+              return fakeResultSet(Integer.parseInt(sql.split(" ")[1]), fetchSize[0],
+                                   sql.contains("broken"));
+            default: return null;
+          }
+        });
+  }
+
+  private static ResultSet fakeResultSet(int total, int fetchSize, boolean broken) {
+    ResultSetMetaData md = (ResultSetMetaData)Proxy.newProxyInstance(
+        Connection.class.getClassLoader(), new Class<?>[] {ResultSetMetaData.class},
+        (proxy, method, args) -> {
+          if (method.getName().equals("getColumnCount"))
+            return Integer.valueOf(1);
+          return "n";
+        });
+    int[] position = {0};
+    openResultSets.incrementAndGet();
+    return (ResultSet)Proxy.newProxyInstance(Connection.class.getClassLoader(),
+        new Class<?>[] {ResultSet.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getMetaData": return md;
+            case "next":
+              if (position[0] >= total)
+                return Boolean.FALSE;
+              if (position[0] % fetchSize == 0) {
+                if (broken && pages.get() == 2)
+                  throw new SQLException("connection lost");
+                pages.incrementAndGet();
+              }
+              position[0]++;
+              return Boolean.TRUE;
+            case "getObject": return Integer.valueOf(position[0]);
+            case "close": openResultSets.decrementAndGet(); return null;
+            default: return null;
+          }
+        });
+  }
+}
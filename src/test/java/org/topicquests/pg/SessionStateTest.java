@@ -0,0 +1,45 @@
+package org.topicquests.pg;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class SessionStateTest {
+
+  @Test
+  @DisplayName("Settings and temporary tables are undone by name")
+  void resetsWhatChanged() {
+    SessionState state = new SessionState();
+    assertFalse(state.scan("SET search_path TO tq, public"));
+    assertFalse(state.scan("set statement_timeout = 5000; SET TIME ZONE 'UTC'"));
+    assertFalse(state.scan("CREATE TEMP TABLE x (id int)"));
+    assertFalse(state.scan("SET LOCAL work_mem = '64MB'"));
+    assertFalse(state.scan("UPDATE t SET search_path = 1"));
+    assertEquals("RESET search_path; RESET statement_timeout; RESET timezone; DISCARD TEMP",
+                 state.resetSql(false));
+    assertEquals("RESET ROLE; RESET search_path; RESET statement_timeout; RESET timezone;"
+                 + " DISCARD TEMP", state.resetSql(true));
+    state.clear();
+    assertNull(state.resetSql(false));
+  }
+
+  @Test
+  @DisplayName("Role changes are reported and set_config resets all")
+  void reportsRoles() {
+    SessionState state = new SessionState();
+    assertTrue(state.scan("SET ROLE tq_proxy"));
+    assertTrue(state.scan("set session authorization default"));
+    assertTrue(state.scan("RESET ALL"));
+    assertTrue(state.scan("DISCARD ALL"));
+    assertNull(state.resetSql(false));
+    assertFalse(state.scan("SELECT set_config('app.tenant', 'a', false)"));
+    assertTrue(state.scan("SELECT set_config('role', 'tq_users', false)"));
+    assertTrue(state.scan("SELECT set_config(?, ?, false)"));
+    assertTrue(state.resetsAll());
+    assertEquals("RESET ALL", state.resetSql(false));
+  }
+}
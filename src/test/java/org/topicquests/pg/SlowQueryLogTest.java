@@ -0,0 +1,101 @@
+package org.topicquests.pg;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.topicquests.pg.api.Operation;
+import org.topicquests.pg.api.SlowQuery;
+
+public class SlowQueryLogTest {
+  private static PostgresConnectionFactory provider;
+
+  @BeforeAll
+  static void setUp() {
+    provider = new PostgresConnectionFactory("tq_database");
+  }
+
+  @AfterAll
+  static void tearDown() {
+    provider.shutDown();
+  }
+
+  @Test
+  @DisplayName("Only slow statements are logged, with redacted parameters")
+  void logsSlowStatements() throws InterruptedException {
+    SlowQueryLog log = newLog(true);
+    Object[] vals = {"secret", Long.valueOf(7), null};
+    log.offer(Operation.EXECUTE_SELECT, "SELECT * FROM t WHERE a = ? AND b = ? AND c = ?",
+              vals, "tq_proxy_ro", 5000000L, 0, false);
+    log.offer(Operation.EXECUTE_SELECT, "SELECT 1", null, null, 2000000L, 1, false);
+    log.offer(Operation.EXECUTE_UPDATE, "UPDATE t SET a = ?", vals, null, 20000000L, 3, true);
+
+    List<SlowQuery> history = awaitHistory(log, 2);
+    SlowQuery first = history.get(0);
+    assertEquals(Arrays.asList("<String>", "<Long>", "null"), first.getParams());
+    assertEquals("tq_proxy_ro", first.getRole());
+    assertEquals(5000, first.getDurationMicros());
+    assertNull(first.getPlan());
+    assertEquals(3, history.get(1).getRows());
+    assertTrue(history.get(1).isFailed());
+    log.shutDown();
+  }
+
+  @Test
+  @DisplayName("Parameters are shown when redaction is off")
+  void showsParams() throws InterruptedException {
+    SlowQueryLog log = newLog(false);
+    log.offer(Operation.EXECUTE_SQL, "DELETE FROM t WHERE a = ?",
+              new Object[] {"x", new byte[3]}, null, 4000000L, 0, false);
+    assertEquals(Arrays.asList("x", "<3 bytes>"), awaitHistory(log, 1).get(0).getParams());
+    log.shutDown();
+  }
+
+  @Test
+  @DisplayName("A WITH that modifies data counts as a write")
+  void withWrites() {
+    assertEquals(Boolean.FALSE, SlowQueryLog.isWrite("WITH a AS (SELECT 1) SELECT * FROM a"));
+    assertEquals(Boolean.TRUE,
+        SlowQueryLog.isWrite("WITH d AS (DELETE FROM t RETURNING *) SELECT count(*) FROM d"));
+    assertEquals(Boolean.TRUE,
+        SlowQueryLog.isWrite("with u as (update t set a = 1 returning a) select * from u"));
+    assertEquals(Boolean.FALSE,
+        SlowQueryLog.isWrite("WITH updated_at AS (SELECT 1) TABLE updated_at"));
+    assertEquals(Boolean.TRUE, SlowQueryLog.isWrite("MERGE INTO t USING s ON t.a = s.a"));
+    assertNull(SlowQueryLog.isWrite("VACUUM t"));
+  }
+
+  @Test
+  @DisplayName("Several statements are not explained, whatever the first one is")
+  void severalStatements() {
+    assertNull(SlowQueryLog.isWrite("SELECT 1; DELETE FROM t"));
+    assertNull(SlowQueryLog.isWrite("SELECT 'it''s'; DROP TABLE t"));
+    assertNull(SlowQueryLog.isWrite("SELECT E'\\''; DELETE FROM t"));
+    assertEquals(Boolean.FALSE, SlowQueryLog.isWrite("SELECT 'a;b', \"c;d\" FROM t -- x;\n;"));
+    assertEquals(Boolean.FALSE, SlowQueryLog.isWrite("SELECT /* ; */ $$;$$, $q$;$q$"));
+  }
+
+  private static SlowQueryLog newLog(boolean redact) {
+    SlowQueryLog log = new SlowQueryLog(provider, 3, 0, false, 1000, redact, 10,
+                                        provider.getUrl(), provider.getUser(), null);
+    log.start();
+    return log;
+  }
+
+  private static List<SlowQuery> awaitHistory(SlowQueryLog log, int n)
+      throws InterruptedException {
+    for (int i = 0; i < 200 && log.getHistory().size() < n; i++)
+      Thread.sleep(10);
+    List<SlowQuery> history = log.getHistory();
+    assertEquals(n, history.size());
+    return history;
+  }
+}
@@ -0,0 +1,84 @@
+package org.topicquests.pg;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import org.topicquests.pg.api.SqlStatistic;
+
+public class SqlFingerprintTest {
+
+  @Test
+  @DisplayName("Literals become ? and layout is canonical")
+  void literals() {
+    assertEquals("insert into tq_contents.vertex values(?, ?)",
+        SqlFingerprint.normalize("INSERT INTO tq_contents.vertex values('V1', 3)"));
+    assertEquals("insert into tq_contents.vertex values(?, ?)",
+        SqlFingerprint.normalize("insert  into tq_contents.vertex\n values( 'it''s', -- note\n 4.5e3 )"));
+    assertEquals("select * from t where a = -? and b = ? and c = ?",
+        SqlFingerprint.normalize("SELECT * FROM t WHERE a = -1 AND b = E'x\\'y' AND c = $1"));
+    assertEquals("select ?, v2, \"MixedCase\" from t2",
+        SqlFingerprint.normalize("select $body$ it's $body$, v2, \"MixedCase\" /* c */ from t2 /*"));
+    assertEquals("insert into v values(?, to_json(?::json))",
+        SqlFingerprint.normalize("INSERT INTO v values(?, to_json(?::json))"));
+  }
+
+  @Test
+  @DisplayName("IN lists and VALUES rows collapse")
+  void lists() {
+    assertEquals("select id from t where id in (?, ...)",
+        SqlFingerprint.normalize("SELECT id FROM t WHERE id IN (1, 2,3)"));
+    assertEquals("insert into t values (?, ?), ...",
+        SqlFingerprint.normalize("INSERT INTO t VALUES (1, 'a'), (2, 'b'), (3, 'c')"));
+    assertEquals("insert into t values (?, ?)",
+        SqlFingerprint.normalize("INSERT INTO t VALUES (1, 'a')"));
+  }
+
+  @Test
+  @DisplayName("Long concatenated lists collapse without deep recursion")
+  void longLists() {
+    StringBuilder in = new StringBuilder("SELECT id FROM t WHERE id IN (");
+    StringBuilder rows = new StringBuilder("INSERT INTO t VALUES ");
+    for (int i = 0; i < 20000; i++) {
+      in.append(i == 0 ? "" : ", ").append("'v").append(i).append('\'');
+      rows.append(i == 0 ? "" : ", ").append("(").append(i).append(", 'x')");
+    }
+    in.append(") AND a IN (1)");
+    assertEquals("select id from t where id in (?, ...) and a in (?)",
+        SqlFingerprint.normalize(in.toString()));
+    assertEquals("insert into t values (?, ?), ...",
+        SqlFingerprint.normalize(rows.toString()));
+    assertEquals("insert into t values (?), (?, ?)",
+        SqlFingerprint.normalize("INSERT INTO t VALUES (1), (2, 3)"));
+    assertEquals("select * from t join (?, ?) within(?, ?)",
+        SqlFingerprint.normalize("SELECT * FROM t JOIN (1, 2) within(3, 4)"));
+  }
+
+  @Test
+  @DisplayName("Executions add up per fingerprint")
+  void aggregates() {
+    SqlStatistics stats = new SqlStatistics(2);
+    for (int i = 0; i < 9; i++)
+      stats.record("UPDATE t SET v = " + i + " WHERE id = 'x" + i + "'", 1000000L, 1, i == 0);
+    // as a statement handle reports, with the fingerprint it worked out once
+    stats.recordFingerprint("update t set v = ? where id = ?", 1000000L, 1, false);
+    stats.record("SELECT 1", 50000000L, 0, false);
+    stats.record("DELETE FROM t", 1000L, 3, false);
+
+    List<SqlStatistic> top = stats.top(5);
+    assertEquals(3, top.size());
+    assertEquals("select ?", top.get(0).getFingerprint());
+    SqlStatistic update = top.get(1);
+    assertEquals("update t set v = ? where id = ?", update.getFingerprint());
+    assertEquals(10, update.getCalls());
+    assertEquals(10000, update.getTotalMicros());
+    assertEquals(1000, update.getMinMicros());
+    assertEquals(10, update.getRows());
+    assertEquals(1, update.getErrors());
+    assertEquals(SqlStatistics.OTHER, top.get(2).getFingerprint());
+    assertEquals(1, stats.top(1).size());
+  }
+}
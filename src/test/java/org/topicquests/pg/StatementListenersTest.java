@@ -0,0 +1,146 @@
+package org.topicquests.pg;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.topicquests.pg.api.IStatementListener;
+import org.topicquests.pg.api.StatementContext;
+import org.topicquests.support.ResultPojo;
+import org.topicquests.support.api.IResult;
+
+/**
+ * Drives a PostgresConnection over a fake JDBC connection, so no
+ * database is needed.
+ */
+public class StatementListenersTest {
+  private static PostgresConnectionFactory provider;
+
+  @BeforeAll
+  static void setUp() {
+    provider = new PostgresConnectionFactory("tq_database");
+  }
+
+  @AfterAll
+  static void tearDown() {
+    provider.shutDown();
+  }
+
+  @Test
+  @DisplayName("Listeners see statements, transactions and errors in order")
+  void seesCalls() {
+    List<String> calls = new ArrayList<String>();
+    Recorder recorder = new Recorder(calls);
+    provider.addStatementListener(recorder);
+    try {
+      PostgresConnection conn = new PostgresConnection(fakeConnection(), provider);
+      conn.beginTransaction();
+      conn.executeSQL("SELECT 1");
+      IResult r = conn.executeSQL("BAD");
+      assertTrue(r.hasError());
+      conn.endTransaction();
+    } finally {
+      provider.removeStatementListener(recorder);
+    }
+    assertEquals("[beforeTransaction begin, afterTransaction begin false,"
+                 + " beforeStatement EXECUTE_SQL SELECT 1, afterStatement EXECUTE_SQL false,"
+                 + " beforeStatement EXECUTE_SQL BAD, onError PGD-7 syntax,"
+                 + " afterStatement EXECUTE_SQL true,"
+                 + " beforeTransaction commit, afterTransaction commit false]", calls.toString());
+  }
+
+  @Test
+  @DisplayName("A failing listener does not stop the others or the call")
+  void isolatesFailures() {
+    List<String> calls = new ArrayList<String>();
+    IStatementListener failing = new IStatementListener() {
+      @Override
+      public void beforeStatement(StatementContext context) {
+        throw new IllegalStateException("listener failed");
+      }
+    };
+    Recorder recorder = new Recorder(calls);
+    provider.addStatementListener(failing);
+    provider.addStatementListener(recorder);
+    try {
+      PostgresConnection conn = new PostgresConnection(fakeConnection(), provider);
+      IResult r = conn.executeSQL("SELECT 1");
+      assertTrue(!r.hasError());
+    } finally {
+      provider.removeStatementListener(failing);
+      provider.removeStatementListener(recorder);
+    }
+    assertEquals(2, calls.size());
+    assertSame(StatementListeners.NONE, provider.getStatementListeners().get());
+  }
+
+  @Test
+  @DisplayName("Attributes carry over from before to after")
+  void keepsAttributes() {
+    List<String> calls = new ArrayList<String>();
+    IStatementListener timer = new IStatementListener() {
+      @Override
+      public void beforeStatement(StatementContext context) {
+        context.setAttribute("span", "s1");
+      }
+
+      @Override
+      public void afterStatement(StatementContext context) {
+        calls.add(context.getAttribute("span") + " " + (context.getDurationNanos() >= 0));
+      }
+    };
+    provider.addStatementListener(timer);
+    try {
+      new PostgresConnection(fakeConnection(), provider).executeSQL("SELECT 1");
+    } finally {
+      provider.removeStatementListener(timer);
+    }
+    assertEquals("[s1 true]", calls.toString());
+  }
+
+  private static Connection fakeConnection() {
+    return new FakeJdbc().failOn(sql -> sql.equals("BAD"), "syntax").connection();
+  }
+
+  private static final class Recorder implements IStatementListener {
+    private final List<String> calls;
+
+    Recorder(List<String> calls) {
+      this.calls = calls;
+    }
+
+    @Override
+    public void beforeStatement(StatementContext context) {
+      calls.add("beforeStatement " + context.getOperation() + " " + context.getSql());
+    }
+
+    @Override
+    public void afterStatement(StatementContext context) {
+      calls.add("afterStatement " + context.getOperation() + " " + context.isFailed());
+    }
+
+    @Override
+    public void beforeTransaction(StatementContext context) {
+      calls.add("beforeTransaction " + context.getAction());
+    }
+
+    @Override
+    public void afterTransaction(StatementContext context) {
+      calls.add("afterTransaction " + context.getAction() + " " + context.isFailed());
+    }
+
+    @Override
+    public void onError(StatementContext context, String code, String message) {
+      calls.add("onError " + code + " " + message);
+    }
+  }
+}
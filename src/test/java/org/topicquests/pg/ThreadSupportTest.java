@@ -0,0 +1,63 @@
+package org.topicquests.pg;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Checks both versions of ThreadSupport. The Java 21 one is only built
+ * by the java21 profile, so on JDK 21 or later this fails if
+ * src/main/java21 was not compiled into META-INF/versions/21.
+ */
+public class ThreadSupportTest {
+
+  @Test
+  @DisplayName("The Java 8 version makes named daemon platform threads")
+  void platformThreads() {
+    assertFalse(ThreadSupport.hasVirtualThreads());
+    Thread t = ThreadSupport.newThreadFactory("tq-test-", true).newThread(() -> { });
+    assertEquals("tq-test-1", t.getName());
+    assertTrue(t.isDaemon());
+  }
+
+  @Test
+  @DisplayName("On Java 21 the multi-release version makes virtual threads")
+  void virtualThreads() throws Exception {
+    String spec = System.getProperty("java.specification.version");
+    assumeTrue(!spec.startsWith("1.") && Integer.parseInt(spec) >= 21, "needs Java 21");
+    URL base = ThreadSupport.class.getResource("ThreadSupport.class");
+    assumeTrue("file".equals(base.getProtocol()), "classes are not in a directory");
+
+    String name = ThreadSupport.class.getName();
+    String classes = new File(base.toURI()).getPath();
+    classes = classes.substring(0, classes.length() - (name.length() + ".class".length()));
+    File versioned = new File(classes, "META-INF/versions/21/"
+                                       + name.replace('.', '/') + ".class");
+    assertTrue(versioned.isFile(), "the java21 profile did not build " + versioned);
+
+    byte[] code = Files.readAllBytes(versioned.toPath());
+    Class<?> java21 = new ClassLoader(null) {
+      Class<?> load() {
+        return defineClass(name, code, 0, code.length);
+      }
+    }.load();
+    Method has = java21.getDeclaredMethod("hasVirtualThreads");
+    Method factory = java21.getDeclaredMethod("newThreadFactory", String.class, boolean.class);
+    has.setAccessible(true);
+    factory.setAccessible(true);
+    assertEquals(Boolean.TRUE, has.invoke(null));
+    Thread t = ((ThreadFactory)factory.invoke(null, "tq-test-", true)).newThread(() -> { });
+    assertEquals("tq-test-1", t.getName());
+    assertEquals(Boolean.TRUE, Thread.class.getMethod("isVirtual").invoke(t));
+  }
+}